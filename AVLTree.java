@@ -2,6 +2,8 @@ import static org.junit.Assert.assertEquals;
 import java.util.ArrayList;
 import java.util.Collections;
 
+import application.TreeMetrics;
+
 /**
  * Filename:   AVLTree.java
  * Project:    p2
@@ -92,6 +94,10 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
 	
     private BSTNode<K> root; // root of the AVL tree
     
+    // counters of the work done by the tree, null unless TreeMetrics.ENABLED
+    private final TreeMetrics metrics = TreeMetrics.ENABLED
+        ? new TreeMetrics("AVLTree", () -> root == null ? 0 : root.getHeight(), () -> Double.NaN) : null;
+    
 	//calculate the height
 	/**
 	 * Calculate the height at current node positions recursively, root has height 1
@@ -128,6 +134,14 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
     public boolean isEmpty() {
         return root == null;
     }
+    
+    /**
+     * Gets the counters of the work done by the tree
+     * @return metrics, or null unless the JVM runs with -Dapplication.treeMetrics=true
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
 
     /**
      * Adds key to the AVL tree
@@ -138,6 +152,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
     public void insert(K key) throws DuplicateKeyException, IllegalArgumentException {
 		if (key == null) 
             throw new IllegalArgumentException("Key is null");
+		if (TreeMetrics.ENABLED) metrics.insert(1);
 		
 		root = insert(key, root);
         
@@ -153,6 +168,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
      */
     private BSTNode<K> insert(K key, BSTNode<K> node) throws DuplicateKeyException{
         if (node == null) return new BSTNode<K>(key);
+        if (TreeMetrics.ENABLED) metrics.visit(2);
         if (node.getKey().compareTo(key)==0)
             throw new DuplicateKeyException("Duplicate items inserted to the tree");
         if (key.compareTo(node.key)>0)
@@ -192,6 +208,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
     private BSTNode<K> leftRotate(BSTNode<K> n) {
         BSTNode<K> G, P, K, temp;
         G = n;
+        if (TreeMetrics.ENABLED) metrics.rotation();
         P = G.getRight();
         temp = P.getLeft();
         G.setRight(temp);
@@ -209,6 +226,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
     private BSTNode<K> rightRotate(BSTNode<K> n){
         BSTNode<K> G, P, K, temp;
         G = n;
+        if (TreeMetrics.ENABLED) metrics.rotation();
         P = G.getLeft();
         temp = P.getRight();
         G.setLeft(temp);
@@ -227,6 +245,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
     @Override
     public void delete(K key) throws IllegalArgumentException {
 		if(key==null) throw new IllegalArgumentException("Key is null");
+		if (TreeMetrics.ENABLED) metrics.delete();
 		try{
 			root = delete(key, root);
 		}catch(IllegalArgumentException e){
@@ -247,6 +266,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
         if (node == null)//if key is not found
             throw new IllegalArgumentException();
         if(key.compareTo(node.key)==0) {
+            if (TreeMetrics.ENABLED) metrics.visit(1);
             if (node.getLeft()==null&&node.getRight() == null) {
                 return null;// deleted node is a leave
             }else if(node.getLeft() == null&& node.getRight() !=null){
@@ -267,6 +287,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
             }
         }
 		
+        if (TreeMetrics.ENABLED) metrics.visit(2);
         if (key.compareTo(node.getKey())>0) {
             node.setRight(delete(key, node.getRight()));
         }else {
@@ -310,6 +331,7 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
      */
     @Override
     public boolean search(K key) throws IllegalArgumentException {
+        if (TreeMetrics.ENABLED) metrics.search();
         return search(key,root);
     }
     /**
@@ -323,8 +345,10 @@ public class AVLTree<K extends Comparable<K>> implements AVLTreeADT<K> {
         if (key == null)
             throw new IllegalArgumentException("Key is null");
         if (node == null) return false;
-        if (key.compareTo(node.getKey())==0) return true;
-        if (key.compareTo(node.getKey())>0) return search(key, node.getRight());
+        int cmp = key.compareTo(node.getKey());
+        if (TreeMetrics.ENABLED) metrics.visit(1);
+        if (cmp==0) return true;
+        if (cmp>0) return search(key, node.getRight());
         else return search(key, node.getLeft());
     }
 
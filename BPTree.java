@@ -1,13 +1,37 @@
 package application;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 /**
  * Implementation of a B+ tree to allow efficient access to
@@ -25,6 +49,39 @@ import java.util.Random;
  */
 public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 
+    // Smallest number of values a parallel reduction gives one task
+    private static final int PARALLEL_GRAIN = 1024;
+    
+    // Snapshot file layout: a header, then chunks of whole nodes, one
+    // level after another from the leaves up
+    private static final int SNAPSHOT_MAGIC = 0x42505453;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int S_MAGIC = 0;
+    private static final int S_VERSION = 4;
+    private static final int S_BRANCHING_FACTOR = 8;
+    private static final int S_KEY_SIZE = 12;
+    private static final int S_VALUE_SIZE = 16;
+    private static final int S_HEIGHT = 20;
+    private static final int S_ENTRIES = 24;
+    private static final int S_CRC = 28;
+    private static final int SNAPSHOT_HEADER_SIZE = 32;
+    
+    // Chunk layout: payload length, CRC32 of the rest, level, node count
+    private static final int C_LENGTH = 0;
+    private static final int C_CRC = 4;
+    private static final int C_LEVEL = 8;
+    private static final int C_NODES = 12;
+    private static final int CHUNK_HEADER_SIZE = 16;
+    
+    // Payload bytes of a chunk, unless one node needs more
+    private static final int CHUNK_SIZE = 1 << 20;
+    
+    // Largest part of a snapshot file mapped at once
+    private static final int MAP_WINDOW = 1 << 30;
+    
+    // Ascending inserts in a row after which appends are expected
+    private static final int APPEND_RUN = 8;
+    
     // Root of the tree
     private Node root;
     
@@ -32,6 +89,40 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
     // for internal nodes of the tree
     private int branchingFactor;
     
+    // Numeric measure of a value aggregated per child, null if none
+    private final ToDoubleFunction<? super V> measure;
+    
+    // Epoch of the nodes writers may modify in place; nodes of older
+    // epochs may be shared with snapshots and are copied before a change
+    private int writeEpoch;
+    
+    // Counters of the work done by the tree, null unless TreeMetrics.ENABLED
+    private final TreeMetrics metrics;
+    
+    // Bits of Bloom filter per key, 0 if the tree keeps no filters
+    private final int bloomBitsPerKey;
+    
+    // Bloom filter of every key in the tree, null if filters are off
+    private BloomFilter treeBloom;
+    
+    // Keys added to treeBloom, and the number it was sized for
+    private int bloomKeys;
+    private int bloomCapacity;
+    
+    // Cache of rangeSearch results, null if results are not cached
+    private ResultCache<K, V> resultCache;
+    
+    // Last key inserted, and the number of inserts in a row that were
+    // each above the one before
+    private K lastInserted;
+    private int ascending;
+    
+    // Rightmost leaf and the internal nodes above it, root first, all
+    // writable in writeEpoch; tail is null when the path is not cached
+    private LeafNode tail;
+    private InternalNode[] tailPath;
+    private int tailDepth;
+    
     
     /**
      * Public constructor
@@ -39,11 +130,51 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      * @param branchingFactor 
      */
     public BPTree(int branchingFactor) {
+        this(branchingFactor, null);
+    }
+    
+    
+    /**
+     * Public constructor for a tree that also keeps the sum, minimum and
+     * maximum of a numeric measure of its values per subtree, so that
+     * range aggregates are answered without reading the leaves
+     * 
+     * @param branchingFactor 
+     * @param measure numeric measure of a value, or null for counts only
+     */
+    public BPTree(int branchingFactor, ToDoubleFunction<? super V> measure) {
+        this(branchingFactor, measure, 0);
+    }
+    
+    
+    /**
+     * Public constructor for a tree that also keeps Bloom filters of its
+     * keys, one for the whole tree and one per leaf, so that "==" searches
+     * for absent keys mostly return without reading any leaf keys.
+     * 
+     * The filters hash keys with hashCode, so keys that are equal under
+     * compareTo must have equal hash codes. Deleted keys stay in the
+     * filters until the leaf or tree filter is next rebuilt.
+     * 
+     * @param branchingFactor 
+     * @param measure numeric measure of a value, or null for counts only
+     * @param bloomBitsPerKey bits of filter per key, about 10 for 1% false
+     *        positives; 0 to keep no filters
+     */
+    public BPTree(int branchingFactor, ToDoubleFunction<? super V> measure, int bloomBitsPerKey) {
         if (branchingFactor <= 2) {
             throw new IllegalArgumentException(
                "Illegal branching factor: " + branchingFactor);
         }
+        if (bloomBitsPerKey < 0)
+            throw new IllegalArgumentException("Illegal bits per key: " + bloomBitsPerKey);
         this.branchingFactor = branchingFactor;
+        this.measure = measure;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.metrics = TreeMetrics.ENABLED
+            ? new TreeMetrics("BPTree", this::height, this::fillFactor) : null;
+        if (bloomBitsPerKey > 0)
+            rebuildTreeBloom();
     }
     
     
@@ -52,24 +183,642 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      * 
      * Note: key-value pairs with duplicate keys can be inserted into the tree.
      * 
+     * Once a run of inserts comes in ascending key order, the path to the
+     * rightmost leaf is kept, and a key above every key in the tree is
+     * appended to that leaf without a descent. The rightmost leaf is
+     * split with all of its entries on the left, so that leaves filled by
+     * appends stay full.
+     * 
      * @param key
      * @param value
      */
     @Override
     public void insert(K key, V value) {
+    	if (TreeMetrics.ENABLED) metrics.insert(1);
+    	if (resultCache != null) resultCache.invalidate(key);
+    	if (tail != null && tail.size < branchingFactor - 1
+    	        && key.compareTo(tail.keys[tail.size - 1]) > 0) {
+    	    append(key, value);
+    	    lastInserted = key;
+    	    addToTreeBloom(key);
+    	    return;
+    	}
+    	ascending = lastInserted != null && key.compareTo(lastInserted) > 0 ? ascending + 1 : 0;
+    	lastInserted = key;
+    	tail = null;
     	if(root==null) {
     		LeafNode tmproot = new LeafNode();
-    		tmproot.keys.add(key);
-    		tmproot.values.add(value);
+    		tmproot.keys[0] = key;
+    		tmproot.values[0] = value;
+    		tmproot.size = 1;
+    		tmproot.rebuildBloom();
     		root = tmproot;
+    		addToTreeBloom(key);
     		return;    		
     	}
-    	Node tmp = root.insert(key, value);
+    	Node tmp = writableRoot().insert(key, value, true);
     	if(tmp!=null) root = tmp;
+    	if (ascending >= APPEND_RUN) cacheTail();
+    	addToTreeBloom(key);
     	return;
     }
     
     
+    /**
+     * Appends an entry to the cached rightmost leaf, which has room for
+     * it, and counts it in the internal nodes above
+     * 
+     * @param key above every key in the tree
+     * @param value
+     */
+    private void append(K key, V value) {
+        LeafNode leaf = tail;
+        leaf.keys[leaf.size] = key;
+        leaf.values[leaf.size] = value;
+        leaf.size++;
+        if (leaf.bloom != null) leaf.bloom.add(BloomFilter.hash(key));
+        double x = measure == null ? 0 : measure.applyAsDouble(value);
+        for (int d = 0; d < tailDepth; d++) {
+            InternalNode node = tailPath[d];
+            int last = node.size;
+            node.counts[last]++;
+            if (node.sums != null) {
+                node.sums[last] += x;
+                node.mins[last] = Math.min(node.mins[last], x);
+                node.maxs[last] = Math.max(node.maxs[last], x);
+            }
+        }
+    }
+    
+    
+    /**
+     * Caches the path to the rightmost leaf, copying the nodes on it
+     * that may be shared with a snapshot
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void cacheTail() {
+        int depth = height() - 1;
+        if (tailPath == null || tailPath.length < depth)
+            tailPath = (InternalNode[]) new BPTree.InternalNode[depth];
+        Node node = writableRoot();
+        for (int d = 0; d < depth; d++) {
+            InternalNode parent = (InternalNode) node;
+            tailPath[d] = parent;
+            node = parent.writableChild(parent.size);
+        }
+        tail = (LeafNode) node;
+        tailDepth = depth;
+    }
+    
+    
+    /**
+     * Inserts a batch of key-value pairs. The batch is sorted and pushed
+     * down the tree in one pass: each internal node hands every child
+     * the run of entries that belongs to it, each leaf merges its run
+     * in one go, and a node that overflows is split once into as many
+     * nodes as it needs rather than once per key.
+     * 
+     * The tree ends up holding the same entries in the same order as
+     * if each pair had been inserted with insert, in batch order.
+     * 
+     * @param entries key-value pairs in any order
+     * @throws IllegalArgumentException if a key is null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void insertAll(Collection<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        List<Map.Entry<? extends K, ? extends V>> sorted = new ArrayList<>(entries);
+        int n = sorted.size();
+        if (TreeMetrics.ENABLED) metrics.insert(n);
+        if (resultCache != null) {
+            if (n > resultCache.size()) {
+                resultCache.clear();
+            } else {
+                for (Map.Entry<? extends K, ? extends V> entry : sorted)
+                    resultCache.invalidate(entry.getKey());
+            }
+        }
+        if (n == 0) return;
+        for (Map.Entry<? extends K, ? extends V> entry : sorted) {
+            if (entry.getKey() == null)
+                throw new IllegalArgumentException("Key is null");
+        }
+        // a stable sort keeps equal keys in batch order
+        sorted.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+        K[] keys = (K[]) new Comparable[n];
+        V[] values = (V[]) new Object[n];
+        for (int i = 0, run; i < n; i = run) {
+            // insert puts the newest of equal keys first, so runs are reversed
+            for (run = i + 1; run < n && sorted.get(run).getKey().compareTo(sorted.get(i).getKey()) == 0; run++);
+            for (int j = i; j < run; j++) {
+                keys[j] = sorted.get(run - 1 - (j - i)).getKey();
+                values[j] = sorted.get(run - 1 - (j - i)).getValue();
+            }
+        }
+        tail = null;
+        if (root == null) root = new LeafNode();
+        List<K> seps = new ArrayList<>();
+        List<Node> siblings = new ArrayList<>();
+        writableRoot().insertAll(keys, values, 0, n, seps, siblings);
+        while (!siblings.isEmpty()) {
+            // the root itself was split, possibly into more than
+            // branchingFactor nodes, so the tree may grow several levels
+            List<Node> level = new ArrayList<>(siblings.size() + 1);
+            level.add(root);
+            level.addAll(siblings);
+            List<K> levelSeps = new ArrayList<>(seps);
+            seps.clear();
+            siblings.clear();
+            InternalNode top = new InternalNode();
+            top.layout(level, levelSeps, null, null, seps, siblings);
+            root = top;
+        }
+        for (K key : keys)
+            addToTreeBloom(key);
+    }
+    
+    
+    /**
+     * Deletes every entry with the given key from the tree.
+     * 
+     * @param key
+     * @return number of entries removed
+     * @throws IllegalArgumentException if key is null
+     */
+    public int delete(K key) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        if (TreeMetrics.ENABLED) metrics.delete();
+        return remove(key, null, true);
+    }
+    
+    
+    /**
+     * Deletes one entry with the given key and a value equal to the
+     * given value from the tree.
+     * 
+     * @param key
+     * @param value
+     * @return true if an entry was removed
+     * @throws IllegalArgumentException if key is null
+     */
+    public boolean delete(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        if (TreeMetrics.ENABLED) metrics.delete();
+        return remove(key, value, false) > 0;
+    }
+    
+    
+    /**
+     * Removes the matching entries in one descent and shrinks the root
+     * when it has been emptied by merges
+     * 
+     * @param key
+     * @param value value to match
+     * @param all true to remove every entry with key regardless of value
+     * @return number of entries removed
+     */
+    private int remove(K key, V value, boolean all) {
+        tail = null;
+        if (root == null || (root.epoch != writeEpoch && !root.contains(key, value, all)))
+            return 0;
+        int removed = writableRoot().remove(key, value, all);
+        while (root instanceof BPTree.InternalNode && root.size == 0)
+            root = ((InternalNode) root).children[0];
+        if (root.size == 0)
+            root = null;
+        if (removed > 0 && resultCache != null) resultCache.invalidate(key);
+        return removed;
+    }
+    
+    
+    /**
+     * Builds the tree bottom-up from key-value pairs sorted by key.
+     * 
+     * Leaves are packed left to right and linked as they are filled,
+     * then each level of internal nodes is built over the level below,
+     * so no node is ever split. Only the last two nodes of a level
+     * are rebalanced so that no node ends up below half full.
+     * 
+     * @param entries key-value pairs in ascending key order
+     * @param fillFactor fraction of each node to fill, in (0, 1]
+     * @throws IllegalStateException if the tree is not empty
+     * @throws IllegalArgumentException if the fill factor is out of range,
+     *         or a key is null or out of order
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+                         double fillFactor) {
+        if (root != null)
+            throw new IllegalStateException("Bulk load requires an empty tree");
+        if (resultCache != null) resultCache.clear();
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("Illegal fill factor: " + fillFactor);
+        int minKeys = branchingFactor / 2;
+        int perLeaf = Math.max(minKeys,
+            Math.min(branchingFactor - 1, (int) Math.round(fillFactor * (branchingFactor - 1))));
+        int minChildren = (branchingFactor + 1) / 2;
+        int perNode = Math.max(Math.max(2, minChildren),
+            Math.min(branchingFactor, (int) Math.round(fillFactor * branchingFactor)));
+        
+        // level holds the nodes being built, seps the key between each pair of them
+        List<Node> level = new ArrayList<>();
+        List<K> seps = new ArrayList<>();
+        LeafNode leaf = null;
+        K last = null;
+        while (entries.hasNext()) {
+            Map.Entry<? extends K, ? extends V> entry = entries.next();
+            K key = entry.getKey();
+            if (key == null)
+                throw new IllegalArgumentException("Key is null");
+            if (last != null && key.compareTo(last) < 0)
+                throw new IllegalArgumentException("Entries are not sorted by key");
+            if (leaf == null || leaf.size == perLeaf) {
+                LeafNode newLeaf = new LeafNode();
+                if (leaf != null) {
+                    seps.add(leaf.keys[leaf.size - 1]);
+                    leaf.next = newLeaf;
+                    newLeaf.previous = leaf;
+                }
+                level.add(newLeaf);
+                leaf = newLeaf;
+            }
+            leaf.keys[leaf.size] = key;
+            leaf.values[leaf.size] = entry.getValue();
+            leaf.size++;
+            last = key;
+        }
+        if (leaf == null) return;
+        if (leaf.size < minKeys && level.size() > 1)
+            rebalanceLastLeaves(level, seps);
+        if (bloomBitsPerKey > 0) {
+            for (Node node : level)
+                ((LeafNode) node).rebuildBloom();
+        }
+        
+        while (level.size() > 1) {
+            int count = level.size();
+            int groups = (count + perNode - 1) / perNode;
+            int lastGroup = count - (groups - 1) * perNode;
+            List<Node> parents = new ArrayList<>(groups);
+            List<K> parentSeps = new ArrayList<>(groups);
+            int from = 0;
+            for (int g = 0; g < groups; g++) {
+                int take = perNode;
+                if (lastGroup < minChildren && g == groups - 2) {
+                    // share the last two groups so neither is below half full
+                    int total = perNode + lastGroup;
+                    take = total <= branchingFactor ? total : total - total / 2;
+                    g += total <= branchingFactor ? 1 : 0;
+                }
+                if (from + take > count) take = count - from;
+                InternalNode node = new InternalNode();
+                for (int i = 0; i < take; i++) {
+                    node.children[i] = level.get(from + i);
+                    node.refresh(i);
+                    if (i > 0) node.keys[i - 1] = seps.get(from + i - 1);
+                }
+                node.size = take - 1;
+                from += take;
+                if (from < count) parentSeps.add(seps.get(from - 1));
+                parents.add(node);
+            }
+            level = parents;
+            seps = parentSeps;
+        }
+        root = level.get(0);
+        if (bloomBitsPerKey > 0)
+            rebuildTreeBloom();
+    }
+    
+    
+    /**
+     * Builds the tree bottom-up from a sorted stream of key-value pairs.
+     * 
+     * @param entries key-value pairs in ascending key order
+     * @param fillFactor fraction of each node to fill, in (0, 1]
+     * @see #bulkLoad(Iterator, double)
+     */
+    public void bulkLoad(Stream<? extends Map.Entry<? extends K, ? extends V>> entries,
+                         double fillFactor) {
+        bulkLoad(entries.iterator(), fillFactor);
+    }
+    
+    
+    /**
+     * Writes the tree to a snapshot file that load reads back.
+     * 
+     * Nodes are written level by level from the leaves up, each node as
+     * its key count, its keys and, for leaves, its values; children are
+     * implied by the order of the nodes. Nodes are grouped in chunks of
+     * about a megabyte, each with a CRC32. The file is written next to
+     * its final path and moved in place once it is forced to disk, so
+     * an existing snapshot is replaced only by a complete one.
+     * 
+     * @param file path of the snapshot file
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        save(root, file, keyCodec, valueCodec);
+    }
+    
+    
+    /**
+     * Loads a snapshot file written by save into the tree.
+     * 
+     * The file is mapped and read once: leaves are filled and linked in
+     * order, then each level of internal nodes takes its children from
+     * the level below, so no key is compared and no node is split. The
+     * tree keeps its own measure and Bloom filter settings, which are
+     * computed as the nodes are built.
+     * 
+     * @param file path of the snapshot file
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @throws IOException if the file cannot be read, is not a snapshot,
+     *         or is damaged
+     * @throws IllegalStateException if the tree is not empty
+     * @throws IllegalArgumentException if the file was written with
+     *         another branching factor or codecs
+     */
+    public void load(Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        if (root != null)
+            throw new IllegalStateException("Load requires an empty tree");
+        if (resultCache != null) resultCache.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SNAPSHOT_HEADER_SIZE)
+                throw new IOException("Not a BPTree snapshot file");
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_SIZE);
+            if (header.getInt(S_MAGIC) != SNAPSHOT_MAGIC)
+                throw new IOException("Not a BPTree snapshot file");
+            if (header.getInt(S_VERSION) != SNAPSHOT_VERSION)
+                throw new IOException("Unsupported snapshot version: " + header.getInt(S_VERSION));
+            CRC32 crc = new CRC32();
+            crc.update(header.duplicate().limit(S_CRC));
+            if (header.getInt(S_CRC) != (int) crc.getValue())
+                throw new IOException("Snapshot header is damaged");
+            if (header.getInt(S_BRANCHING_FACTOR) != branchingFactor
+                || header.getInt(S_KEY_SIZE) != keyCodec.size()
+                || header.getInt(S_VALUE_SIZE) != valueCodec.size())
+                throw new IllegalArgumentException(
+                    "Snapshot was written with another branching factor or codecs");
+            int height = header.getInt(S_HEIGHT);
+            Node loaded = readLevels(channel, size, height, keyCodec, valueCodec);
+            if ((loaded == null ? 0 : loaded.count()) != header.getInt(S_ENTRIES))
+                throw new IOException("Snapshot is damaged: wrong number of entries");
+            root = loaded;
+        }
+        if (bloomBitsPerKey > 0)
+            rebuildTreeBloom();
+    }
+    
+    
+    /**
+     * Writes the tree under a root to a snapshot file
+     * 
+     * @param root root of the tree, may be null
+     * @param file path of the snapshot file
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @throws IOException if the file cannot be written
+     */
+    private void save(Node root, Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        // levels of the tree, from the root down
+        List<List<Node>> levels = new ArrayList<>();
+        if (root != null) {
+            List<Node> level = Collections.singletonList(root);
+            levels.add(level);
+            while (level.get(0) instanceof BPTree.InternalNode) {
+                List<Node> below = new ArrayList<>();
+                for (Node node : level)
+                    below.addAll(Arrays.asList(((InternalNode) node).children).subList(0, node.size + 1));
+                levels.add(below);
+                level = below;
+            }
+        }
+        int keySize = keyCodec.size(), valueSize = valueCodec.size();
+        
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.putInt(S_MAGIC, SNAPSHOT_MAGIC);
+        header.putInt(S_VERSION, SNAPSHOT_VERSION);
+        header.putInt(S_BRANCHING_FACTOR, branchingFactor);
+        header.putInt(S_KEY_SIZE, keySize);
+        header.putInt(S_VALUE_SIZE, valueSize);
+        header.putInt(S_HEIGHT, levels.size());
+        header.putInt(S_ENTRIES, root == null ? 0 : root.count());
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, S_CRC);
+        header.putInt(S_CRC, (int) crc.getValue());
+        
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            int largest = 4 + (branchingFactor - 1) * (keySize + valueSize);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_HEADER_SIZE + Math.max(CHUNK_SIZE, largest));
+            for (int level = 0; level < levels.size(); level++) {
+                int pos = CHUNK_HEADER_SIZE, nodes = 0;
+                for (Node node : levels.get(levels.size() - 1 - level)) {
+                    boolean leaf = level == 0;
+                    if (pos + 4 + node.size * (keySize + (leaf ? valueSize : 0)) > chunk.capacity()) {
+                        writeChunk(channel, chunk, crc, level, nodes, pos);
+                        pos = CHUNK_HEADER_SIZE;
+                        nodes = 0;
+                    }
+                    chunk.putInt(pos, node.size);
+                    pos += 4;
+                    for (int i = 0; i < node.size; i++, pos += keySize)
+                        keyCodec.write(chunk, pos, node.keys[i]);
+                    if (leaf) {
+                        V[] values = ((LeafNode) node).values;
+                        for (int i = 0; i < node.size; i++, pos += valueSize)
+                            valueCodec.write(chunk, pos, values[i]);
+                    }
+                    nodes++;
+                }
+                writeChunk(channel, chunk, crc, level, nodes, pos);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    
+    /**
+     * Fills in the header of a chunk and writes it
+     * 
+     * @param channel snapshot file
+     * @param chunk buffer holding the nodes after the chunk header
+     * @param crc checksum to reuse
+     * @param level level of the nodes, 0 for leaves
+     * @param nodes number of nodes in the chunk
+     * @param end position past the last node
+     * @throws IOException if the chunk cannot be written
+     */
+    private static void writeChunk(FileChannel channel, ByteBuffer chunk, CRC32 crc,
+                                   int level, int nodes, int end) throws IOException {
+        chunk.putInt(C_LENGTH, end - CHUNK_HEADER_SIZE);
+        chunk.putInt(C_LEVEL, level);
+        chunk.putInt(C_NODES, nodes);
+        crc.reset();
+        crc.update(chunk.duplicate().position(C_LEVEL).limit(end));
+        chunk.putInt(C_CRC, (int) crc.getValue());
+        chunk.clear().limit(end);
+        writeFully(channel, chunk);
+        chunk.clear();
+    }
+    
+    
+    /**
+     * Writes the remaining bytes of a buffer at the position of a channel
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+    
+    
+    /**
+     * Rebuilds the nodes of a snapshot file from its chunks. The file is
+     * mapped a window at a time; a chunk that runs past the end of the
+     * window starts the next one.
+     * 
+     * @param channel snapshot file
+     * @param size size of the file
+     * @param height number of levels written
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @return root, or null if the snapshot is of an empty tree
+     * @throws IOException if the file is damaged
+     */
+    private Node readLevels(FileChannel channel, long size, int height,
+                            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        int keySize = keyCodec.size(), valueSize = valueCodec.size();
+        CRC32 crc = new CRC32();
+        ByteBuffer window = null;
+        long windowStart = 0;
+        // nodes of the level being read, and of the level below with
+        // the number of them already given to a parent
+        List<Node> level = new ArrayList<>();
+        List<Node> below = null;
+        int taken = 0;
+        int current = 0;
+        LeafNode previous = null;
+        for (long position = SNAPSHOT_HEADER_SIZE; position < size; ) {
+            if (size - position < CHUNK_HEADER_SIZE)
+                throw new IOException("Snapshot is damaged: truncated chunk");
+            if (window == null || position + CHUNK_HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+            }
+            int off = (int) (position - windowStart);
+            int length = window.getInt(off + C_LENGTH);
+            if (length < 0 || length > size - position - CHUNK_HEADER_SIZE)
+                throw new IOException("Snapshot is damaged: truncated chunk");
+            if (off + CHUNK_HEADER_SIZE + length > window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+                off = 0;
+            }
+            int end = off + CHUNK_HEADER_SIZE + length;
+            crc.reset();
+            crc.update(window.duplicate().position(off + C_LEVEL).limit(end));
+            if (window.getInt(off + C_CRC) != (int) crc.getValue())
+                throw new IOException("Snapshot is damaged: bad checksum at offset " + position);
+            int chunkLevel = window.getInt(off + C_LEVEL);
+            int nodes = window.getInt(off + C_NODES);
+            if (chunkLevel == current + 1 && !level.isEmpty()) {
+                if (below != null && taken != below.size())
+                    throw new IOException("Snapshot is damaged: level " + current + " has extra nodes");
+                below = level;
+                level = new ArrayList<>();
+                taken = 0;
+                current = chunkLevel;
+            } else if (chunkLevel != current) {
+                throw new IOException("Snapshot is damaged: unexpected level " + chunkLevel);
+            }
+            int pos = off + CHUNK_HEADER_SIZE;
+            for (int n = 0; n < nodes; n++) {
+                int keys = pos + 4 <= end ? window.getInt(pos) : -1;
+                int width = current == 0 ? keySize + valueSize : keySize;
+                if (keys < 0 || keys >= branchingFactor || (long) keys * width > end - pos - 4)
+                    throw new IOException("Snapshot is damaged: bad node at offset " + position);
+                pos += 4;
+                if (current == 0) {
+                    LeafNode leaf = new LeafNode();
+                    for (int i = 0; i < keys; i++, pos += keySize)
+                        leaf.keys[i] = keyCodec.read(window, pos);
+                    for (int i = 0; i < keys; i++, pos += valueSize)
+                        leaf.values[i] = valueCodec.read(window, pos);
+                    leaf.size = keys;
+                    leaf.rebuildBloom();
+                    if (previous != null) {
+                        previous.next = leaf;
+                        leaf.previous = previous;
+                    }
+                    previous = leaf;
+                    level.add(leaf);
+                } else {
+                    if (below == null || taken + keys + 1 > below.size())
+                        throw new IOException("Snapshot is damaged: level " + current + " lacks children");
+                    InternalNode node = new InternalNode();
+                    for (int i = 0; i < keys; i++, pos += keySize)
+                        node.keys[i] = keyCodec.read(window, pos);
+                    for (int i = 0; i <= keys; i++) {
+                        node.children[i] = below.get(taken++);
+                        node.refresh(i);
+                    }
+                    node.size = keys;
+                    level.add(node);
+                }
+            }
+            if (pos != end)
+                throw new IOException("Snapshot is damaged: bad chunk at offset " + position);
+            position += CHUNK_HEADER_SIZE + length;
+        }
+        if (height == 0 && level.isEmpty())
+            return null;
+        if (current != height - 1 || level.size() != 1 || (below != null && taken != below.size()))
+            throw new IOException("Snapshot is damaged: missing nodes");
+        return level.get(0);
+    }
+    
+    
+    /**
+     * Moves entries from the second to last leaf into an underfull
+     * last leaf, or merges the two when they fit in one leaf.
+     * 
+     * @param level leaves built so far
+     * @param seps separator keys between the leaves
+     */
+    private void rebalanceLastLeaves(List<Node> level, List<K> seps) {
+        LeafNode right = (LeafNode) level.get(level.size() - 1);
+        LeafNode left = right.previous;
+        int total = left.size + right.size;
+        if (total < branchingFactor) {
+            System.arraycopy(right.keys, 0, left.keys, left.size, right.size);
+            System.arraycopy(right.values, 0, left.values, left.size, right.size);
+            left.size = total;
+            left.next = null;
+            level.remove(level.size() - 1);
+            seps.remove(seps.size() - 1);
+            return;
+        }
+        int move = left.size - total / 2;
+        System.arraycopy(right.keys, 0, right.keys, move, right.size);
+        System.arraycopy(right.values, 0, right.values, move, right.size);
+        System.arraycopy(left.keys, left.size - move, right.keys, 0, move);
+        System.arraycopy(left.values, left.size - move, right.values, 0, move);
+        Arrays.fill(left.keys, left.size - move, left.size, null);
+        Arrays.fill(left.values, left.size - move, left.size, null);
+        left.size -= move;
+        right.size += move;
+        seps.set(seps.size() - 1, left.keys[left.size - 1]);
+    }
+    
+    
     /**
      * Gets the values that satisfy the given range 
      * search arguments.
@@ -86,6 +835,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      * If comparator is null, empty, or not according
      * to required form, return empty list.
      * 
+     * Values are returned in ascending key order; descending scans
+     * are offered by cursor and the bounded rangeSearch.
+     * 
      * @param key to be searched
      * @param comparator is a string
      * @return list of values that are the result of the 
@@ -93,404 +845,2256 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     @Override
     public List<V> rangeSearch(K key, String comparator) {
-        if (!comparator.contentEquals(">=") && 
-            !comparator.contentEquals("==") && 
-            !comparator.contentEquals("<=") )
-            return new ArrayList<V>();
-        return root.rangeSearch(key, comparator);
+        if (resultCache != null) {
+            List<V> cached = resultCache.get(key, comparator);
+            if (cached != null) return cached;
+        }
+        TreeMetrics.RangeSearchEvent event = TreeMetrics.ENABLED ? metrics.beginRangeSearch() : null;
+        List<V> ret = new ArrayList<V>();
+        int leaves;
+        if (treeBloom != null && key != null && "==".equals(comparator)) {
+            leaves = probe(root, key, treeBloom, ret);
+        } else {
+            Cursor cursor = cursor(key, comparator);
+            while (cursor.hasNext())
+                ret.add(cursor.next());
+            leaves = cursor.leaves;
+        }
+        if (TreeMetrics.ENABLED) metrics.endRangeSearch(event, leaves, ret.size());
+        return resultCache != null ? resultCache.put(key, comparator, ret) : ret;
     }
     
     
     /**
-     * convert BPTree to string
+     * Turns on caching of the results of
+     * {@link #rangeSearch(Comparable, String)}. A repeated search is then
+     * answered by a map lookup until a write to a key its range covers
+     * drops it; the least recently used results are dropped to keep the
+     * cache within its bounds. While the cache is on, rangeSearch returns
+     * read-only lists.
      * 
+     * @param maxEntries largest number of results held
+     * @param maxBytes largest estimated size of the results held, at
+     *        about 8 bytes per value
+     * @throws IllegalArgumentException if a bound is not positive
      */
-    @Override
-    public String toString() {
-        Queue<List<Node>> queue = new LinkedList<List<Node>>();
-        queue.add(Arrays.asList(root));
-        StringBuilder sb = new StringBuilder();
-        while (!queue.isEmpty()) {
-            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
-            while (!queue.isEmpty()) {
-                List<Node> nodes = queue.remove();
-                sb.append('{');
-                Iterator<Node> it = nodes.iterator();
-                while (it.hasNext()) {
-                    Node node = it.next();
-                    sb.append(node.toString());
-                    if (it.hasNext())
-                        sb.append(", ");
-                    if (node instanceof BPTree.InternalNode)
-                        nextQueue.add(((InternalNode) node).children);
+    public void enableResultCache(int maxEntries, long maxBytes) {
+        resultCache = new ResultCache<K, V>(maxEntries, maxBytes);
+    }
+    
+    
+    /**
+     * Turns off caching of rangeSearch results and drops them
+     */
+    public void disableResultCache() {
+        resultCache = null;
+    }
+    
+    
+    /**
+     * Gets the cache of rangeSearch results, with its hit and miss counts
+     * 
+     * @return cache, or null if results are not cached
+     */
+    public ResultCache<K, V> resultCache() {
+        return resultCache;
+    }
+    
+    
+    /**
+     * Adds the values of every entry with the given key to a list,
+     * consulting the Bloom filters first. Every child of an internal
+     * node that may hold the key is searched, since equal keys can
+     * span several children, but a leaf whose filter rules the key
+     * out is skipped without reading its keys.
+     * 
+     * @param root of the tree to search, may be null
+     * @param key to be searched
+     * @param filter of the whole tree, or null to use the leaf filters only
+     * @param ret list to add to
+     * @return number of leaves whose keys were read
+     */
+    private int probe(Node root, K key, BloomFilter filter, List<V> ret) {
+        long hash = BloomFilter.hash(key);
+        if (root == null || (filter != null && !filter.mightContain(hash)))
+            return 0;
+        return root.collectEqual(key, hash, ret);
+    }
+    
+    
+    /**
+     * Gets a lazy cursor over the values that satisfy the given
+     * range search arguments, with the same meaning as in
+     * {@link #rangeSearch(Comparable, String)}.
+     * 
+     * Values are returned in ascending key order, as by rangeSearch.
+     * 
+     * @param key to be searched
+     * @param comparator is a string
+     * @return cursor positioned before the first value of the range;
+     *         empty if the arguments are invalid
+     */
+    public Cursor cursor(K key, String comparator) {
+        if (key == null || comparator == null)
+            return new Cursor(null, 0, false, null, false);
+        switch (comparator) {
+            case "==":
+                return cursor(key, true, key, true, false);
+            case ">=":
+                return cursor(key, true, null, false, false);
+            case "<=":
+                return cursor(null, false, key, true, false);
+            default:
+                return new Cursor(null, 0, false, null, false);
+        }
+    }
+    
+    
+    /**
+     * Gets a lazy cursor over the values whose keys lie between two
+     * bounds. The scan descends once to the bound it starts from and
+     * stops at the first key beyond the other bound.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @param descending true to return values in descending key order
+     * @return cursor positioned before the first value of the range
+     */
+    public Cursor cursor(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                         boolean descending) {
+        if (root == null || (fromKey != null && toKey != null && fromKey.compareTo(toKey) > 0))
+            return new Cursor(null, 0, false, null, false);
+        if (treeBloom != null && fromInclusive && toInclusive && fromKey != null && toKey != null
+            && fromKey.compareTo(toKey) == 0 && !treeBloom.mightContain(BloomFilter.hash(fromKey)))
+            return new Cursor(null, 0, false, null, false);
+        if (descending) {
+            LeafNode leaf = findLeaf(toKey, toKey == null || toInclusive);
+            int index = toKey == null ? leaf.size - 1
+                : (toInclusive ? leaf.upperBound(toKey) : leaf.lowerBound(toKey)) - 1;
+            return new Cursor(leaf, index, true, fromKey, fromInclusive);
+        }
+        LeafNode leaf = findLeaf(fromKey, fromKey != null && !fromInclusive);
+        int index = fromKey == null ? 0
+            : fromInclusive ? leaf.lowerBound(fromKey) : leaf.upperBound(fromKey);
+        return new Cursor(leaf, index, false, toKey, toInclusive);
+    }
+    
+    
+    /**
+     * Gets the values whose keys lie between two bounds, skipping
+     * the first offset values of the range and returning at most
+     * limit values. The scan stops as soon as the upper bound (or
+     * lower bound, when descending) or the limit is reached.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @param descending true to return values in descending key order
+     * @param offset number of values of the range to skip
+     * @param limit maximum number of values to return, negative for no limit
+     * @return list of values in the range; if nothing found, return empty list
+     * @throws IllegalArgumentException if offset is negative
+     */
+    public List<V> rangeSearch(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                               boolean descending, int offset, int limit) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Illegal offset: " + offset);
+        TreeMetrics.RangeSearchEvent event = TreeMetrics.ENABLED ? metrics.beginRangeSearch() : null;
+        List<V> ret = new ArrayList<V>();
+        Cursor cursor = cursor(fromKey, fromInclusive, toKey, toInclusive, descending);
+        cursor.skip(offset);
+        while (ret.size() != limit && cursor.hasNext())
+            ret.add(cursor.next());
+        if (TreeMetrics.ENABLED) metrics.endRangeSearch(event, cursor.leaves, ret.size());
+        return ret;
+    }
+    
+    
+    /**
+     * Gets a sequential stream over the values that satisfy the given
+     * range search arguments; values are produced lazily by a cursor.
+     * 
+     * @param key to be searched
+     * @param comparator is a string
+     * @return stream of the values in the range
+     * @see #cursor(Comparable, String)
+     */
+    public Stream<V> stream(K key, String comparator) {
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(cursor(key, comparator),
+                Spliterator.ORDERED), false);
+    }
+    
+    
+    /**
+     * Gets a spliterator over the values whose keys lie between two
+     * bounds. It splits the range at the children of the internal
+     * nodes, halving the run of children of the highest node that the
+     * range spans, so every part covers whole subtrees except at the
+     * ends of the range and can be scanned without touching the others.
+     * 
+     * The tree must not be modified while the spliterator is in use;
+     * use a {@link Snapshot} to scan while the tree is being written.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @param descending true to return values in descending key order
+     * @return spliterator over the values in the range
+     */
+    public Spliterator<V> spliterator(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                                      boolean descending) {
+        return spliterator(root, fromKey, fromInclusive, toKey, toInclusive, descending);
+    }
+    
+    
+    /**
+     * Gets a parallel stream over the values that satisfy the given
+     * range search arguments, in the order of
+     * {@link #rangeSearch(Comparable, String)}. The range is split at
+     * internal node boundaries, so a large scan is spread over the
+     * threads of the common fork-join pool.
+     * 
+     * @param key to be searched
+     * @param comparator is a string
+     * @return parallel stream of the values in the range;
+     *         empty if the arguments are invalid
+     */
+    public Stream<V> parallelStream(K key, String comparator) {
+        return StreamSupport.stream(spliterator(root, key, comparator), true);
+    }
+    
+    
+    /**
+     * Performs an action on every value whose key lies between two
+     * bounds, splitting the range over the threads of the common
+     * fork-join pool. The action is called concurrently and in no
+     * particular order.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @param action to perform on each value
+     */
+    public void parallelForEach(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                                Consumer<? super V> action) {
+        Objects.requireNonNull(action);
+        parallelReduce(fromKey, fromInclusive, toKey, toInclusive, null,
+            (result, value) -> { action.accept(value); return null; },
+            (left, right) -> null);
+    }
+    
+    
+    /**
+     * Reduces the values whose keys lie between two bounds on the
+     * common fork-join pool. The range is split into parts of whole
+     * subtrees; each part is folded with the accumulator starting from
+     * the identity, and the results of neighbouring parts are merged
+     * with the combiner in ascending key order.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @param identity initial result of every part
+     * @param accumulator folds one value into the result of a part
+     * @param combiner merges the results of two neighbouring parts
+     * @return reduced result, identity if the range is empty
+     */
+    public <R> R parallelReduce(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                                R identity, BiFunction<R, ? super V, R> accumulator,
+                                BinaryOperator<R> combiner) {
+        Objects.requireNonNull(accumulator);
+        Objects.requireNonNull(combiner);
+        Spliterator<V> spliterator = spliterator(fromKey, fromInclusive, toKey, toInclusive, false);
+        long grain = Math.max(PARALLEL_GRAIN, spliterator.estimateSize()
+            / (4L * ForkJoinPool.getCommonPoolParallelism()));
+        return ForkJoinPool.commonPool().invoke(
+            new ReduceTask<R>(spliterator, grain, identity, accumulator, combiner));
+    }
+    
+    
+    /**
+     * Gets a spliterator over the values of the tree under a root that
+     * satisfy the given range search arguments
+     */
+    private Spliterator<V> spliterator(Node root, K key, String comparator) {
+        if (key == null || comparator == null)
+            return Spliterators.emptySpliterator();
+        switch (comparator) {
+            case "==":
+                return spliterator(root, key, true, key, true, false);
+            case ">=":
+                return spliterator(root, key, true, null, false, false);
+            case "<=":
+                return spliterator(root, null, false, key, true, false);
+            default:
+                return Spliterators.emptySpliterator();
+        }
+    }
+    
+    
+    /**
+     * Gets a spliterator over the values of the tree under a root whose
+     * keys lie between two bounds
+     */
+    private Spliterator<V> spliterator(Node root, K fromKey, boolean fromInclusive,
+                                       K toKey, boolean toInclusive, boolean descending) {
+        if (root == null || (fromKey != null && toKey != null && fromKey.compareTo(toKey) > 0))
+            return Spliterators.emptySpliterator();
+        return new RangeSpliterator(root, fromKey, fromInclusive, toKey, toInclusive, descending);
+    }
+    
+    
+    /**
+     * Gets the number of entries in the tree
+     * 
+     * @return number of key-value pairs
+     */
+    public int size() {
+        return root == null ? 0 : root.count();
+    }
+    
+    
+    /**
+     * Gets the number of levels of the tree
+     * 
+     * @return height, 1 for a single leaf and 0 for an empty tree
+     */
+    public int height() {
+        int height = 0;
+        for (Node node = root; node != null; height++)
+            node = node instanceof BPTree.InternalNode ? ((InternalNode) node).children[0] : null;
+        return height;
+    }
+    
+    
+    /**
+     * Gets the fraction of the leaf slots in use, found by counting the
+     * leaves from the level above them
+     * 
+     * @return entries divided by the capacity of the leaves, 0 if empty
+     */
+    public double fillFactor() {
+        if (root == null)
+            return 0;
+        if (root instanceof BPTree.LeafNode)
+            return (double) root.size / (branchingFactor - 1);
+        // descend to the level whose children are leaves
+        List<Node> level = Collections.singletonList(root);
+        while (((InternalNode) level.get(0)).children[0] instanceof BPTree.InternalNode) {
+            List<Node> below = new ArrayList<>();
+            for (Node node : level)
+                below.addAll(Arrays.asList(((InternalNode) node).children).subList(0, node.size + 1));
+            level = below;
+        }
+        long leaves = 0;
+        for (Node node : level) leaves += node.size + 1;
+        return (double) size() / (leaves * (branchingFactor - 1));
+    }
+    
+    
+    /**
+     * Gets the counters of the work done by the tree
+     * 
+     * @return metrics, or null unless the JVM runs with
+     *         -Dapplication.treeMetrics=true
+     * @see TreeMetrics
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+    
+    
+    /**
+     * Counts the entries whose keys lie between two bounds from the
+     * per-child counts of the internal nodes; only the two leaves at
+     * the ends of the range are read.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are counted
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are counted
+     * @return number of entries in the range
+     */
+    public int countRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        RangeSummary summary = new RangeSummary(false);
+        summarize(fromKey, fromInclusive, toKey, toInclusive, summary);
+        return summary.count;
+    }
+    
+    
+    /**
+     * Gets the rank of a key, which is the number of entries with
+     * smaller keys and the position of its first entry in key order
+     * 
+     * @param key
+     * @return number of entries whose keys are less than key
+     * @throws IllegalArgumentException if key is null
+     */
+    public int rank(K key) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        return countRange(null, false, key, false);
+    }
+    
+    
+    /**
+     * Gets the entry at a position in key order by descending
+     * along the per-child counts
+     * 
+     * @param index position of the entry, from 0
+     * @return key and value of the entry
+     * @throws IndexOutOfBoundsException if index is negative or
+     *         not less than size()
+     */
+    public Map.Entry<K, V> select(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        Node node = root;
+        while (node instanceof BPTree.InternalNode) {
+            InternalNode internal = (InternalNode) node;
+            int i = 0;
+            while (index >= internal.counts[i])
+                index -= internal.counts[i++];
+            node = internal.children[i];
+        }
+        LeafNode leaf = (LeafNode) node;
+        return new AbstractMap.SimpleImmutableEntry<>(leaf.keys[index], leaf.values[index]);
+    }
+    
+    
+    /**
+     * Gets the count, sum, minimum and maximum of the measure of the
+     * values whose keys lie between two bounds. Subtrees inside the
+     * range contribute their stored aggregates, so only the two leaves
+     * at the ends of the range are read.
+     * 
+     * @param fromKey lower bound, or null for no lower bound
+     * @param fromInclusive true if keys equal to fromKey are included
+     * @param toKey upper bound, or null for no upper bound
+     * @param toInclusive true if keys equal to toKey are included
+     * @return statistics of the measure over the range
+     * @throws IllegalStateException if the tree was built without a measure
+     */
+    public DoubleSummaryStatistics aggregate(K fromKey, boolean fromInclusive,
+                                             K toKey, boolean toInclusive) {
+        if (measure == null)
+            throw new IllegalStateException("Tree has no value measure");
+        RangeSummary summary = new RangeSummary(true);
+        summarize(fromKey, fromInclusive, toKey, toInclusive, summary);
+        return new DoubleSummaryStatistics(summary.count, summary.min, summary.max, summary.sum);
+    }
+    
+    
+    /**
+     * Adds the entries whose keys lie between two bounds to a summary
+     */
+    private void summarize(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                           RangeSummary summary) {
+        if (root == null || (fromKey != null && toKey != null && fromKey.compareTo(toKey) > 0))
+            return;
+        root.summarize(fromKey, fromInclusive, toKey, toInclusive, summary);
+    }
+    
+    
+    /**
+     * Descends from the root to the leaf where a scan for the key starts
+     * 
+     * @param key, or null for the first or last leaf of the tree
+     * @param after true to find the leaf holding the last key <= key
+     *        (the last leaf if key is null), false to find the leaf
+     *        holding the first key >= key (the first leaf if key is null)
+     * @return leaf node
+     */
+    private LeafNode findLeaf(K key, boolean after) {
+        Node node = root;
+        while (node instanceof BPTree.InternalNode) {
+            InternalNode internal = (InternalNode) node;
+            if (key == null)
+                node = internal.children[after ? internal.size : 0];
+            else
+                node = internal.children[after ? internal.upperBound(key) : internal.lowerBound(key)];
+        }
+        return (LeafNode) node;
+    }
+    
+    
+    /**
+     * Takes a point-in-time view of the tree.
+     * 
+     * Taking a snapshot copies nothing. It starts a new write epoch,
+     * after which every write copies the nodes on its path that are
+     * older than the epoch instead of changing them, so the nodes
+     * reachable from the snapshot never change again. Snapshots do not
+     * follow the leaf links, which writers still update in place.
+     * 
+     * The snapshot can be read from any number of threads while the
+     * tree keeps being written, without locks. snapshot must be called
+     * from the writing thread, or while no write is in progress.
+     * 
+     * @return read-only view of the current contents
+     */
+    public Snapshot snapshot() {
+        writeEpoch++;
+        tail = null;
+        return new Snapshot(root);
+    }
+    
+    
+    /**
+     * Adds a key to the Bloom filter of the tree, rebuilding the filter
+     * once it holds more keys than it was sized for
+     * 
+     * @param key already inserted in the tree
+     */
+    private void addToTreeBloom(K key) {
+        if (treeBloom == null)
+            return;
+        if (++bloomKeys > bloomCapacity)
+            rebuildTreeBloom();
+        else
+            treeBloom.add(BloomFilter.hash(key));
+    }
+    
+    
+    /**
+     * Builds the Bloom filter of the tree from the keys in the leaves,
+     * sized for twice their number so that it is rebuilt, and cleared
+     * of deleted keys, after as many inserts again
+     */
+    private void rebuildTreeBloom() {
+        int size = size();
+        bloomCapacity = Math.max(1024, 2 * size);
+        BloomFilter filter = new BloomFilter(bloomCapacity, bloomBitsPerKey);
+        for (LeafNode leaf = root == null ? null : findLeaf(null, false); leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.size; i++)
+                filter.add(BloomFilter.hash(leaf.keys[i]));
+        }
+        treeBloom = filter;
+        bloomKeys = size;
+    }
+    
+    
+    /**
+     * Makes the root safe to modify in place, copying it if it may be
+     * shared with a snapshot
+     * 
+     * @return root
+     */
+    private Node writableRoot() {
+        if (root.epoch != writeEpoch)
+            root = root.copy();
+        return root;
+    }
+    
+    
+    /**
+     * convert BPTree to string
+     * 
+     */
+    @Override
+    public String toString() {
+        return toString(root);
+    }
+    
+    
+    /**
+     * convert the tree under a root to string, one line per level
+     * 
+     * @param root
+     * @return a string representation
+     */
+    private String toString(Node root) {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof BPTree.InternalNode)
+                        nextQueue.add(Arrays.asList(((InternalNode) node).children)
+                            .subList(0, node.size + 1));
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+    
+    
+    /**
+     * This abstract class represents any type of node in the tree
+     * This class is a super class of the LeafNode and InternalNode types.
+     *
+     * Keys are kept in a contiguous array sized to the branching factor,
+     * so in-node lookups are binary searches over a few cache lines.
+     *
+     * @author sapan
+     */
+    private abstract class Node {
+
+        // Array of keys, only the first size entries are in use
+        K[] keys;
+
+        // Number of keys stored in the node
+        int size;
+
+        // Write epoch in which the node was created
+        final int epoch;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node() {
+            // one slot more than allowed so an overflowing node can be split
+            keys = (K[]) new Comparable[branchingFactor];
+            epoch = writeEpoch;
+        }
+
+        /**
+         * Copies the node into the current write epoch; the copy
+         * takes the place of this node in the live tree
+         *
+         * @return copy of the node
+         */
+        abstract Node copy();
+
+        /**
+         * Adds the values of the subtree whose keys lie between two
+         * bounds to a list, walking the children instead of the leaf links
+         *
+         * @param fromKey lower bound, or null for no lower bound
+         * @param toKey upper bound, or null for no upper bound
+         * @param descending true to add values in descending key order
+         * @param ret list to add to
+         */
+        abstract void collect(K fromKey, K toKey, boolean descending, List<V> ret);
+
+        /**
+         * Adds the values of every entry of the subtree with the given
+         * key to a list, in ascending key order, skipping the leaves
+         * whose Bloom filter rules the key out
+         *
+         * @param key
+         * @param hash hash of the key
+         * @param ret list to add to
+         * @return number of leaves whose keys were read
+         */
+        abstract int collectEqual(K key, long hash, List<V> ret);
+
+        /**
+         * Finds the position of the first key that is not less than the given key
+         *
+         * @param key
+         * @return index of the first key >= key, or size if there is none
+         */
+        int lowerBound(K key) {
+            int lo = 0, hi = size, comparisons = 0;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                comparisons++;
+                if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            if (TreeMetrics.ENABLED) metrics.visit(comparisons);
+            return lo;
+        }
+
+        /**
+         * Finds the position of the first key that is greater than the given key
+         *
+         * @param key
+         * @return index of the first key > key, or size if there is none
+         */
+        int upperBound(K key) {
+            int lo = 0, hi = size, comparisons = 0;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                comparisons++;
+                if (keys[mid].compareTo(key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            if (TreeMetrics.ENABLED) metrics.visit(comparisons);
+            return lo;
+        }
+
+        /**
+         * Inserts key and value in the appropriate leaf node
+         * and balances the tree if required by splitting
+         *
+         * @param key
+         * @param value
+         * @param rightmost true if the node is on the rightmost path of the tree
+         * @return node
+         */
+        abstract InternalNode insert(K key, V value, boolean rightmost);
+
+        /**
+         * Inserts a sorted run of entries into the subtree. A node that
+         * overflows keeps the lowest part of its entries and reports the
+         * nodes created for the rest, which belong right after it.
+         *
+         * @param batchKeys keys of the batch, sorted
+         * @param batchValues values of the batch
+         * @param from index of the first entry of the run
+         * @param to index past the last entry of the run
+         * @param seps receives the separator before each new sibling
+         * @param siblings receives the new siblings, in key order
+         */
+        abstract void insertAll(K[] batchKeys, V[] batchValues, int from, int to,
+                                List<K> seps, List<Node> siblings);
+
+        /**
+         * Gets the first leaf key of the tree
+         *
+         * @return key
+         */
+        abstract K getFirstLeafKey();
+
+        /**
+         * Gets the new sibling created after splitting the node
+         *
+         * @param mid number of keys the node keeps
+         * @return Node
+         */
+        abstract Node split(int mid);
+
+        /**
+         *
+         * @return boolean
+         */
+        abstract boolean isOverflow();
+
+        /**
+         * Gets the fewest keys a non-root node may hold, which is
+         * the number of keys a split leaves in the smaller half
+         *
+         * @return minimum number of keys
+         */
+        abstract int minSize();
+
+        /**
+         * judge if the node contains fewer keys than allowed
+         *
+         * @return true if node contains fewer keys than allowed
+         */
+        boolean isUnderflow() {
+            return size < minSize();
+        }
+
+        /**
+         * Gets the index of the first key or child that a range starting
+         * at the given bound can reach
+         *
+         * @param fromKey lower bound, or null for no lower bound
+         * @param fromInclusive true if keys equal to fromKey are included
+         * @return index
+         */
+        int from(K fromKey, boolean fromInclusive) {
+            if (fromKey == null) return 0;
+            return fromInclusive ? lowerBound(fromKey) : upperBound(fromKey);
+        }
+
+        /**
+         * Gets the index past the last key, or of the last child, that
+         * a range ending at the given bound can reach
+         *
+         * @param toKey upper bound, or null for no upper bound
+         * @param toInclusive true if keys equal to toKey are included
+         * @return index
+         */
+        int to(K toKey, boolean toInclusive) {
+            if (toKey == null) return size;
+            return toInclusive ? upperBound(toKey) : lowerBound(toKey);
+        }
+
+        /**
+         * Gets the number of entries in the subtree
+         *
+         * @return count
+         */
+        abstract int count();
+
+        /**
+         * Gets the sum, minimum and maximum of the measure over the
+         * values of the subtree, computed from the node alone
+         *
+         * @return aggregate
+         */
+        abstract double sum();
+        abstract double min();
+        abstract double max();
+
+        /**
+         * Adds the entries of the subtree whose keys lie between two
+         * bounds to a summary
+         */
+        abstract void summarize(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                                RangeSummary summary);
+
+        /**
+         * Removes the entries matching key and value from the subtree,
+         * fixing up any child left underflowing on the way back up
+         *
+         * @param key
+         * @param value value to match
+         * @param all true to remove every entry with key, false to remove
+         *        the first one whose value equals value
+         * @return number of entries removed
+         */
+        abstract int remove(K key, V value, boolean all);
+
+        /**
+         * Checks without modifying anything whether remove would find
+         * an entry in the subtree
+         *
+         * @param key
+         * @param value value to match
+         * @param all true to match any value stored under key
+         * @return true if a matching entry exists
+         */
+        abstract boolean contains(K key, V value, boolean all);
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(keys[i]);
+            }
+            return sb.append(']').toString();
+        }
+
+    } // End of abstract class Node
+
+    /**
+     * This class represents an internal node of the tree.
+     * This class is a concrete sub class of the abstract Node class
+     * and provides implementation of the operations
+     * required for internal (non-leaf) nodes.
+     *
+     * @author sapan
+     */
+    private class InternalNode extends Node {
+
+        // Array of children nodes, size + 1 entries are in use
+        Node[] children;
+
+        // Number of entries in the subtree of each child
+        int[] counts;
+
+        // Sum, minimum and maximum of the measure in the subtree of
+        // each child, null if the tree has no measure
+        double[] sums;
+        double[] mins;
+        double[] maxs;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        InternalNode() {
+            super();
+            children = (Node[]) new BPTree.Node[branchingFactor + 1];
+            counts = new int[branchingFactor + 1];
+            if (measure != null) {
+                sums = new double[branchingFactor + 1];
+                mins = new double[branchingFactor + 1];
+                maxs = new double[branchingFactor + 1];
+            }
+        }
+
+        InternalNode copy() {
+            InternalNode copy = new InternalNode();
+            System.arraycopy(keys, 0, copy.keys, 0, size);
+            System.arraycopy(children, 0, copy.children, 0, size + 1);
+            copy.copySummaries(this, 0, 0, size + 1);
+            copy.size = size;
+            return copy;
+        }
+
+        /**
+         * Gets a child that is safe to modify in place, copying it
+         * first if it may be shared with a snapshot
+         *
+         * @param i index of the child
+         * @return child
+         */
+        Node writableChild(int i) {
+            Node child = children[i];
+            if (child.epoch != writeEpoch)
+                children[i] = child = child.copy();
+            return child;
+        }
+
+        void collect(K fromKey, K toKey, boolean descending, List<V> ret) {
+            int lo = from(fromKey, true);
+            int hi = to(toKey, true);
+            if (descending) {
+                for (int i = hi; i >= lo; i--) children[i].collect(fromKey, toKey, true, ret);
+            } else {
+                for (int i = lo; i <= hi; i++) children[i].collect(fromKey, toKey, false, ret);
+            }
+        }
+
+        int collectEqual(K key, long hash, List<V> ret) {
+            int leaves = 0;
+            int hi = upperBound(key);
+            for (int i = lowerBound(key); i <= hi; i++) leaves += children[i].collectEqual(key, hash, ret);
+            return leaves;
+        }
+
+        int count() {
+            int count = 0;
+            for (int i = 0; i <= size; i++) count += counts[i];
+            return count;
+        }
+
+        double sum() {
+            double sum = 0;
+            for (int i = 0; i <= size; i++) sum += sums[i];
+            return sum;
+        }
+
+        double min() {
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i <= size; i++) min = Math.min(min, mins[i]);
+            return min;
+        }
+
+        double max() {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i <= size; i++) max = Math.max(max, maxs[i]);
+            return max;
+        }
+
+        /**
+         * Children strictly between the first and the last child the
+         * range reaches lie inside it, so their stored aggregates are
+         * used; only the two end children are descended into.
+         */
+        void summarize(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                       RangeSummary summary) {
+            int lo = from(fromKey, fromInclusive);
+            int hi = to(toKey, toInclusive);
+            if (lo > hi) return;
+            children[lo].summarize(fromKey, fromInclusive, toKey, toInclusive, summary);
+            for (int i = lo + 1; i < hi; i++) {
+                summary.count += counts[i];
+                if (summary.measured) summary.add(sums[i], mins[i], maxs[i]);
+            }
+            if (hi > lo)
+                children[hi].summarize(fromKey, fromInclusive, toKey, toInclusive, summary);
+        }
+
+        /**
+         * Recomputes the stored count and aggregates of a child
+         *
+         * @param i index of the child
+         */
+        void refresh(int i) {
+            Node child = children[i];
+            counts[i] = child.count();
+            if (sums != null) {
+                sums[i] = child.sum();
+                mins[i] = child.min();
+                maxs[i] = child.max();
+            }
+        }
+
+        /**
+         * Copies the stored counts and aggregates of children along with
+         * the children themselves; the ranges may overlap
+         *
+         * @param from node holding the source children
+         * @param fromIndex index of the first source child
+         * @param toIndex index of the first destination child in this node
+         * @param length number of children
+         */
+        void copySummaries(InternalNode from, int fromIndex, int toIndex, int length) {
+            System.arraycopy(from.counts, fromIndex, counts, toIndex, length);
+            if (sums != null) {
+                System.arraycopy(from.sums, fromIndex, sums, toIndex, length);
+                System.arraycopy(from.mins, fromIndex, mins, toIndex, length);
+                System.arraycopy(from.maxs, fromIndex, maxs, toIndex, length);
+            }
+        }
+
+        /**
+         * Gets the first leaf key of the tree
+         *
+         * @return key
+         */
+        K getFirstLeafKey() {
+            if(size==0) return null;
+            return keys[size-1];
+        }
+
+        /**
+         * judge if the node contains more keys than allowed
+         *
+         * @return true if node contains more keys than allowed
+         */
+        boolean isOverflow() {
+            return size==branchingFactor;
+        }
+
+        /**
+         * Gets the fewest keys a non-root internal node may hold
+         *
+         * @return minimum number of keys
+         */
+        int minSize() {
+            return (branchingFactor - 1) / 2;
+        }
+
+        /**
+         * insert a key-value pair into the node and its subtree, split if needed
+         * @return null if the node doesn't need to be split, else the node to be pushed up
+         */
+        InternalNode insert(K key, V value, boolean rightmost) {
+            int cur = lowerBound(key);
+            InternalNode up = writableChild(cur).insert(key, value, rightmost && cur == size);
+            if(up==null) {
+                counts[cur]++;
+                if (sums != null) {
+                    double x = measure.applyAsDouble(value);
+                    sums[cur] += x;
+                    mins[cur] = Math.min(mins[cur], x);
+                    maxs[cur] = Math.max(maxs[cur], x);
+                }
+                return null;
+            }
+            // the split child stays at cur as the left half, so only the
+            // separator and the new right sibling have to be added
+            System.arraycopy(keys, cur, keys, cur + 1, size - cur);
+            System.arraycopy(children, cur + 1, children, cur + 2, size - cur);
+            copySummaries(this, cur + 1, cur + 2, size - cur);
+            keys[cur] = up.keys[0];
+            children[cur + 1] = up.children[1];
+            size++;
+            refresh(cur);
+            refresh(cur + 1);
+            if(this.isOverflow()) {
+                // a node on the rightmost path that grew at its end gives
+                // its new right sibling only the minimum, which appends fill
+                return rightmost && cur == size - 1 ? this.split(size - 1 - minSize()) : this.split(size / 2);
+            }else return null;
+        }
+
+        /**
+         * Hands each child the run of the batch that insert would route
+         * to it; if children were split, lays out the enlarged list of
+         * children over as many internal nodes as needed
+         */
+        void insertAll(K[] batchKeys, V[] batchValues, int from, int to,
+                       List<K> seps, List<Node> siblings) {
+            // new siblings of the children that split, and for each child
+            // the range of them that belongs to it
+            List<K> childSeps = new ArrayList<>();
+            List<Node> childSiblings = new ArrayList<>();
+            int[] splitFrom = new int[size + 1];
+            int[] splitTo = new int[size + 1];
+            for (int i = from; i < to; ) {
+                int cur = lowerBound(batchKeys[i]);
+                int end = to;
+                if (cur < size) {
+                    // entries up to keys[cur] go to child cur
+                    int lo = i + 1, hi = to;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (batchKeys[mid].compareTo(keys[cur]) <= 0) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    end = lo;
+                }
+                int before = childSiblings.size();
+                writableChild(cur).insertAll(batchKeys, batchValues, i, end, childSeps, childSiblings);
+                splitFrom[cur] = before;
+                splitTo[cur] = childSiblings.size();
+                if (splitTo[cur] == before) refresh(cur);
+                i = end;
+            }
+            if (childSiblings.isEmpty()) return;
+            List<Node> kids = new ArrayList<>();
+            List<K> between = new ArrayList<>();
+            int[] origin = new int[size + 1 + childSiblings.size()];
+            for (int c = 0; c <= size; c++) {
+                boolean split = splitTo[c] > splitFrom[c];
+                origin[kids.size()] = split ? -1 : c;
+                kids.add(children[c]);
+                for (int j = splitFrom[c]; j < splitTo[c]; j++) {
+                    between.add(childSeps.get(j));
+                    origin[kids.size()] = -1;
+                    kids.add(childSiblings.get(j));
+                }
+                if (c < size) between.add(keys[c]);
+            }
+            InternalNode saved = new InternalNode();
+            saved.copySummaries(this, 0, 0, size + 1);
+            layout(kids, between, origin, saved, seps, siblings);
+        }
+
+        /**
+         * Fills this node and as many new siblings as needed with a list
+         * of children, spreading them evenly so that no node overflows
+         * or underflows
+         *
+         * @param kids children in key order
+         * @param between separator between each pair of children
+         * @param origin for each child, its index in saved if its stored
+         *        summary is still valid, else -1; null to recompute all
+         * @param saved summaries of the children before the insert
+         * @param seps receives the separator before each new sibling
+         * @param siblings receives the new siblings
+         */
+        void layout(List<Node> kids, List<K> between, int[] origin, InternalNode saved,
+                    List<K> seps, List<Node> siblings) {
+            int count = kids.size();
+            int groups = (count + branchingFactor - 1) / branchingFactor;
+            if (TreeMetrics.ENABLED && groups > 1) metrics.split(false, groups, count - 1);
+            Arrays.fill(keys, null);
+            Arrays.fill(children, null);
+            InternalNode node = this;
+            int start = 0;
+            for (int g = 0; g < groups; g++) {
+                int take = count / groups + (g < count % groups ? 1 : 0);
+                if (g > 0) {
+                    node = new InternalNode();
+                    seps.add(between.get(start - 1));
+                    siblings.add(node);
+                }
+                for (int j = 0; j < take; j++) {
+                    node.children[j] = kids.get(start + j);
+                    if (j > 0) node.keys[j - 1] = between.get(start + j - 1);
+                    if (origin != null && origin[start + j] >= 0)
+                        node.copySummaries(saved, origin[start + j], j, 1);
+                    else
+                        node.refresh(j);
+                }
+                node.size = take - 1;
+                start += take;
+            }
+        }
+
+        /**
+         * split the node, return the new node generated
+         *
+         * This node keeps the keys below mid and becomes the left child
+         * of the returned node; the key at mid moves up.
+         *
+         * @param mid number of keys the node keeps
+         * @return an internal node that is the parent of two split children
+         */
+        InternalNode split(int mid) {
+            if (TreeMetrics.ENABLED) metrics.split(false, 2, size);
+            InternalNode right = new InternalNode();
+            InternalNode top = new InternalNode();
+            right.size = size - mid - 1;
+            System.arraycopy(keys, mid + 1, right.keys, 0, right.size);
+            System.arraycopy(children, mid + 1, right.children, 0, right.size + 1);
+            right.copySummaries(this, mid + 1, 0, right.size + 1);
+            top.keys[0] = keys[mid];
+            top.children[0] = this;
+            top.children[1] = right;
+            top.size = 1;
+            Arrays.fill(keys, mid, size, null);
+            Arrays.fill(children, mid + 1, size + 1, null);
+            size = mid;
+            top.refresh(0);
+            top.refresh(1);
+            return top;
+        }
+
+        /**
+         * remove entries from the subtree. Equal keys may be spread
+         * over every child from lowerBound to upperBound, so each of
+         * them is tried in turn. A child shared with a snapshot is only
+         * copied once it is known to hold a match. After a fix-up the
+         * same child is visited again, since a borrow or merge may have
+         * moved entries with key into it.
+         *
+         * @return number of entries removed
+         */
+        int remove(K key, V value, boolean all) {
+            int removed = 0;
+            for (int i = lowerBound(key); i <= upperBound(key); ) {
+                Node child = children[i];
+                if (child.epoch != writeEpoch && !child.contains(key, value, all)) {
+                    i++;
+                    continue;
+                }
+                int n = writableChild(i).remove(key, value, all);
+                if (n > 0) {
+                    removed += n;
+                    refresh(i);
+                }
+                if (children[i].isUnderflow() && size > 0) {
+                    i = fixUnderflow(i);
+                    if (!all && removed > 0)
+                        return removed;
+                } else {
+                    if (!all && removed > 0)
+                        return removed;
+                    i++;
+                }
+            }
+            return removed;
+        }
+
+        boolean contains(K key, V value, boolean all) {
+            int last = upperBound(key);
+            for (int i = lowerBound(key); i <= last; i++) {
+                if (children[i].contains(key, value, all))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Refills an underflowing child by borrowing one entry from a
+         * sibling that can spare it, or else merges it with a sibling
+         *
+         * @param i index of the underflowing child
+         * @return index of the child now holding the entries of child i
+         */
+        int fixUnderflow(int i) {
+            // child i is already writable; a merge only reads the right node
+            if (i > 0 && children[i - 1].size > children[i - 1].minSize()) {
+                writableChild(i - 1);
+                borrowFromLeft(i);
+                return i;
+            } else if (i < size && children[i + 1].size > children[i + 1].minSize()) {
+                writableChild(i + 1);
+                borrowFromRight(i);
+                return i;
+            } else if (i > 0) {
+                writableChild(i - 1);
+                merge(i - 1);
+                return i - 1;
+            } else {
+                merge(i);
+                return i;
+            }
+        }
+
+        /**
+         * move the last entry of child i - 1 to the front of child i
+         *
+         * @param i index of the receiving child
+         */
+        void borrowFromLeft(int i) {
+            Node left = children[i - 1];
+            Node child = children[i];
+            System.arraycopy(child.keys, 0, child.keys, 1, child.size);
+            if (child instanceof BPTree.LeafNode) {
+                LeafNode l = (LeafNode) left, c = (LeafNode) child;
+                System.arraycopy(c.values, 0, c.values, 1, c.size);
+                c.keys[0] = l.keys[l.size - 1];
+                c.values[0] = l.values[l.size - 1];
+                c.addToBloom(0, 1);
+                l.keys[l.size - 1] = null;
+                l.values[l.size - 1] = null;
+                keys[i - 1] = l.keys[l.size - 2];
+            } else {
+                InternalNode l = (InternalNode) left, c = (InternalNode) child;
+                System.arraycopy(c.children, 0, c.children, 1, c.size + 1);
+                c.copySummaries(c, 0, 1, c.size + 1);
+                c.keys[0] = keys[i - 1];
+                c.children[0] = l.children[l.size];
+                c.copySummaries(l, l.size, 0, 1);
+                keys[i - 1] = l.keys[l.size - 1];
+                l.keys[l.size - 1] = null;
+                l.children[l.size] = null;
+            }
+            left.size--;
+            child.size++;
+            refresh(i - 1);
+            refresh(i);
+        }
+
+        /**
+         * move the first entry of child i + 1 to the end of child i
+         *
+         * @param i index of the receiving child
+         */
+        void borrowFromRight(int i) {
+            Node child = children[i];
+            Node right = children[i + 1];
+            if (child instanceof BPTree.LeafNode) {
+                LeafNode c = (LeafNode) child, r = (LeafNode) right;
+                c.keys[c.size] = r.keys[0];
+                c.values[c.size] = r.values[0];
+                c.addToBloom(c.size, c.size + 1);
+                keys[i] = r.keys[0];
+                System.arraycopy(r.values, 1, r.values, 0, r.size - 1);
+                r.values[r.size - 1] = null;
+            } else {
+                InternalNode c = (InternalNode) child, r = (InternalNode) right;
+                c.keys[c.size] = keys[i];
+                c.children[c.size + 1] = r.children[0];
+                c.copySummaries(r, 0, c.size + 1, 1);
+                keys[i] = r.keys[0];
+                System.arraycopy(r.children, 1, r.children, 0, r.size);
+                r.copySummaries(r, 1, 0, r.size);
+                r.children[r.size] = null;
+            }
+            System.arraycopy(right.keys, 1, right.keys, 0, right.size - 1);
+            right.keys[right.size - 1] = null;
+            child.size++;
+            right.size--;
+            refresh(i);
+            refresh(i + 1);
+        }
+
+        /**
+         * merge child j + 1 into child j and drop the separator between them
+         *
+         * @param j index of the left child
+         */
+        void merge(int j) {
+            Node left = children[j];
+            Node right = children[j + 1];
+            if (left instanceof BPTree.LeafNode) {
+                LeafNode l = (LeafNode) left, r = (LeafNode) right;
+                System.arraycopy(r.keys, 0, l.keys, l.size, r.size);
+                System.arraycopy(r.values, 0, l.values, l.size, r.size);
+                l.addToBloom(l.size, l.size + r.size);
+                l.size += r.size;
+                l.next = r.next;
+                if (r.next != null) r.next.previous = l;
+            } else {
+                InternalNode l = (InternalNode) left, r = (InternalNode) right;
+                l.keys[l.size] = keys[j];
+                System.arraycopy(r.keys, 0, l.keys, l.size + 1, r.size);
+                System.arraycopy(r.children, 0, l.children, l.size + 1, r.size + 1);
+                l.copySummaries(r, 0, l.size + 1, r.size + 1);
+                l.size += r.size + 1;
+            }
+            System.arraycopy(keys, j + 1, keys, j, size - j - 1);
+            System.arraycopy(children, j + 2, children, j + 1, size - j - 1);
+            copySummaries(this, j + 2, j + 1, size - j - 1);
+            keys[size - 1] = null;
+            children[size] = null;
+            size--;
+            refresh(j);
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree.
+     * This class is a concrete sub class of the abstract Node class
+     * and provides implementation of the operations that
+     * required for leaf nodes.
+     *
+     * @author sapan
+     */
+    private class LeafNode extends Node {
+
+        // Array of values, parallel to keys
+        V[] values;
+
+        // Reference to the next leaf node
+        LeafNode next;
+
+        // Reference to the previous leaf node
+        LeafNode previous;
+
+        // Bloom filter of the keys, null if the tree keeps no filters
+        BloomFilter bloom;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings("unchecked")
+        LeafNode() {
+            super();
+            this.values = (V[]) new Object[branchingFactor];
+            if (bloomBitsPerKey > 0)
+                this.bloom = new BloomFilter(branchingFactor - 1, bloomBitsPerKey);
+        }
+
+        /**
+         * Refills the Bloom filter from the keys of the leaf, dropping
+         * the keys that have left it
+         */
+        void rebuildBloom() {
+            if (bloom == null) return;
+            bloom.clear();
+            addToBloom(0, size);
+        }
+
+        /**
+         * Adds a run of keys of the leaf to its Bloom filter
+         *
+         * @param from index of the first key
+         * @param to index past the last key
+         */
+        void addToBloom(int from, int to) {
+            if (bloom == null) return;
+            for (int i = from; i < to; i++) bloom.add(BloomFilter.hash(keys[i]));
+        }
+
+
+        /**
+         * Gets the first leaf key of the tree
+         *
+         * @return key
+         */
+        K getFirstLeafKey() {
+            if(size==0)return null;
+            return keys[size-1];
+        }
+
+        /**
+         * judge if the node contains more keys than allowed
+         *
+         * @return true if node contains more keys than allowed
+         */
+        boolean isOverflow() {
+            return size==branchingFactor;
+        }
+
+        /**
+         * Gets the fewest keys a non-root leaf may hold
+         *
+         * @return minimum number of keys
+         */
+        int minSize() {
+            return branchingFactor / 2;
+        }
+
+        /**
+         * The neighbors are relinked to the copy, so the leaf chain of
+         * the live tree only holds live leaves
+         */
+        LeafNode copy() {
+            LeafNode copy = new LeafNode();
+            System.arraycopy(keys, 0, copy.keys, 0, size);
+            System.arraycopy(values, 0, copy.values, 0, size);
+            copy.size = size;
+            if (bloom != null) copy.bloom.copyFrom(bloom);
+            copy.next = next;
+            copy.previous = previous;
+            if (next != null) next.previous = copy;
+            if (previous != null) previous.next = copy;
+            return copy;
+        }
+
+        void collect(K fromKey, K toKey, boolean descending, List<V> ret) {
+            int lo = from(fromKey, true);
+            int hi = to(toKey, true);
+            if (descending) {
+                for (int i = hi - 1; i >= lo; i--) ret.add(values[i]);
+            } else {
+                for (int i = lo; i < hi; i++) ret.add(values[i]);
+            }
+        }
+
+        int collectEqual(K key, long hash, List<V> ret) {
+            if (bloom != null && !bloom.mightContain(hash))
+                return 0;
+            for (int i = lowerBound(key); i < size && keys[i].compareTo(key) == 0; i++)
+                ret.add(values[i]);
+            return 1;
+        }
+
+        int count() {
+            return size;
+        }
+
+        double sum() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) sum += measure.applyAsDouble(values[i]);
+            return sum;
+        }
+
+        double min() {
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) min = Math.min(min, measure.applyAsDouble(values[i]));
+            return min;
+        }
+
+        double max() {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) max = Math.max(max, measure.applyAsDouble(values[i]));
+            return max;
+        }
+
+        void summarize(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                       RangeSummary summary) {
+            int lo = from(fromKey, fromInclusive);
+            int hi = to(toKey, toInclusive);
+            if (lo >= hi) return;
+            summary.count += hi - lo;
+            if (summary.measured) {
+                for (int i = lo; i < hi; i++) {
+                    double x = measure.applyAsDouble(values[i]);
+                    summary.add(x, x, x);
                 }
-                sb.append('}');
-                if (!queue.isEmpty())
-                    sb.append(", ");
-                else {
-                    sb.append('\n');
+            }
+        }
+
+        /**
+         * insert a key-value pair into the node and its subtree, split if needed
+         *
+         * @return null if the node doesn't need to be split, else the
+         *                                                  node to be pushed up
+         */
+        InternalNode insert(K key, V value, boolean rightmost) {
+            int ind = lowerBound(key);
+            System.arraycopy(keys, ind, keys, ind + 1, size - ind);
+            System.arraycopy(values, ind, values, ind + 1, size - ind);
+            keys[ind] = key;
+            values[ind] = value;
+            size++;
+            if (bloom != null) bloom.add(BloomFilter.hash(key));
+            if(this.isOverflow()) {
+                // the last leaf split by a key at its end stays full,
+                // since the keys that follow are likely appends
+                return rightmost && ind == size - 1 ? this.split(size - 1) : this.split(size / 2);
+            }else return null;
+        }
+
+        /**
+         * Merges a sorted run into the leaf, placing each batch entry
+         * before the stored entries with an equal key as insert does,
+         * and splits the result once into as many leaves as needed
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void insertAll(K[] batchKeys, V[] batchValues, int from, int to,
+                       List<K> seps, List<Node> siblings) {
+            int total = size + to - from;
+            if (total < branchingFactor) {
+                // merge in place from the back; stored entries go after equal batch keys
+                for (int i = size - 1, j = to - 1, k = total - 1; j >= from; k--) {
+                    if (i >= 0 && keys[i].compareTo(batchKeys[j]) >= 0) {
+                        keys[k] = keys[i];
+                        values[k] = values[i--];
+                    } else {
+                        keys[k] = batchKeys[j];
+                        values[k] = batchValues[j--];
+                        if (bloom != null) bloom.add(BloomFilter.hash(keys[k]));
+                    }
                 }
+                size = total;
+                return;
+            }
+            K[] mergedKeys = (K[]) new Comparable[total];
+            V[] mergedValues = (V[]) new Object[total];
+            for (int i = 0, j = from, k = 0; k < total; k++) {
+                if (j < to && (i == size || batchKeys[j].compareTo(keys[i]) <= 0)) {
+                    mergedKeys[k] = batchKeys[j];
+                    mergedValues[k] = batchValues[j++];
+                } else {
+                    mergedKeys[k] = keys[i];
+                    mergedValues[k] = values[i++];
+                }
+            }
+            // a leaf holds at most branchingFactor - 1 entries
+            int leaves = (total + branchingFactor - 2) / (branchingFactor - 1);
+            if (TreeMetrics.ENABLED && leaves > 1) metrics.split(true, leaves, size);
+            LeafNode leaf = this;
+            int start = 0;
+            for (int g = 0; g < leaves; g++) {
+                int take = total / leaves + (g < total % leaves ? 1 : 0);
+                if (g > 0) {
+                    LeafNode right = new LeafNode();
+                    right.next = leaf.next;
+                    right.previous = leaf;
+                    if (leaf.next != null) leaf.next.previous = right;
+                    leaf.next = right;
+                    seps.add(mergedKeys[start - 1]);
+                    siblings.add(right);
+                    leaf = right;
+                }
+                System.arraycopy(mergedKeys, start, leaf.keys, 0, take);
+                System.arraycopy(mergedValues, start, leaf.values, 0, take);
+                if (g == 0) {
+                    Arrays.fill(keys, take, branchingFactor, null);
+                    Arrays.fill(values, take, branchingFactor, null);
+                }
+                leaf.size = take;
+                leaf.rebuildBloom();
+                start += take;
             }
-            queue = nextQueue;
         }
-        return sb.toString();
-    }
+
+        /**
+         * split the node, return the new node generated
+         *
+         * This node keeps the entries below mid and becomes the left
+         * child of the returned node.
+         *
+         * @param mid number of entries the node keeps
+         * @return an internal node that is the parent of two split children
+         */
+        InternalNode split(int mid) {
+            if (TreeMetrics.ENABLED) metrics.split(true, 2, size);
+            LeafNode right = new LeafNode();
+            InternalNode top = new InternalNode();
+            right.size = size - mid;
+            System.arraycopy(keys, mid, right.keys, 0, right.size);
+            System.arraycopy(values, mid, right.values, 0, right.size);
+            Arrays.fill(keys, mid, size, null);
+            Arrays.fill(values, mid, size, null);
+            size = mid;
+            top.keys[0] = keys[mid - 1];
+            top.children[0] = this;
+            top.children[1] = right;
+            top.size = 1;
+            top.refresh(0);
+            top.refresh(1);
+            right.next = next;
+            right.previous = this;
+            if(next!=null)next.previous = right;
+            next = right;
+            rebuildBloom();
+            right.rebuildBloom();
+            return top;
+        }
+
+        /**
+         * remove the run of entries with key, or the first of them
+         * whose value matches
+         *
+         * @return number of entries removed
+         */
+        int remove(K key, V value, boolean all) {
+            int lo = lowerBound(key);
+            if (all) {
+                int hi = upperBound(key);
+                removeRange(lo, hi);
+                return hi - lo;
+            }
+            for (int i = lo; i < size && keys[i].compareTo(key) == 0; i++) {
+                if (Objects.equals(values[i], value)) {
+                    removeRange(i, i + 1);
+                    return 1;
+                }
+            }
+            return 0;
+        }
+
+        boolean contains(K key, V value, boolean all) {
+            for (int i = lowerBound(key); i < size && keys[i].compareTo(key) == 0; i++) {
+                if (all || Objects.equals(values[i], value))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * remove the entries from index from to index to
+         *
+         * @param from index of the first entry removed
+         * @param to index past the last entry removed
+         */
+        private void removeRange(int from, int to) {
+            int n = to - from;
+            if (n == 0)
+                return;
+            System.arraycopy(keys, to, keys, from, size - to);
+            System.arraycopy(values, to, values, from, size - to);
+            Arrays.fill(keys, size - n, size, null);
+            Arrays.fill(values, size - n, size, null);
+            size -= n;
+        }
+
+    } // End of class LeafNode
     
     
     /**
-     * This abstract class represents any type of node in the tree
-     * This class is a super class of the LeafNode and InternalNode types.
-     * 
-     * @author sapan
+     * This class is a read-only, point-in-time view of the tree taken
+     * by snapshot. It holds the root of that time; the nodes under it
+     * are never modified again, so it can be read concurrently with
+     * writes to the tree.
      */
-    private abstract class Node {
+    public class Snapshot {
         
-        // List of keys
-        List<K> keys;
+        // Root of the tree when the snapshot was taken
+        private final Node root;
         
         /**
          * Package constructor
+         * 
+         * @param root root of the tree, may be null
          */
-        Node() {
-        	keys = new LinkedList<>();
+        Snapshot(Node root) {
+            this.root = root;
         }
         
         /**
-         * Inserts key and value in the appropriate leaf node 
-         * and balances the tree if required by splitting
-         *  
-         * @param key
-         * @param value
-         * @return node
+         * Gets the values that satisfy the given range search
+         * arguments, with the same meaning and order as
+         * {@link BPTree#rangeSearch(Comparable, String)}
+         * 
+         * @param key to be searched
+         * @param comparator is a string
+         * @return list of values that are the result of the
+         * range search; if nothing found, return empty list
          */
-        abstract InternalNode insert(K key, V value);
-
+        public List<V> rangeSearch(K key, String comparator) {
+            List<V> ret = new ArrayList<V>();
+            if (key == null || comparator == null || root == null)
+                return ret;
+            switch (comparator) {
+                case "==":
+                    // the filter of the tree has changed since, the leaf filters have not
+                    probe(root, key, null, ret);
+                    return ret;
+                case ">=":
+                    root.collect(key, null, false, ret);
+                    return ret;
+                case "<=":
+                    root.collect(null, key, false, ret);
+                    return ret;
+                default:
+                    return ret;
+            }
+        }
+        
         /**
-         * Gets the first leaf key of the tree
+         * Gets a parallel stream over the values that satisfy the given
+         * range search arguments, with the same meaning and order as
+         * {@link BPTree#parallelStream(Comparable, String)}
          * 
-         * @return key
+         * @param key to be searched
+         * @param comparator is a string
+         * @return parallel stream of the values in the range
          */
-        abstract K getFirstLeafKey();
+        public Stream<V> parallelStream(K key, String comparator) {
+            return StreamSupport.stream(spliterator(root, key, comparator), true);
+        }
         
         /**
-         * Gets the new sibling created after splitting the node
+         * Writes the snapshot to a snapshot file, with the same format as
+         * {@link BPTree#save(Path, Codec, Codec)}; the tree can keep being
+         * written meanwhile
          * 
-         * @return Node
+         * @param file path of the snapshot file
+         * @param keyCodec fixed-width encoding of keys
+         * @param valueCodec fixed-width encoding of values
+         * @throws IOException if the file cannot be written
          */
-        abstract Node split();
+        public void save(Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+            BPTree.this.save(root, file, keyCodec, valueCodec);
+        }
         
         /**
-         * range search implemented by the Bplus tree
-         * @param key
-         * @param comparator
-         * @return the list of value that is within the specified range
+         * Gets the number of entries in the snapshot
+         * 
+         * @return number of key-value pairs
          */
-        abstract List<V> rangeSearch(K key, String comparator);
-
+        public int size() {
+            return root == null ? 0 : root.count();
+        }
+        
         /**
+         * convert the snapshot to string
          * 
-         * @return boolean
          */
-        abstract boolean isOverflow();
-        
+        @Override
         public String toString() {
-            return keys.toString();
+            return BPTree.this.toString(root);
         }
+        
+    } // End of class Snapshot
     
-    } // End of abstract class Node
     
     /**
-     * This class represents an internal node of the tree.
-     * This class is a concrete sub class of the abstract Node class
-     * and provides implementation of the operations
-     * required for internal (non-leaf) nodes.
+     * This class is a spliterator over the values of a key range.
      * 
-     * @author sapan
+     * It covers a run of children of one node, or a run of entries of
+     * one leaf. Splitting hands the first half of the run to a new
+     * spliterator; a run of a single child is replaced by the run of
+     * that child that the range reaches, so the split points are the
+     * separator keys of the highest node the range spans. The estimate
+     * is read from the per-child counts.
+     * 
+     * Traversal walks the subtrees with an explicit stack instead of
+     * the leaf links, so it also works on the nodes of a snapshot.
      */
-    private class InternalNode extends Node {
-
-        // List of children nodes
-        List<Node> children;
+    private class RangeSpliterator implements Spliterator<V> {
+        
+        // Bounds of the range, null for no bound
+        private final K fromKey;
+        private final boolean fromInclusive;
+        private final K toKey;
+        private final boolean toInclusive;
+        
+        // True if values are returned in descending key order
+        private final boolean descending;
+        
+        // Node whose children or entries the spliterator covers,
+        // null once the traversal is over
+        private Node node;
+        
+        // First and last child, or entry, covered; inclusive
+        private int lo;
+        private int hi;
+        
+        // Traversal stack; each level holds a node, the index of the
+        // next child or entry to visit and the last index to visit
+        private Node[] stackNodes;
+        private int[] stackNext;
+        private int[] stackLast;
+        
+        // Number of levels on the stack, 0 before the traversal starts
+        private int depth;
+        
+        // Estimated size when the traversal started, and values returned since
+        private long estimate;
+        private long returned;
         
         /**
-         * Package constructor
+         * Package constructor; covers the whole range under a node
+         * 
+         * @param node root of the subtree to scan
          */
-        InternalNode() {
-            super();
-            children = new LinkedList<>();
+        RangeSpliterator(Node node, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive,
+                         boolean descending) {
+            this.fromKey = fromKey;
+            this.fromInclusive = fromInclusive;
+            this.toKey = toKey;
+            this.toInclusive = toInclusive;
+            this.descending = descending;
+            this.node = node;
+            this.lo = first(node);
+            this.hi = last(node);
         }
         
         /**
-         * Gets the first leaf key of the tree
-         * 
-         * @return key
+         * Package constructor; covers a run of another spliterator's node
          */
-        K getFirstLeafKey() {
-            if(keys.isEmpty()) return null;
-            return keys.get(keys.size()-1);
+        private RangeSpliterator(RangeSpliterator parent, int lo, int hi) {
+            this.fromKey = parent.fromKey;
+            this.fromInclusive = parent.fromInclusive;
+            this.toKey = parent.toKey;
+            this.toInclusive = parent.toInclusive;
+            this.descending = parent.descending;
+            this.node = parent.node;
+            this.lo = lo;
+            this.hi = hi;
         }
         
         /**
-         * judge if the node contains more keys than allowed
-         * 
-         * @return true if node contains more keys than allowed
+         * Gets the first child or entry of a node the range reaches
          */
-        boolean isOverflow() {
-            return keys.size()==branchingFactor;
+        private int first(Node node) {
+            return node.from(fromKey, fromInclusive || node instanceof BPTree.InternalNode);
         }
         
         /**
-         * insert a key-value pair into the node and its subtree, split if needed
-         * @return null if the node doesn't need to be split, else the node to be pushed up
+         * Gets the last child or entry of a node the range reaches
          */
-        InternalNode insert(K key, V value) {
-            int cur = 0;
-            while(cur<keys.size()&&keys.get(cur).compareTo(key)<0)cur++;
-            InternalNode up = children.get(cur).insert(key, value);
-            if(up==null) return null;
-            children.remove(cur);
-            children.addAll(cur, up.children);        
-            keys.addAll(cur, up.keys);
-            if(this.isOverflow()) {
-                return this.split();
-            }else return null;
+        private int last(Node node) {
+            if (node instanceof BPTree.InternalNode)
+                return node.to(toKey, true);
+            return node.to(toKey, toInclusive) - 1;
         }
         
         /**
-         * split the node, return the new node generated
+         * Splits off the first half, in encounter order, of the run of
+         * children or entries; only possible before the traversal starts
          * 
-         * @return an internal node that is the parent of two split children
+         * @return spliterator over the first half, null if the run
+         *         cannot be split
          */
-        InternalNode split() {
-        	InternalNode left = new InternalNode();
-        	InternalNode right = new InternalNode();
-        	InternalNode top = new InternalNode();
-        	left.keys.addAll(keys.subList(0, keys.size()/2));
-        	left.children.addAll(children.subList(0, keys.size()/2+1));
-            right.children.addAll(children.subList(keys.size()/2+1, children.size()));
-        	right.keys.addAll(keys.subList(keys.size()/2+1, keys.size()));
-        	top.children.add(left);
-        	top.children.add(right);
-        	top.keys.add(keys.get(keys.size()/2));
-            return top;
+        @Override
+        public Spliterator<V> trySplit() {
+            if (node == null || depth > 0)
+                return null;
+            while (lo == hi && node instanceof BPTree.InternalNode) {
+                node = ((InternalNode) node).children[lo];
+                lo = first(node);
+                hi = last(node);
+            }
+            if (hi <= lo)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            RangeSpliterator prefix;
+            if (descending) {
+                prefix = new RangeSpliterator(this, mid + 1, hi);
+                hi = mid;
+            } else {
+                prefix = new RangeSpliterator(this, lo, mid);
+                lo = mid + 1;
+            }
+            return prefix;
         }
         
         /**
-         * range search for the key in the node and its subtree
+         * Performs the action on the next value, if any
          * 
-         * @return a list contains everything in the range
-         */
-        List<V> rangeSearch(K key, String comparator) {
-        	List<V> ret = new LinkedList<>();
-        	switch(comparator) {
-        	case "==":
-        		Iterator<K> it = keys.iterator();
-        		Iterator<Node> itc = this.children.iterator();
-        		K cur = null;
-        		Node nn = null;
-        		while(it.hasNext()) {
-        			cur = it.next(); nn = itc.next();
-        			if(key.compareTo(cur)<=0)break;        			
-        		}
-        		while(cur.compareTo(key)==0) {
-        			ret.addAll(nn.rangeSearch(key, comparator));
-        			if(!it.hasNext())break;
-        			nn = itc.next();
-        			cur = it.next();
-        		}
-        		if(cur.compareTo(key)==0) {
-        			if(itc.hasNext()) {
-        				nn = itc.next();
-        				ret.addAll(nn.rangeSearch(key, comparator));
-        			}
-        		}else {
-        		    ret.addAll(nn.rangeSearch(key, comparator)); nn = itc.next();
-        		    ret.addAll(nn.rangeSearch(key, comparator));
-        		} 
-        		return ret;
-        	case "<=":
-        	    it = keys.iterator();
-                itc = this.children.iterator();
-                cur = null;
-                nn = null;
-                while(it.hasNext()) {
-                    cur = it.next(); nn = itc.next();
-                    if(cur.compareTo(key)>0)break;                 
-                }                
-                if(cur.compareTo(key)<=0) {
-                    nn = itc.next();
-                    ret.addAll(nn.rangeSearch(key, comparator));
-                }else ret.addAll(nn.rangeSearch(key, comparator));
-                return ret;
-        	case ">=":
-        	    it = keys.iterator();
-                itc = this.children.iterator();
-                cur = null;
-                nn = null;
-                while(it.hasNext()) {
-                    cur = it.next(); nn = itc.next();
-                    if(cur.compareTo(key)>=0)break;                 
+         * @return false if no value was left
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            Objects.requireNonNull(action);
+            if (node == null)
+                return false;
+            if (depth == 0) {
+                estimate = estimateSize();
+                push(node, lo, hi);
+            }
+            int step = descending ? -1 : 1;
+            while (depth > 0) {
+                int top = depth - 1;
+                int index = stackNext[top];
+                if ((index - stackLast[top]) * step > 0) {
+                    depth--;
+                    continue;
                 }
-                if(cur.compareTo(key)<0) {
-                    nn = itc.next();
-                    ret.addAll(nn.rangeSearch(key, comparator));                    
-                }else ret.addAll(nn.rangeSearch(key, comparator));
-                return ret;        		
-        	}
-        	
-            return null;
+                stackNext[top] = index + step;
+                Node current = stackNodes[top];
+                if (current instanceof BPTree.InternalNode) {
+                    Node child = ((InternalNode) current).children[index];
+                    push(child, first(child), last(child));
+                } else {
+                    returned++;
+                    action.accept(((LeafNode) current).values[index]);
+                    return true;
+                }
+            }
+            node = null;
+            return false;
         }
-    
-    } // End of class InternalNode
+        
+        /**
+         * Performs the action on every remaining value, recursing over
+         * the subtrees when the traversal has not started yet
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super V> action) {
+            Objects.requireNonNull(action);
+            if (node == null)
+                return;
+            if (depth > 0) {
+                while (tryAdvance(action)) { }
+                return;
+            }
+            Node start = node;
+            node = null;
+            visit(start, lo, hi, action);
+        }
+        
+        /**
+         * Performs the action on the values of a run of children or
+         * entries of a node
+         */
+        private void visit(Node current, int from, int to, Consumer<? super V> action) {
+            if (current instanceof BPTree.InternalNode) {
+                Node[] children = ((InternalNode) current).children;
+                for (int n = 0; n <= to - from; n++) {
+                    Node child = children[descending ? to - n : from + n];
+                    visit(child, first(child), last(child), action);
+                }
+            } else {
+                V[] values = ((LeafNode) current).values;
+                if (descending) {
+                    for (int i = to; i >= from; i--) action.accept(values[i]);
+                } else {
+                    for (int i = from; i <= to; i++) action.accept(values[i]);
+                }
+            }
+        }
+        
+        /**
+         * Pushes a run of children or entries on the traversal stack
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void push(Node current, int from, int to) {
+            if (stackNodes == null) {
+                stackNodes = (Node[]) new BPTree.Node[8];
+                stackNext = new int[8];
+                stackLast = new int[8];
+            } else if (depth == stackNodes.length) {
+                stackNodes = Arrays.copyOf(stackNodes, depth * 2);
+                stackNext = Arrays.copyOf(stackNext, depth * 2);
+                stackLast = Arrays.copyOf(stackLast, depth * 2);
+            }
+            stackNodes[depth] = current;
+            stackNext[depth] = descending ? to : from;
+            stackLast[depth] = descending ? from : to;
+            depth++;
+        }
+        
+        /**
+         * Estimates the number of values left; subtrees at the ends of
+         * the range are counted whole
+         * 
+         * @return estimated size
+         */
+        @Override
+        public long estimateSize() {
+            if (node == null)
+                return 0;
+            if (depth > 0)
+                return Math.max(0, estimate - returned);
+            if (node instanceof BPTree.LeafNode)
+                return Math.max(0, hi - lo + 1);
+            int[] counts = ((InternalNode) node).counts;
+            long size = 0;
+            for (int i = lo; i <= hi; i++) size += counts[i];
+            return size;
+        }
+        
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED;
+        }
+        
+    } // End of class RangeSpliterator
     
     
     /**
-     * This class represents a leaf node of the tree.
-     * This class is a concrete sub class of the abstract Node class
-     * and provides implementation of the operations that
-     * required for leaf nodes.
-     * 
-     * @author sapan
+     * This class is the fork-join task of parallelReduce. It splits
+     * its spliterator until a part holds at most grain values, forks
+     * the first half and folds the second half itself.
      */
-    private class LeafNode extends Node {
+    private class ReduceTask<R> extends RecursiveTask<R> {
         
-        // List of values
-        List<V> values;
+        // Version of the serialized form inherited from RecursiveTask
+        private static final long serialVersionUID = 1L;
         
-        // Reference to the next leaf node
-        LeafNode next;
+        // Values to reduce
+        private final Spliterator<V> spliterator;
         
-        // Reference to the previous leaf node
-        LeafNode previous;
+        // Largest part folded without splitting
+        private final long grain;
+        
+        // Reduction functions
+        private final R identity;
+        private final BiFunction<R, ? super V, R> accumulator;
+        private final BinaryOperator<R> combiner;
+        
+        // Result of the values folded so far
+        private R result;
         
         /**
          * Package constructor
          */
-        LeafNode() {
-            super();
-            this.values = new LinkedList<>();
+        ReduceTask(Spliterator<V> spliterator, long grain, R identity,
+                   BiFunction<R, ? super V, R> accumulator, BinaryOperator<R> combiner) {
+            this.spliterator = spliterator;
+            this.grain = grain;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+        
+        @Override
+        protected R compute() {
+            Spliterator<V> prefix;
+            if (spliterator.estimateSize() > grain && (prefix = spliterator.trySplit()) != null) {
+                ReduceTask<R> left = new ReduceTask<R>(prefix, grain, identity, accumulator, combiner);
+                left.fork();
+                R right = compute();
+                return combiner.apply(left.join(), right);
+            }
+            result = identity;
+            spliterator.forEachRemaining(value -> result = accumulator.apply(result, value));
+            return result;
         }
         
+    } // End of class ReduceTask
+    
+    
+    /**
+     * Accumulator of the count and measure aggregates of a range
+     */
+    private static class RangeSummary {
+        
+        // True if the measure is aggregated, not only the count
+        final boolean measured;
+        
+        // Aggregates of the entries added so far
+        int count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        
+        RangeSummary(boolean measured) {
+            this.measured = measured;
+        }
         
         /**
-         * Gets the first leaf key of the tree
-         * 
-         * @return key
+         * Adds the measure aggregates of some entries; the count is
+         * added separately
          */
-        K getFirstLeafKey() {
-        	if(keys.isEmpty())return null;
-            return keys.get(keys.size()-1);
+        void add(double sum, double min, double max) {
+            this.sum += sum;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
         }
         
+    } // End of class RangeSummary
+    
+    
+    /**
+     * This class is a lazy cursor over the entries of the tree.
+     * It starts on the first qualifying entry of a leaf and then
+     * walks the next (or previous) leaf links one entry at a time,
+     * so a scan allocates nothing per entry and can stop at any point.
+     * 
+     * The cursor is not fail-fast: the tree must not be modified
+     * while it is in use.
+     */
+    public class Cursor implements Iterator<V> {
+        
+        // Leaf holding the next entry, null when the cursor is exhausted
+        private LeafNode leaf;
+        
+        // Position of the next entry in leaf
+        private int index;
+        
+        // True if the cursor walks towards smaller keys
+        private final boolean descending;
+        
+        // Key at which the scan stops, null if it runs to the end of the tree
+        private final K bound;
+        
+        // True if entries equal to bound are part of the scan
+        private final boolean boundInclusive;
+        
+        // Key of the entry returned by the last call to next
+        private K key;
+        
+        // Number of leaves the cursor has been positioned in
+        private int leaves;
+        
         /**
-         * judge if the node contains more keys than allowed
+         * Package constructor
          * 
-         * @return true if node contains more keys than allowed
+         * @param leaf leaf to start in, may be null for an empty cursor
+         * @param index position of the first entry in leaf; may be
+         *        one past either end, in which case the neighbor leaf is used
+         * @param descending direction of the walk
+         * @param bound key at which the scan stops, or null
+         * @param boundInclusive whether bound itself is returned
          */
-        boolean isOverflow() {
-            return keys.size()==branchingFactor;
+        Cursor(LeafNode leaf, int index, boolean descending,
+               K bound, boolean boundInclusive) {
+            this.leaf = leaf;
+            this.index = index;
+            this.descending = descending;
+            this.bound = bound;
+            this.boundInclusive = boundInclusive;
+            if (TreeMetrics.ENABLED && leaf != null) leaves++;
+            skipExhaustedLeaf();
         }
         
         /**
-         * insert a key-value pair into the node and its subtree, split if needed
+         * Moves to the neighbor leaf when index has run off the current one
+         */
+        private void skipExhaustedLeaf() {
+            if (descending) {
+                while (leaf != null && index < 0) {
+                    leaf = leaf.previous;
+                    if (leaf != null) index = leaf.size - 1;
+                    if (TreeMetrics.ENABLED && leaf != null) leaves++;
+                }
+            } else {
+                while (leaf != null && index >= leaf.size) {
+                    leaf = leaf.next;
+                    index = 0;
+                    if (TreeMetrics.ENABLED && leaf != null) leaves++;
+                }
+            }
+        }
+        
+        /**
+         * judge if there is another entry within the range
          * 
-         * @return null if the node doesn't need to be split, else the 
-         *                                                  node to be pushed up
+         * @return true if next will return a value
          */
-        InternalNode insert(K key, V value) {
-        	int ind;
-        	for(ind = 0; ind<=keys.size(); ind++) {
-        		if(ind<keys.size()&&key.compareTo(this.keys.get(ind))<=0) {
-        			keys.add(ind, key);
-        			values.add(ind, value);
-        			break;
-        		}else if(ind==keys.size()) {
-        		    keys.add(ind, key);
-                    values.add(ind, value);
-                    break;
-        		}
-        	}        
-        	if(this.isOverflow()) {
-        	    return this.split();
-        	}else return null;
+        @Override
+        public boolean hasNext() {
+            if (leaf == null) return false;
+            if (bound == null) return true;
+            int cmp = leaf.keys[index].compareTo(bound);
+            if (descending) cmp = -cmp;
+            if (cmp < 0 || (cmp == 0 && boundInclusive)) return true;
+            leaf = null;
+            return false;
         }
         
         /**
-         * split the node, return the new node generated
+         * Gets the next value of the range and advances the cursor
          * 
-         * @return an internal node that is the parent of two split children
+         * @return value
+         * @throws NoSuchElementException if the range is exhausted
          */
-        InternalNode split() {
-        	LeafNode left = new LeafNode();
-        	LeafNode right = new LeafNode();
-        	InternalNode top = new InternalNode();   
-        	left.keys.addAll(keys.subList(0, keys.size()/2));
-        	left.values.addAll(values.subList(0, values.size()/2));
-        	right.values.addAll(values.subList(values.size()/2, values.size()));
-        	right.keys.addAll(keys.subList(keys.size()/2, keys.size()));
-        	top.children.add(left);
-        	top.children.add(right);
-        	top.keys.add(left.keys.get(left.keys.size()-1));
-        	left.next = right;
-        	right.previous = left;
-        	left.previous = previous;
-        	right.next = next;   
-        	if(previous!=null)previous.next = left;
-        	if(next!=null)next.previous = right;
-            return top;
+        @Override
+        public V next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            key = leaf.keys[index];
+            V value = leaf.values[index];
+            index += descending ? -1 : 1;
+            skipExhaustedLeaf();
+            return value;
         }
         
         /**
-         * range search for the key in the node and its subtree
+         * Skips over up to n values of the range. Leaves that lie wholly
+         * inside the range are stepped over without visiting their entries.
          * 
-         * @return a list contains everything in the range
+         * @param n number of values to skip
+         * @return number of values actually skipped
          */
-        List<V> rangeSearch(K key, String comparator) {
-            List<V> ret = new LinkedList<>();
-            switch(comparator) {
-                case "==":
-                    Iterator<K> it = keys.iterator();
-                    Iterator<V> itv = values.iterator();
-                    while(it.hasNext()) {
-                        K cur = it.next();
-                        if(cur.compareTo(key)==0)ret.add(itv.next());
-                        else itv.next();
-                    }
-                    return ret;
-                case ">=":
-                    it = keys.iterator();
-                    itv = values.iterator();
-                    while(it.hasNext()) {
-                        K cur = it.next();
-                        if(cur.compareTo(key)>=0)ret.add(itv.next());
-                        else itv.next();
-                    }
-                    LeafNode curNode = next;                    
-                    while(curNode!=null) {
-                        ret.addAll(curNode.values);
-                        curNode = curNode.next;
-                    }                    
-                    return ret;
-                case "<=":
-                    it = keys.iterator();
-                    itv = values.iterator();
-                    while(it.hasNext()) {
-                        K cur = it.next();
-                        if(cur.compareTo(key)<=0)ret.add(itv.next());
-                        else itv.next();
-                    }
-                    curNode = previous;                    
-                    while(curNode!=null) {
-                        ret.addAll(curNode.values);
-                        curNode = curNode.previous;
-                    }          
-                    return ret;
-                
+        public int skip(int n) {
+            int skipped = 0;
+            while (skipped < n && hasNext()) {
+                int left = descending ? index + 1 : leaf.size - index;
+                K last = leaf.keys[descending ? 0 : leaf.size - 1];
+                int cmp = bound == null ? -1 : last.compareTo(bound) * (descending ? -1 : 1);
+                if (left <= n - skipped && (cmp < 0 || (cmp == 0 && boundInclusive))) {
+                    skipped += left;
+                    index = descending ? -1 : leaf.size;
+                    skipExhaustedLeaf();
+                } else {
+                    next();
+                    skipped++;
+                }
             }
-            return null;
+            return skipped;
         }
         
-    } // End of class LeafNode
+        /**
+         * Gets the key of the entry returned by the last call to next
+         * 
+         * @return key
+         * @throws IllegalStateException if next has not been called yet
+         */
+        public K key() {
+            if (key == null) throw new IllegalStateException("next has not been called");
+            return key;
+        }
+        
+    } // End of class Cursor
     
     
     /**
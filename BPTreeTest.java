@@ -0,0 +1,924 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Filename:   BPTreeTest.java
+ *
+ * JUnit tests of BPTree. Trees are checked against a plain list of the
+ * inserted entries; every value is a distinct id, so a result can be
+ * compared with the ids of the entries its range covers.
+ */
+public class BPTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Gets the ids of the entries with key in [lo, hi], in ascending
+     * key order and, among equal keys, newest first as BPTree returns them
+     *
+     * @param entries key and id of each entry, in insertion order
+     * @param lo lowest key, inclusive
+     * @param hi highest key, inclusive
+     * @return ids
+     */
+    static List<Integer> expected(List<int[]> entries, int lo, int hi) {
+        List<int[]> in = new ArrayList<>();
+        for (int[] e : entries)
+            if (e[0] >= lo && e[0] <= hi) in.add(e);
+        in.sort((x, y) -> x[0] != y[0] ? Integer.compare(x[0], y[0]) : Integer.compare(y[1], x[1]));
+        List<Integer> ids = new ArrayList<>();
+        for (int[] e : in) ids.add(e[1]);
+        return ids;
+    }
+
+
+    /**
+     * Checks every comparator of rangeSearch for every key of the range
+     * and one key past each end
+     */
+    static void assertSearches(BPTree<Integer, Integer> tree, List<int[]> entries, int range) {
+        for (int q = -1; q <= range; q++) {
+            assertEquals("== " + q, expected(entries, q, q), tree.rangeSearch(q, "=="));
+            assertEquals(">= " + q, expected(entries, q, Integer.MAX_VALUE), tree.rangeSearch(q, ">="));
+            assertEquals("<= " + q, expected(entries, Integer.MIN_VALUE, q), tree.rangeSearch(q, "<="));
+        }
+    }
+
+
+    @Test
+    public void insertAndRangeSearchMatchReference() {
+        Random rnd = new Random(1);
+        for (int b = 3; b <= 12; b++) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b);
+            List<int[]> entries = new ArrayList<>();
+            int range = 1 + rnd.nextInt(80);
+            for (int i = 0; i < 600; i++) {
+                int key = rnd.nextInt(range);
+                tree.insert(key, i);
+                entries.add(new int[]{key, i});
+            }
+            assertSearches(tree, entries, range);
+            assertEquals(entries.size(), tree.size());
+        }
+    }
+
+
+    @Test
+    public void duplicateKeysSpanningLeavesAreAllFound() {
+        BPTree<Integer, Integer> tree = new BPTree<>(3);
+        List<int[]> entries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int key = i % 3 == 0 ? 5 : 1000 + i;
+            tree.insert(key, i);
+            entries.add(new int[]{key, i});
+        }
+        assertEquals(expected(entries, 5, 5), tree.rangeSearch(5, "=="));
+        assertEquals(67, tree.rangeSearch(5, "==").size());
+    }
+
+
+    @Test
+    public void nullKeyOrBadComparatorGivesEmptyList() {
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        tree.insert(1, 1);
+        assertTrue(tree.rangeSearch(null, "==").isEmpty());
+        assertTrue(tree.rangeSearch(1, null).isEmpty());
+        assertTrue(tree.rangeSearch(1, "").isEmpty());
+        assertTrue(tree.rangeSearch(1, "<").isEmpty());
+        assertEquals(Collections.singletonList(1), tree.rangeSearch(1, "=="));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void branchingFactorBelowThreeIsRejected() {
+        new BPTree<Integer, Integer>(2);
+    }
+
+
+    /**
+     * Generates sorted entries for bulkLoad; ids of equal keys decrease,
+     * so the stored order is the order rangeSearch returns
+     *
+     * @param n number of entries
+     * @param range keys are drawn from 0 to range - 1
+     * @param entries receives the key and id of each entry
+     * @return entries to load
+     */
+    static List<Map.Entry<Integer, Integer>> sortedEntries(int n, int range, Random rnd, List<int[]> entries) {
+        for (int i = 0; i < n; i++)
+            entries.add(new int[]{rnd.nextInt(range), i});
+        entries.sort((x, y) -> x[0] != y[0] ? Integer.compare(x[0], y[0]) : Integer.compare(y[1], x[1]));
+        List<Map.Entry<Integer, Integer>> load = new ArrayList<>();
+        for (int[] e : entries) load.add(Map.entry(e[0], e[1]));
+        return load;
+    }
+
+
+    @Test
+    public void bulkLoadMatchesReference() {
+        Random rnd = new Random(2);
+        for (int b = 3; b <= 12; b++) {
+            for (double fill : new double[]{0.1, 0.5, 0.75, 1.0}) {
+                BPTree<Integer, Integer> tree = new BPTree<>(b);
+                List<int[]> entries = new ArrayList<>();
+                int range = 1 + rnd.nextInt(150);
+                tree.bulkLoad(sortedEntries(rnd.nextInt(400), range, rnd, entries).stream(), fill);
+                assertSearches(tree, entries, range);
+                // the loaded tree takes inserts like any other
+                for (int i = 0; i < 100; i++) {
+                    int key = rnd.nextInt(range);
+                    tree.insert(key, 1000 + i);
+                    entries.add(new int[]{key, 1000 + i});
+                }
+                assertSearches(tree, entries, range);
+            }
+        }
+    }
+
+
+    @Test
+    public void bulkLoadFillsLeavesToFillFactor() {
+        for (double fill : new double[]{0.5, 0.75, 1.0}) {
+            BPTree<Integer, Integer> tree = new BPTree<>(65);
+            List<int[]> entries = new ArrayList<>();
+            tree.bulkLoad(sortedEntries(100000, 1000000, new Random(3), entries).iterator(), fill);
+            assertEquals(fill, tree.fillFactor(), 0.01);
+        }
+    }
+
+
+    @Test
+    public void bulkLoadRejectsBadInput() {
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        try {
+            tree.bulkLoad(List.of(Map.entry(2, 1), Map.entry(1, 2)).iterator(), 1.0);
+            fail("keys out of order");
+        } catch (IllegalArgumentException e) {
+        }
+        for (double fill : new double[]{0, -1, 1.5, Double.NaN}) {
+            try {
+                new BPTree<Integer, Integer>(4).bulkLoad(List.of(Map.entry(1, 1)).iterator(), fill);
+                fail("fill factor " + fill);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        BPTree<Integer, Integer> full = new BPTree<>(4);
+        full.insert(1, 1);
+        try {
+            full.bulkLoad(List.of(Map.entry(2, 2)).iterator(), 1.0);
+            fail("tree not empty");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+
+    /**
+     * Builds a tree of random entries
+     *
+     * @param entries receives the key and id of each entry
+     */
+    static BPTree<Integer, Integer> randomTree(int b, int n, int range, Random rnd, List<int[]> entries) {
+        BPTree<Integer, Integer> tree = new BPTree<>(b);
+        for (int i = 0; i < n; i++) {
+            int key = rnd.nextInt(range);
+            tree.insert(key, i);
+            entries.add(new int[]{key, i});
+        }
+        return tree;
+    }
+
+
+    /**
+     * Drains a cursor, checking that key() names the key of each value
+     */
+    static List<Integer> drain(BPTree<Integer, Integer>.Cursor cursor, List<int[]> entries) {
+        List<Integer> ids = new ArrayList<>();
+        while (cursor.hasNext()) {
+            int id = cursor.next();
+            for (int[] e : entries)
+                if (e[1] == id) assertEquals(e[0], (int) cursor.key());
+            ids.add(id);
+        }
+        return ids;
+    }
+
+
+    @Test
+    public void cursorMatchesRangeSearch() {
+        Random rnd = new Random(3);
+        for (int b = 3; b <= 9; b++) {
+            List<int[]> entries = new ArrayList<>();
+            BPTree<Integer, Integer> tree = randomTree(b, 300, 40, rnd, entries);
+            for (int q = -1; q <= 40; q++) {
+                for (String c : new String[]{"==", ">=", "<="}) {
+                    assertEquals(c + q, tree.rangeSearch(q, c), drain(tree.cursor(q, c), entries));
+                    assertEquals(c + q, tree.rangeSearch(q, c), tree.stream(q, c).collect(Collectors.toList()));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void descendingCursorReversesAscendingOrder() {
+        Random rnd = new Random(4);
+        List<int[]> entries = new ArrayList<>();
+        BPTree<Integer, Integer> tree = randomTree(5, 400, 60, rnd, entries);
+        for (int lo = -1; lo <= 60; lo += 7) {
+            for (int hi = lo; hi <= 61; hi += 5) {
+                List<Integer> ascending = expected(entries, lo, hi);
+                Collections.reverse(ascending);
+                assertEquals(lo + ".." + hi, ascending, drain(tree.cursor(lo, true, hi, true, true), entries));
+            }
+        }
+    }
+
+
+    @Test
+    public void cursorStopsAtTheEndOfItsRange() {
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        for (int i = 0; i < 50; i++) tree.insert(i, i);
+        BPTree<Integer, Integer>.Cursor cursor = tree.cursor(45, ">=");
+        try {
+            cursor.key();
+            fail("key before next");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(3, cursor.skip(3));
+        assertEquals(48, (int) cursor.next());
+        assertEquals(1, cursor.skip(10));
+        assertFalse(cursor.hasNext());
+        try {
+            cursor.next();
+            fail("next past the end");
+        } catch (NoSuchElementException e) {
+        }
+        assertEquals(List.of(0, 1, 2), tree.stream(10, "<=").limit(3).collect(Collectors.toList()));
+        assertFalse(tree.cursor(7, "!=").hasNext());
+        assertFalse(new BPTree<Integer, Integer>(4).cursor(7, "==").hasNext());
+    }
+
+
+    @Test
+    public void boundedRangeSearchHonorsBoundsOffsetAndLimit() {
+        Random rnd = new Random(5);
+        for (int b = 3; b <= 8; b++) {
+            List<int[]> entries = new ArrayList<>();
+            BPTree<Integer, Integer> tree = randomTree(b, 300, 50, rnd, entries);
+            for (int trial = 0; trial < 200; trial++) {
+                int lo = rnd.nextInt(54) - 2, hi = lo + rnd.nextInt(20);
+                boolean loIn = rnd.nextBoolean(), hiIn = rnd.nextBoolean(), descending = rnd.nextBoolean();
+                List<Integer> all = expected(entries, loIn ? lo : lo + 1, hiIn ? hi : hi - 1);
+                if (descending) Collections.reverse(all);
+                int offset = rnd.nextInt(10), limit = rnd.nextInt(12) - 1;
+                List<Integer> page = all.subList(Math.min(offset, all.size()),
+                    limit < 0 ? all.size() : Math.min(all.size(), offset + limit));
+                assertEquals(lo + " " + hi + " " + offset + " " + limit, page,
+                    tree.rangeSearch(lo, loIn, hi, hiIn, descending, offset, limit));
+            }
+        }
+    }
+
+
+    @Test
+    public void boundedRangeSearchWithOpenOrEmptyBounds() {
+        List<int[]> entries = new ArrayList<>();
+        BPTree<Integer, Integer> tree = randomTree(4, 100, 30, new Random(6), entries);
+        assertEquals(expected(entries, Integer.MIN_VALUE, Integer.MAX_VALUE),
+            tree.rangeSearch(null, false, null, false, false, 0, -1));
+        assertEquals(expected(entries, 10, Integer.MAX_VALUE),
+            tree.rangeSearch(10, true, null, false, false, 0, -1));
+        assertTrue(tree.rangeSearch(20, true, 10, true, false, 0, -1).isEmpty());
+        assertTrue(tree.rangeSearch(10, false, 10, true, false, 0, -1).isEmpty());
+        assertTrue(tree.rangeSearch(0, true, 29, true, false, 0, 0).isEmpty());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeOffsetIsRejected() {
+        new BPTree<Integer, Integer>(4).rangeSearch(0, true, 1, true, false, -1, 10);
+    }
+
+
+    @Test
+    public void deleteMatchesReference() {
+        Random rnd = new Random(6);
+        for (int b = 3; b <= 9; b++) {
+            List<int[]> entries = new ArrayList<>();
+            int range = 1 + rnd.nextInt(60);
+            BPTree<Integer, Integer> tree = randomTree(b, 300, range, rnd, entries);
+            for (int step = 0; step < 1500; step++) {
+                int op = rnd.nextInt(10), key = rnd.nextInt(range);
+                if (op < 4) {
+                    tree.insert(key, 1000 + step);
+                    entries.add(new int[]{key, 1000 + step});
+                } else if (op < 8) {
+                    // delete one entry, present or not
+                    int id = entries.isEmpty() || rnd.nextBoolean() ? -1 : entries.get(rnd.nextInt(entries.size()))[1];
+                    boolean found = false;
+                    for (Iterator<int[]> it = entries.iterator(); it.hasNext(); ) {
+                        int[] e = it.next();
+                        if (e[1] == id) {
+                            key = e[0];
+                            it.remove();
+                            found = true;
+                            break;
+                        }
+                    }
+                    assertEquals(found, tree.delete(key, id));
+                } else {
+                    int count = 0;
+                    for (Iterator<int[]> it = entries.iterator(); it.hasNext(); ) {
+                        if (it.next()[0] == key) {
+                            it.remove();
+                            count++;
+                        }
+                    }
+                    assertEquals(count, tree.delete(key));
+                }
+                assertEquals(entries.size(), tree.size());
+                if (step % 50 == 0) assertSearches(tree, entries, range);
+            }
+            assertSearches(tree, entries, range);
+        }
+    }
+
+
+    @Test
+    public void deleteRemovesRunsOfEqualKeysAcrossLeaves() {
+        for (int b = 3; b <= 8; b++) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b);
+            List<int[]> entries = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                int key = i % 4 == 0 ? i : 7;
+                tree.insert(key, i);
+                entries.add(new int[]{key, i});
+            }
+            assertEquals(375, tree.delete(7));
+            entries.removeIf(e -> e[0] == 7);
+            assertSearches(tree, entries, 500);
+            assertEquals(0, tree.delete(7));
+        }
+    }
+
+
+    @Test
+    public void deletingEveryKeyEmptiesTheTree() {
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        for (int i = 0; i < 1000; i++) tree.insert(i, i);
+        int tall = tree.height();
+        for (int i = 0; i < 990; i++) tree.delete(i);
+        assertTrue(tree.height() < tall);
+        assertEquals(List.of(990, 991), tree.rangeSearch(991, "<=").subList(0, 2));
+        for (int i = 990; i < 1000; i++) assertTrue(tree.delete(i, i));
+        assertEquals(0, tree.height());
+        assertEquals(0, tree.size());
+        assertTrue(tree.rangeSearch(0, ">=").isEmpty());
+        tree.insert(5, 5);
+        assertEquals(List.of(5), tree.rangeSearch(5, "=="));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteOfNullKeyIsRejected() {
+        new BPTree<Integer, Integer>(4).delete(null);
+    }
+
+
+    @Test
+    public void countsRanksAndAggregatesFollowWrites() {
+        Random rnd = new Random(13);
+        for (int b = 3; b <= 8; b++) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b, v -> v);
+            List<int[]> entries = new ArrayList<>();
+            int range = 100;
+            for (int step = 0; step < 3000; step++) {
+                int key = rnd.nextInt(range);
+                if (rnd.nextInt(4) == 0) {
+                    tree.delete(key);
+                    entries.removeIf(e -> e[0] == key);
+                } else {
+                    tree.insert(key, step);
+                    entries.add(new int[]{key, step});
+                }
+            }
+            List<Integer> all = expected(entries, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            for (int i = 0; i < all.size(); i += 7)
+                assertEquals(all.get(i), tree.select(i).getValue());
+            for (int q = -1; q <= range; q++) {
+                assertEquals(expected(entries, Integer.MIN_VALUE, q - 1).size(), tree.rank(q));
+                int hi = q + rnd.nextInt(30);
+                List<Integer> in = expected(entries, q, hi);
+                assertEquals(in.size(), tree.countRange(q, true, hi, true));
+                assertEquals(expected(entries, q + 1, hi - 1).size(), tree.countRange(q, false, hi, false));
+                DoubleSummaryStatistics stats = tree.aggregate(q, true, hi, true);
+                assertEquals(in.size(), stats.getCount());
+                assertEquals(in.stream().mapToDouble(v -> v).sum(), stats.getSum(), 0);
+                if (!in.isEmpty()) {
+                    assertEquals(Collections.min(in), stats.getMin(), 0);
+                    assertEquals(Collections.max(in), stats.getMax(), 0);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void selectOutOfRangeAndAggregateWithoutMeasureAreRejected() {
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        tree.insert(1, 1);
+        for (int index : new int[]{-1, 1}) {
+            try {
+                tree.select(index);
+                fail("index " + index);
+            } catch (IndexOutOfBoundsException e) {
+            }
+        }
+        try {
+            tree.aggregate(0, true, 5, true);
+            fail("no measure");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+
+    @Test
+    public void insertAllMatchesInsertingOneByOne() {
+        Random rnd = new Random(14);
+        for (int b = 3; b <= 10; b++) {
+            BPTree<Integer, Integer> batched = new BPTree<>(b);
+            List<int[]> entries = new ArrayList<>();
+            int range = 1 + rnd.nextInt(200), id = 0;
+            for (int round = 0; round < 8; round++) {
+                // batches from empty to many times a node, unsorted, with repeats
+                List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+                int n = round == 0 ? 0 : rnd.nextInt(round * 60);
+                for (int i = 0; i < n; i++) {
+                    int key = rnd.nextInt(range);
+                    batch.add(Map.entry(key, id));
+                    entries.add(new int[]{key, id++});
+                }
+                batched.insertAll(batch);
+                assertEquals(entries.size(), batched.size());
+                assertSearches(batched, entries, range);
+                assertEquals(entries.size(), batched.countRange(null, false, null, false));
+            }
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void insertAllWithNullKeyIsRejected() {
+        List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+        batch.add(Map.entry(1, 1));
+        batch.add(new AbstractMap.SimpleEntry<>(null, 2));
+        new BPTree<Integer, Integer>(4).insertAll(batch);
+    }
+
+
+    @Test
+    public void snapshotsKeepTheirContentsThroughLaterWrites() {
+        Random rnd = new Random(15);
+        for (int b = 3; b <= 8; b++) {
+            List<int[]> entries = new ArrayList<>();
+            int range = 80;
+            BPTree<Integer, Integer> tree = randomTree(b, 200, range, rnd, entries);
+            List<BPTree<Integer, Integer>.Snapshot> snapshots = new ArrayList<>();
+            List<List<int[]>> contents = new ArrayList<>();
+            for (int round = 0; round < 10; round++) {
+                snapshots.add(tree.snapshot());
+                contents.add(new ArrayList<>(entries));
+                for (int i = 0; i < 100; i++) {
+                    int op = rnd.nextInt(10), id = 1000 * (round + 1) + i;
+                    if (op < 5) {
+                        int key = rnd.nextInt(range);
+                        tree.insert(key, id);
+                        entries.add(new int[]{key, id});
+                    } else if (op < 7) {
+                        // ascending keys past the maximum take the append path
+                        int key = range + round * 100 + i;
+                        tree.insert(key, id);
+                        entries.add(new int[]{key, id});
+                    } else if (op < 9) {
+                        int key = rnd.nextInt(range);
+                        tree.delete(key);
+                        entries.removeIf(e -> e[0] == key);
+                    } else {
+                        int key = rnd.nextInt(range);
+                        tree.insertAll(List.of(Map.entry(key, id)));
+                        entries.add(new int[]{key, id});
+                    }
+                }
+            }
+            assertSearches(tree, entries, range);
+            for (int i = 0; i < snapshots.size(); i++) {
+                BPTree<Integer, Integer>.Snapshot snapshot = snapshots.get(i);
+                List<int[]> then = contents.get(i);
+                assertEquals(then.size(), snapshot.size());
+                for (int q = -1; q <= range; q += 3) {
+                    assertEquals(expected(then, q, q), snapshot.rangeSearch(q, "=="));
+                    assertEquals(expected(then, q, Integer.MAX_VALUE), snapshot.rangeSearch(q, ">="));
+                    assertEquals(expected(then, Integer.MIN_VALUE, q), snapshot.rangeSearch(q, "<="));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void snapshotIsReadableWhileTheTreeIsWritten() throws InterruptedException {
+        BPTree<Integer, Integer> tree = new BPTree<>(6);
+        for (int i = 0; i < 5000; i++) tree.insert(i % 1000, i);
+        BPTree<Integer, Integer>.Snapshot snapshot = tree.snapshot();
+        List<Integer> before = snapshot.rangeSearch(0, ">=");
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get())
+                    assertEquals(before, snapshot.rangeSearch(0, ">="));
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        Random rnd = new Random(16);
+        for (int i = 0; i < 20000; i++) {
+            if (rnd.nextInt(3) == 0) tree.delete(rnd.nextInt(1000));
+            else tree.insert(rnd.nextInt(1000), -i);
+        }
+        done.set(true);
+        reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(before, snapshot.rangeSearch(0, ">="));
+    }
+
+
+    /**
+     * Splits a spliterator as far as it goes and concatenates the parts
+     * in encounter order
+     */
+    static void splitAndDrain(Spliterator<Integer> spliterator, List<Integer> out) {
+        Spliterator<Integer> prefix = spliterator.trySplit();
+        if (prefix == null) {
+            spliterator.forEachRemaining(out::add);
+            return;
+        }
+        splitAndDrain(prefix, out);
+        splitAndDrain(spliterator, out);
+    }
+
+
+    @Test
+    public void spliteratorPartsCoverTheRangeInOrder() {
+        List<int[]> entries = new ArrayList<>();
+        BPTree<Integer, Integer> tree = randomTree(6, 50000, 5000, new Random(16), entries);
+        int[][] bounds = {{-1, 5001}, {100, 4000}, {2500, 2500}, {4000, 100}};
+        for (int[] r : bounds) {
+            List<Integer> ascending = expected(entries, r[0], r[1]);
+            List<Integer> parts = new ArrayList<>();
+            splitAndDrain(tree.spliterator(r[0], true, r[1], true, false), parts);
+            assertEquals(ascending, parts);
+            List<Integer> descending = new ArrayList<>(ascending);
+            Collections.reverse(descending);
+            parts.clear();
+            splitAndDrain(tree.spliterator(r[0], true, r[1], true, true), parts);
+            assertEquals(descending, parts);
+        }
+    }
+
+
+    @Test
+    public void parallelScansMatchRangeSearch() {
+        List<int[]> entries = new ArrayList<>();
+        BPTree<Integer, Integer> tree = randomTree(8, 100000, 10000, new Random(17), entries);
+        for (int q : new int[]{-1, 10, 5000, 9999, 10000}) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, tree.rangeSearch(q, c), tree.parallelStream(q, c).collect(Collectors.toList()));
+        }
+        // concatenation is not commutative, so parts must be combined in key order
+        List<Integer> reduced = tree.parallelReduce(100, true, 9000, false, Collections.<Integer>emptyList(),
+            (list, v) -> {
+                List<Integer> next = new ArrayList<>(list);
+                next.add(v);
+                return next;
+            },
+            (left, right) -> {
+                List<Integer> next = new ArrayList<>(left);
+                next.addAll(right);
+                return next;
+            });
+        assertEquals(expected(entries, 100, 8999), reduced);
+        assertEquals(Integer.valueOf(-1), tree.parallelReduce(20000, true, null, false, -1, (r, v) -> v, (l, r) -> r));
+        AtomicLong sum = new AtomicLong();
+        tree.parallelForEach(null, false, null, false, sum::addAndGet);
+        assertEquals((long) entries.size() * (entries.size() - 1) / 2, sum.get());
+        BPTree<Integer, Integer>.Snapshot snapshot = tree.snapshot();
+        tree.insert(50, -1);
+        assertEquals(snapshot.rangeSearch(50, "<="), snapshot.parallelStream(50, "<=").collect(Collectors.toList()));
+    }
+
+
+    @Test
+    public void bloomFiltersDoNotChangeResults() {
+        Random rnd = new Random(19);
+        for (int b : new int[]{3, 5, 16}) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b, null, 10);
+            List<int[]> entries = new ArrayList<>();
+            // even keys only, so every odd key is absent
+            for (int i = 0; i < 1500; i++) {
+                int key = 2 * rnd.nextInt(300);
+                tree.insert(key, i);
+                entries.add(new int[]{key, i});
+            }
+            List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+            for (int i = 1500; i < 2000; i++) {
+                int key = 2 * rnd.nextInt(300);
+                batch.add(Map.entry(key, i));
+                entries.add(new int[]{key, i});
+            }
+            tree.insertAll(batch);
+            assertSearches(tree, entries, 600);
+            BPTree<Integer, Integer>.Snapshot snapshot = tree.snapshot();
+            List<int[]> entriesBefore = new ArrayList<>(entries);
+            // deleted keys may stay in the filters, but are not found
+            for (int key = 0; key < 600; key += 6) {
+                tree.delete(key);
+                final int k = key;
+                entries.removeIf(e -> e[0] == k);
+            }
+            assertSearches(tree, entries, 600);
+            // the snapshot still finds the deleted keys
+            for (int key = 0; key < 600; key += 6)
+                assertEquals(expected(entriesBefore, key, key), snapshot.rangeSearch(key, "=="));
+            // keys deleted and inserted again are found
+            tree.insert(6, -1);
+            entries.add(new int[]{6, -1});
+            assertSearches(tree, entries, 600);
+        }
+    }
+
+
+    @Test
+    public void bulkLoadedTreeKeepsBloomFilters() {
+        BPTree<Integer, Integer> tree = new BPTree<>(8, null, 10);
+        List<int[]> entries = new ArrayList<>();
+        tree.bulkLoad(sortedEntries(5000, 3000, new Random(20), entries).iterator(), 0.8);
+        assertSearches(tree, entries, 3000);
+        for (int i = 0; i < 500; i++) {
+            tree.insert(3000 + i, 10000 + i);
+            entries.add(new int[]{3000 + i, 10000 + i});
+        }
+        assertSearches(tree, entries, 3500);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBloomBitsAreRejected() {
+        new BPTree<Integer, Integer>(4, null, -1);
+    }
+
+
+    @Test
+    public void cachedResultsFollowWrites() {
+        Random rnd = new Random(21);
+        BPTree<Integer, Integer> tree = new BPTree<>(4);
+        tree.enableResultCache(50, 1 << 20);
+        List<int[]> entries = new ArrayList<>();
+        int id = 0;
+        for (int i = 0; i < 3000; i++) {
+            int key = rnd.nextInt(100);
+            switch (rnd.nextInt(5)) {
+                case 0:
+                    tree.insert(key, id);
+                    entries.add(new int[]{key, id++});
+                    break;
+                case 1:
+                    List<Map.Entry<Integer, Integer>> batch = new ArrayList<>();
+                    for (int j = 0; j < 3; j++) {
+                        int k = rnd.nextInt(100);
+                        batch.add(Map.entry(k, id));
+                        entries.add(new int[]{k, id++});
+                    }
+                    tree.insertAll(batch);
+                    break;
+                case 2:
+                    tree.delete(key);
+                    entries.removeIf(e -> e[0] == key);
+                    break;
+                default:
+                    // searches repeat, so most are answered by the cache
+                    int q = rnd.nextInt(20) * 5;
+                    assertEquals("== " + q, expected(entries, q, q), tree.rangeSearch(q, "=="));
+                    assertEquals(">= " + q, expected(entries, q, Integer.MAX_VALUE), tree.rangeSearch(q, ">="));
+                    assertEquals("<= " + q, expected(entries, Integer.MIN_VALUE, q), tree.rangeSearch(q, "<="));
+            }
+        }
+        ResultCache<Integer, Integer> cache = tree.resultCache();
+        assertTrue(cache.hits() > 0);
+        assertTrue(cache.invalidations() > 0);
+        assertTrue(cache.size() <= 50);
+        try {
+            tree.rangeSearch(5, ">=").add(1);
+            fail("cached results are read-only");
+        } catch (UnsupportedOperationException e) {
+        }
+        tree.disableResultCache();
+        assertEquals(null, tree.resultCache());
+        assertSearches(tree, entries, 100);
+    }
+
+
+    @Test
+    public void cacheEvictsToItsBounds() {
+        BPTree<Integer, Integer> tree = new BPTree<>(8);
+        for (int i = 0; i < 1000; i++) tree.insert(i, i);
+        tree.enableResultCache(1000, 4096);
+        for (int q = 0; q < 1000; q++) tree.rangeSearch(q, "==");
+        ResultCache<Integer, Integer> cache = tree.resultCache();
+        assertTrue(cache.bytes() <= 4096);
+        assertTrue(cache.evictions() > 0);
+        // a result bigger than the cache is returned but not kept
+        int size = cache.size();
+        assertEquals(1000, tree.rangeSearch(0, ">=").size());
+        assertTrue(cache.size() <= size);
+    }
+
+
+    @Test
+    public void cacheBoundsMustBePositive() {
+        for (long[] bounds : new long[][]{{0, 1}, {1, 0}, {-1, 1}}) {
+            try {
+                new BPTree<Integer, Integer>(4).enableResultCache((int) bounds[0], bounds[1]);
+                fail("bounds " + bounds[0] + ", " + bounds[1]);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+
+    @Test
+    public void savedTreeLoadsBackTheSame() throws IOException {
+        Random rnd = new Random(22);
+        for (int b : new int[]{3, 9, 64}) {
+            for (int n : new int[]{0, 1, 3000}) {
+                Path file = folder.newFile().toPath();
+                List<int[]> entries = new ArrayList<>();
+                BPTree<Integer, Integer> tree = randomTree(b, n, 400, rnd, entries);
+                tree.save(file, Codec.INTEGER, Codec.INTEGER);
+                BPTree<Integer, Integer> loaded = new BPTree<>(b, Integer::doubleValue, 10);
+                loaded.load(file, Codec.INTEGER, Codec.INTEGER);
+                assertSearches(loaded, entries, 400);
+                assertEquals(n, loaded.size());
+                assertEquals(tree.height(), loaded.height());
+                assertEquals(expected(entries, 0, 399).size(), loaded.countRange(0, true, 399, true));
+                // the loaded tree takes writes like any other
+                for (int i = 0; i < 300; i++) {
+                    int key = rnd.nextInt(400);
+                    loaded.insert(key, n + i);
+                    entries.add(new int[]{key, n + i});
+                }
+                loaded.delete(200);
+                entries.removeIf(e -> e[0] == 200);
+                assertSearches(loaded, entries, 400);
+            }
+        }
+    }
+
+
+    @Test
+    public void savedSnapshotKeepsItsContents() throws IOException {
+        Path file = folder.newFile().toPath();
+        List<int[]> entries = new ArrayList<>();
+        BPTree<Integer, Integer> tree = randomTree(6, 3000, 500, new Random(23), entries);
+        BPTree<Integer, Integer>.Snapshot snapshot = tree.snapshot();
+        tree.delete(7);
+        tree.insert(8, -1);
+        snapshot.save(file, Codec.INTEGER, Codec.INTEGER);
+        BPTree<Integer, Integer> loaded = new BPTree<>(6);
+        loaded.load(file, Codec.INTEGER, Codec.INTEGER);
+        assertSearches(loaded, entries, 500);
+    }
+
+
+    @Test
+    public void damagedSnapshotFilesAreRejected() throws IOException {
+        Path file = folder.newFile().toPath();
+        randomTree(5, 5000, 1000, new Random(24), new ArrayList<>()).save(file, Codec.INTEGER, Codec.INTEGER);
+        byte[] saved = Files.readAllBytes(file);
+        List<byte[]> damaged = new ArrayList<>();
+        for (int at : new int[]{0, 20, saved.length / 2, saved.length - 1}) {
+            byte[] bytes = saved.clone();
+            bytes[at] ^= 0x10;
+            damaged.add(bytes);
+        }
+        damaged.add(Arrays.copyOf(saved, saved.length / 2));
+        damaged.add(new byte[3]);
+        for (byte[] bytes : damaged) {
+            Files.write(file, bytes);
+            try {
+                new BPTree<Integer, Integer>(5).load(file, Codec.INTEGER, Codec.INTEGER);
+                fail("damaged file of " + bytes.length + " bytes");
+            } catch (IOException e) {
+            }
+        }
+    }
+
+
+    @Test
+    public void loadChecksTheTreeAndTheFileAgree() throws IOException {
+        Path file = folder.newFile().toPath();
+        randomTree(5, 100, 50, new Random(25), new ArrayList<>()).save(file, Codec.INTEGER, Codec.INTEGER);
+        BPTree<Integer, Integer> full = new BPTree<>(5);
+        full.insert(1, 1);
+        try {
+            full.load(file, Codec.INTEGER, Codec.INTEGER);
+            fail("tree not empty");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            new BPTree<Integer, Integer>(6).load(file, Codec.INTEGER, Codec.INTEGER);
+            fail("branching factor");
+        } catch (IllegalArgumentException e) {
+        }
+        BPTree<Long, Integer> longKeys = new BPTree<>(5);
+        try {
+            longKeys.load(file, Codec.LONG, Codec.INTEGER);
+            fail("key codec");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+
+    @Test
+    public void ascendingInsertsFillTheLeaves() {
+        for (int b : new int[]{3, 4, 5, 8, 64}) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b);
+            int n = 100000;
+            for (int i = 0; i < n; i++) tree.insert(i, i);
+            assertEquals(n, tree.size());
+            assertEquals(1.0, tree.fillFactor(), 0.005);
+            // the height a tree whose internal nodes have at least ceil(b / 2) children can reach
+            int leaves = (n + b - 2) / (b - 1), minChildren = (b + 1) / 2;
+            int height = 1;
+            for (long reach = 2; reach < leaves; reach *= minChildren) height++;
+            assertTrue("height " + tree.height() + " for b " + b, tree.height() <= height + 1);
+            assertEquals(Integer.valueOf(n - 1), tree.select(n - 1).getValue());
+        }
+    }
+
+
+    @Test
+    public void appendsMixedWithOtherInsertsMatchReference() {
+        Random rnd = new Random(25);
+        for (int b : new int[]{3, 6, 17}) {
+            BPTree<Integer, Integer> tree = new BPTree<>(b);
+            List<int[]> entries = new ArrayList<>();
+            int next = 0;
+            for (int i = 0; i < 2500; i++) {
+                // runs of appends, broken by keys below or equal to the last one
+                int key = rnd.nextInt(10) == 0 ? rnd.nextInt(next + 1) : next++;
+                tree.insert(key, i);
+                entries.add(new int[]{key, i});
+                if (i % 500 == 499) {
+                    // deleting the largest key moves the end of the tree back under the appends
+                    for (int k : new int[]{rnd.nextInt(next), next - 1}) {
+                        tree.delete(k);
+                        entries.removeIf(e -> e[0] == k);
+                    }
+                }
+            }
+            assertSearches(tree, entries, next);
+        }
+    }
+
+}
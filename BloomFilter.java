@@ -0,0 +1,103 @@
+package application;
+
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over the hashes of keys.
+ *
+ * The filter answers whether a key may have been added: a negative
+ * answer is exact, a positive one is wrong for a small fraction of the
+ * keys never added, about 1% at 10 bits per key. Keys cannot be
+ * removed; the filter is rebuilt from the keys that remain instead.
+ *
+ * Each key sets a few bits chosen by double hashing of one 64-bit hash,
+ * so a probe hashes the key once.
+ */
+class BloomFilter {
+
+    // Bits of the filter; the number of bits is a power of two
+    private final long[] words;
+
+    // Number of bits minus one
+    private final int mask;
+
+    // Number of bits set per key
+    private final int hashes;
+
+
+    /**
+     * Package constructor
+     *
+     * @param keys number of keys the filter is sized for
+     * @param bitsPerKey bits of filter per key
+     */
+    BloomFilter(int keys, int bitsPerKey) {
+        long bits = Math.max(64, (long) keys * bitsPerKey);
+        int size = (int) Math.min(1 << 30, Long.highestOneBit(bits - 1) << 1);
+        this.words = new long[size >>> 6];
+        this.mask = size - 1;
+        // the false positive rate is lowest with ln 2 hashes per bit of key
+        this.hashes = Math.max(1, Math.min(8, (int) Math.round(bitsPerKey * 0.693)));
+    }
+
+
+    /**
+     * Hashes a key; keys equal under compareTo must have equal hash codes
+     *
+     * @param key
+     * @return 64-bit hash
+     */
+    static long hash(Object key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return h ^ (h >>> 32);
+    }
+
+
+    /**
+     * Adds a key
+     *
+     * @param hash hash of the key
+     */
+    void add(long hash) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++, h1 += h2)
+            words[(h1 & mask) >>> 6] |= 1L << h1;
+    }
+
+
+    /**
+     * judge if a key may have been added
+     *
+     * @param hash hash of the key
+     * @return false if the key was certainly not added
+     */
+    boolean mightContain(long hash) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++, h1 += h2) {
+            if ((words[(h1 & mask) >>> 6] & (1L << h1)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Removes every key
+     */
+    void clear() {
+        Arrays.fill(words, 0);
+    }
+
+
+    /**
+     * Makes this filter hold the same keys as another of the same size
+     *
+     * @param other
+     */
+    void copyFrom(BloomFilter other) {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+}
@@ -0,0 +1,287 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of fixed-size file pages with clock eviction.
+ *
+ * All frames are slices of direct buffers allocated up front, so
+ * the memory used for cached pages is fixed and lives off the heap.
+ * A page must be pinned while it is being used; pinned pages are never
+ * evicted. Dirty pages are written back when they are evicted or on
+ * flush, unless stealing is turned off: then dirty pages stay in memory
+ * until flush, which lets a write-ahead log decide when they reach
+ * the file.
+ */
+class BufferPool {
+
+    // File the pages are read from and written to
+    private final FileChannel channel;
+
+    // Size of a page in bytes
+    private final int pageSize;
+
+    // One buffer per frame, each a slice of a larger direct buffer
+    private final ByteBuffer[] frames;
+
+    // Page held by each frame, -1 if the frame is free
+    private final long[] pageIds;
+
+    // Number of users currently holding each frame
+    private final int[] pins;
+
+    // True if the frame was modified since it was read or written back
+    private final boolean[] dirty;
+
+    // Clock reference bit, set on every access
+    private final boolean[] referenced;
+
+    // Number of dirty frames
+    private int dirtyCount;
+
+    // False if dirty pages must not be evicted
+    private boolean steal = true;
+
+    // Frame holding each cached page
+    private final Map<Long, Integer> table = new HashMap<>();
+
+    // Position of the clock hand
+    private int hand;
+
+
+    /**
+     * Visitor of the dirty pages of the pool
+     */
+    interface PageVisitor {
+
+        /**
+         * @param pageId page number
+         * @param page buffer holding the page
+         * @throws IOException
+         */
+        void visit(long pageId, ByteBuffer page) throws IOException;
+
+    }
+
+
+    /**
+     * Package constructor
+     *
+     * @param channel file holding the pages
+     * @param pageSize size of a page in bytes
+     * @param capacity number of pages kept in memory
+     */
+    BufferPool(FileChannel channel, int pageSize, int capacity) {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        frames = new ByteBuffer[capacity];
+        pageIds = new long[capacity];
+        pins = new int[capacity];
+        dirty = new boolean[capacity];
+        referenced = new boolean[capacity];
+        // a direct buffer holds at most 2GB, so large pools use several
+        int perChunk = Integer.MAX_VALUE / pageSize;
+        ByteBuffer memory = null;
+        for (int i = 0; i < capacity; i++) {
+            if (i % perChunk == 0)
+                memory = ByteBuffer.allocateDirect(Math.min(perChunk, capacity - i) * pageSize);
+            frames[i] = memory.slice((i % perChunk) * pageSize, pageSize);
+            pageIds[i] = -1;
+        }
+    }
+
+
+    /**
+     * Pins a page, reading it from the file if it is not cached
+     *
+     * @param pageId page number
+     * @return buffer holding the page; valid until the page is unpinned
+     * @throws IOException if the page cannot be read
+     */
+    ByteBuffer pin(long pageId) throws IOException {
+        Integer cached = table.get(pageId);
+        if (cached != null) {
+            int frame = cached;
+            pins[frame]++;
+            referenced[frame] = true;
+            return frames[frame];
+        }
+        int frame = victim();
+        ByteBuffer buf = frames[frame];
+        buf.clear();
+        long position = pageId * pageSize;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                // pages past the end of the file read as zeros
+                while (buf.hasRemaining()) buf.put((byte) 0);
+            }
+        }
+        buf.clear();
+        install(frame, pageId);
+        return buf;
+    }
+
+
+    /**
+     * Pins a new page without reading it; its contents are zeroed
+     *
+     * @param pageId page number
+     * @return buffer holding the page
+     * @throws IOException if a dirty page had to be written back
+     */
+    ByteBuffer pinNew(long pageId) throws IOException {
+        int frame = victim();
+        ByteBuffer buf = frames[frame];
+        int i = 0;
+        for (; i + Long.BYTES <= pageSize; i += Long.BYTES)
+            buf.putLong(i, 0L);
+        for (; i < pageSize; i++)
+            buf.put(i, (byte) 0);
+        install(frame, pageId);
+        markDirty(frame);
+        return buf;
+    }
+
+
+    /**
+     * Releases a pinned page
+     *
+     * @param pageId page number
+     * @param modified true if the page was written while pinned
+     * @throws IllegalStateException if the page is not pinned
+     */
+    void unpin(long pageId, boolean modified) {
+        Integer cached = table.get(pageId);
+        if (cached == null || pins[cached] == 0)
+            throw new IllegalStateException("Page not pinned: " + pageId);
+        int frame = cached;
+        pins[frame]--;
+        if (modified) markDirty(frame);
+    }
+
+
+    /**
+     * Writes every dirty page back to the file
+     *
+     * @throws IOException if a page cannot be written
+     */
+    void flush() throws IOException {
+        for (int i = 0; i < frames.length; i++) {
+            if (pageIds[i] >= 0 && dirty[i])
+                writeBack(i);
+        }
+    }
+
+
+    /**
+     * Calls the visitor for every dirty page, in frame order
+     *
+     * @param visitor
+     * @throws IOException if the visitor throws it
+     */
+    void forEachDirty(PageVisitor visitor) throws IOException {
+        for (int i = 0; i < frames.length; i++) {
+            if (pageIds[i] >= 0 && dirty[i])
+                visitor.visit(pageIds[i], frames[i]);
+        }
+    }
+
+
+    /**
+     * Allows or forbids evicting dirty pages
+     *
+     * @param steal false to keep dirty pages in memory until flush
+     */
+    void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+
+    /**
+     * Gets the number of dirty pages
+     *
+     * @return pages modified since they were read or written back
+     */
+    int dirtyCount() {
+        return dirtyCount;
+    }
+
+
+    /**
+     * Gets the number of frames in the pool
+     *
+     * @return capacity in pages
+     */
+    int capacity() {
+        return frames.length;
+    }
+
+
+    /**
+     * Maps a page to a frame and pins it once
+     */
+    private void install(int frame, long pageId) {
+        pageIds[frame] = pageId;
+        pins[frame] = 1;
+        dirty[frame] = false;
+        referenced[frame] = true;
+        table.put(pageId, frame);
+    }
+
+
+    /**
+     * Finds a frame to reuse with the clock algorithm: frames are
+     * swept in a circle, a referenced frame gets a second chance,
+     * pinned frames are skipped.
+     *
+     * @return index of a free frame
+     * @throws IOException if the evicted page cannot be written back
+     * @throws IllegalStateException if every frame is pinned
+     */
+    private int victim() throws IOException {
+        for (int step = 0; step < 2 * frames.length; step++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pageIds[frame] < 0) return frame;
+            if (pins[frame] > 0 || (dirty[frame] && !steal)) continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (dirty[frame]) writeBack(frame);
+            table.remove(pageIds[frame]);
+            pageIds[frame] = -1;
+            return frame;
+        }
+        throw new IllegalStateException("No page can be evicted from the buffer pool");
+    }
+
+
+    /**
+     * Marks a frame as modified
+     */
+    private void markDirty(int frame) {
+        if (!dirty[frame]) {
+            dirty[frame] = true;
+            dirtyCount++;
+        }
+    }
+
+    /**
+     * Writes one frame back to its page in the file
+     */
+    private void writeBack(int frame) throws IOException {
+        ByteBuffer buf = frames[frame].duplicate().clear();
+        long position = pageIds[frame] * pageSize;
+        while (buf.hasRemaining())
+            channel.write(buf, position + buf.position());
+        dirty[frame] = false;
+        dirtyCount--;
+    }
+
+}
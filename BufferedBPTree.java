@@ -0,0 +1,706 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Implementation of a write-optimized B+ tree in the style of a
+ * B-epsilon tree, for ingestion that is mostly inserts.
+ *
+ * Every internal node keeps a buffer of pending inserts, called
+ * messages, for its subtree, held in one bucket per child. An insert
+ * only adds a message to a bucket of the root. When a buffer fills,
+ * the bucket with the most messages is flushed to its child as one
+ * batch: a leaf merges the whole run at once and splits into as many
+ * leaves as it needs, and an internal node adds the run to its own
+ * buckets, flushing in turn if its buffer fills. A leaf is thus written
+ * once per batch of messages rather than once per insert, and splits
+ * reach the internal nodes once per flush.
+ *
+ * Searches see the buffered messages: on the way down they take the
+ * messages in range from the bucket of each child they enter and merge
+ * them with the entries of the leaves. rangeSearch returns the same
+ * values in the same order as BPTree would after the same inserts.
+ * Buckets are sorted only when they are flushed or searched, so a
+ * search may modify the tree and the tree is not thread-safe, even
+ * for searches alone.
+ *
+ * @param <K> key - expect the value to compare for each item
+ * @param <V> value - expect a user-defined type that stores all data for an item
+ */
+public class BufferedBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
+
+    // Runs shorter than this are sorted by insertion
+    private static final int INSERTION_SORT_RUN = 16;
+
+    // Root of the tree
+    private Node root;
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private int branchingFactor;
+
+    // Number of messages an internal node buffers before it flushes
+    private final int bufferSize;
+
+    // Number of entries, whether buffered or in leaves
+    private int size;
+
+
+    /**
+     * Public constructor with buffers of 16 messages per child
+     *
+     * @param branchingFactor
+     */
+    public BufferedBPTree(int branchingFactor) {
+        this(branchingFactor, 16 * branchingFactor);
+    }
+
+
+    /**
+     * Public constructor
+     *
+     * Larger buffers move more messages per child on each flush, which
+     * makes inserts cheaper, and leave more messages for searches to
+     * merge, which makes searches dearer.
+     *
+     * @param branchingFactor
+     * @param bufferSize messages an internal node holds before it flushes
+     */
+    public BufferedBPTree(int branchingFactor, int bufferSize) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Illegal buffer size: " + bufferSize);
+        this.branchingFactor = branchingFactor;
+        this.bufferSize = bufferSize;
+    }
+
+
+    /**
+     * Inserts the key and value in the tree; the pair is buffered at the
+     * root and reaches its leaf with a later flush
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     * @throws IllegalArgumentException if the key is null
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void insert(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        size++;
+        if (root == null)
+            root = new LeafNode();
+        Split split;
+        if (root instanceof BufferedBPTree.LeafNode) {
+            split = ((LeafNode) root).merge((K[]) new Comparable[] {key}, (V[]) new Object[] {value}, 0, 1);
+        } else {
+            InternalNode top = (InternalNode) root;
+            top.append(key, value);
+            split = top.buffered >= bufferSize ? flush(top) : null;
+        }
+        while (split != null) {
+            // the root split: a new root takes it and its new siblings
+            InternalNode top = new InternalNode();
+            List<Node> children = new ArrayList<>(split.nodes.size() + 1);
+            List<Bucket> buckets = new ArrayList<>(split.nodes.size() + 1);
+            children.add(root);
+            children.addAll(split.nodes);
+            for (int i = 0; i < children.size(); i++) buckets.add(new Bucket());
+            split = top.rebuild(split.keys, children, buckets);
+            root = top;
+        }
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments, including buffered ones.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Values are returned in ascending key order.
+     *
+     * If key is null or not found, return empty list.
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<V> rangeSearch(K key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        if (key == null || comparator == null || root == null)
+            return ret;
+        K[] noKeys = (K[]) new Comparable[0];
+        V[] noValues = (V[]) new Object[0];
+        switch (comparator) {
+            case "==":
+                root.collect(key, key, noKeys, noValues, 0, 0, ret);
+                return ret;
+            case ">=":
+                root.collect(key, null, noKeys, noValues, 0, 0, ret);
+                return ret;
+            case "<=":
+                root.collect(null, key, noKeys, noValues, 0, 0, ret);
+                return ret;
+            default:
+                return ret;
+        }
+    }
+
+
+    /**
+     * Gets the number of entries in the tree
+     *
+     * @return number of key-value pairs, buffered or not
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Moves the messages buffered for the child with the most of them
+     * down to that child, which takes them as one batch
+     *
+     * @param node
+     * @return new siblings of the node if it split, else null
+     */
+    private Split flush(InternalNode node) {
+        int c = 0;
+        for (int i = 1; i <= node.size; i++) {
+            if (node.buckets[i].size > node.buckets[c].size) c = i;
+        }
+        Bucket bucket = node.buckets[c];
+        bucket.sort();
+        node.buffered -= bucket.size;
+        Split split = node.children[c].push(bucket.keys, bucket.values, 0, bucket.size);
+        bucket.clear();
+        if (split == null)
+            return null;
+        // the new siblings of the child follow it, with empty buckets
+        List<K> keys = new ArrayList<>(node.size + split.keys.size());
+        List<Node> children = new ArrayList<>(node.size + 1 + split.nodes.size());
+        List<Bucket> buckets = new ArrayList<>(node.size + 1 + split.nodes.size());
+        for (int i = 0; i <= node.size; i++) {
+            if (i > 0) keys.add(node.keys[i - 1]);
+            children.add(node.children[i]);
+            buckets.add(node.buckets[i]);
+            if (i == c) {
+                keys.addAll(split.keys);
+                children.addAll(split.nodes);
+                for (int k = 0; k < split.nodes.size(); k++) buckets.add(new Bucket());
+            }
+        }
+        return node.rebuild(keys, children, buckets);
+    }
+
+
+    /**
+     * Sorts a run of messages by key; messages with equal keys are
+     * ordered newest first
+     *
+     * @param keys keys of the messages, in order of arrival
+     * @param from index of the first message
+     * @param to index past the last message
+     * @return indexes of the messages in sorted order
+     */
+    private static <K extends Comparable<K>> int[] sortRun(K[] keys, int from, int to) {
+        int m = to - from;
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++) order[i] = to - 1 - i;
+        sortRun(keys, order, new int[m], 0, m);
+        return order;
+    }
+
+
+    /**
+     * Stable merge sort of indexes of keys
+     */
+    private static <K extends Comparable<K>> void sortRun(K[] keys, int[] order, int[] tmp, int lo, int hi) {
+        if (hi - lo <= INSERTION_SORT_RUN) {
+            for (int i = lo + 1; i < hi; i++) {
+                int x = order[i], j = i;
+                for (; j > lo && keys[order[j - 1]].compareTo(keys[x]) > 0; j--)
+                    order[j] = order[j - 1];
+                order[j] = x;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        sortRun(keys, order, tmp, lo, mid);
+        sortRun(keys, order, tmp, mid, hi);
+        if (keys[order[mid - 1]].compareTo(keys[order[mid]]) <= 0)
+            return;
+        for (int i = lo, j = mid, k = lo; k < hi; k++) {
+            if (j == hi || (i < mid && keys[order[i]].compareTo(keys[order[j]]) <= 0))
+                tmp[k] = order[i++];
+            else
+                tmp[k] = order[j++];
+        }
+        System.arraycopy(tmp, lo, order, lo, hi - lo);
+    }
+
+
+    /**
+     * convert BufferedBPTree to string, one line per level; buffered
+     * messages are not shown
+     *
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof BufferedBPTree.InternalNode)
+                        nextQueue.add(Arrays.asList(((InternalNode) node).children)
+                            .subList(0, node.size + 1));
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * The nodes a node split into, other than itself, with the keys
+     * between them
+     */
+    private class Split {
+
+        // keys.get(i) separates nodes.get(i) from the node before it
+        final List<K> keys = new ArrayList<>();
+        final List<Node> nodes = new ArrayList<>();
+
+    } // End of class Split
+
+
+    /**
+     * This abstract class represents any type of node in the tree
+     * This class is a super class of the LeafNode and InternalNode types.
+     */
+    private abstract class Node {
+
+        // Array of keys, only the first size entries are in use
+        K[] keys;
+
+        // Number of keys stored in the node
+        int size;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node() {
+            // one slot more than allowed so an overflowing node can be split
+            keys = (K[]) new Comparable[branchingFactor];
+        }
+
+        /**
+         * Finds the position of the first key that is not less than the given key
+         *
+         * @param key
+         * @return index of the first key >= key, or size if there is none
+         */
+        int lowerBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the position of the first key that is greater than the given key
+         *
+         * @param key
+         * @return index of the first key > key, or size if there is none
+         */
+        int upperBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Hands the node a run of messages routed to it
+         *
+         * @param keys keys of the messages, sorted as in a bucket
+         * @param values values of the messages
+         * @param from index of the first message
+         * @param to index past the last message
+         * @return new siblings of the node if it split, else null
+         */
+        abstract Split push(K[] keys, V[] values, int from, int to);
+
+        /**
+         * Adds the values of the subtree whose keys lie between two
+         * bounds, in ascending key order, merged with the messages
+         * routed to the subtree by the nodes above
+         *
+         * @param from lower bound, inclusive, or null for none
+         * @param to upper bound, inclusive, or null for none
+         * @param keys keys of the messages from above, sorted, all
+         *        between the bounds
+         * @param values values of the messages from above
+         * @param mfrom index of the first message for this subtree
+         * @param mto index past the last message for this subtree
+         * @param ret list receiving the values
+         */
+        abstract void collect(K from, K to, K[] keys, V[] values, int mfrom, int mto, List<V> ret);
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(keys[i]);
+            }
+            return sb.append(']').toString();
+        }
+
+    } // End of abstract class Node
+
+    /**
+     * The messages an internal node buffers for one child. Messages are
+     * appended as they arrive and sorted when the bucket is next read:
+     * by key and, among equal keys, newest first, as BPTree orders
+     * duplicates.
+     */
+    private class Bucket {
+
+        // Keys and values of the messages
+        K[] keys;
+        V[] values;
+
+        // Number of messages
+        int size;
+
+        // Number of leading messages that are sorted; the others are in
+        // order of arrival and newer than all of them
+        int sorted;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Bucket() {
+            keys = (K[]) new Comparable[4];
+            values = (V[]) new Object[4];
+        }
+
+        /**
+         * Adds a message newer than every message in the bucket
+         *
+         * @param key
+         * @param value
+         */
+        void add(K key, V value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Sorts the messages that arrived since the last sort and merges
+         * them in front of the older messages with equal keys
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void sort() {
+            if (sorted == size)
+                return;
+            int[] order = sortRun(keys, sorted, size);
+            int tail = size - sorted;
+            K[] newKeys = (K[]) new Comparable[keys.length];
+            V[] newValues = (V[]) new Object[keys.length];
+            for (int i = 0, j = 0, k = 0; k < size; k++) {
+                if (i == sorted || (j < tail && keys[order[j]].compareTo(keys[i]) <= 0)) {
+                    newKeys[k] = keys[order[j]];
+                    newValues[k] = values[order[j++]];
+                } else {
+                    newKeys[k] = keys[i];
+                    newValues[k] = values[i++];
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+            sorted = size;
+        }
+
+        /**
+         * @return index of the first message whose key is >= key
+         */
+        int lowerBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * @return index of the first message whose key is > key
+         */
+        int upperBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+            sorted = 0;
+        }
+
+    } // End of class Bucket
+
+
+    /**
+     * This class represents an internal node of the tree, with its
+     * buffer of messages.
+     */
+    private class InternalNode extends Node {
+
+        // Array of children nodes, size + 1 entries are in use
+        Node[] children;
+
+        // Buffered messages of each child, parallel to children
+        Bucket[] buckets;
+
+        // Number of buffered messages
+        int buffered;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        InternalNode() {
+            super();
+            children = (Node[]) new BufferedBPTree.Node[branchingFactor + 1];
+            buckets = (Bucket[]) new BufferedBPTree.Bucket[branchingFactor + 1];
+        }
+
+        /**
+         * Adds a message to the bucket of the child it is routed to
+         *
+         * @param key
+         * @param value
+         */
+        void append(K key, V value) {
+            buckets[lowerBound(key)].add(key, value);
+            buffered++;
+        }
+
+        Split push(K[] keys, V[] values, int from, int to) {
+            // oldest first, so that the order of arrival follows age
+            for (int i = to - 1; i >= from; i--)
+                append(keys[i], values[i]);
+            return buffered >= bufferSize ? flush(this) : null;
+        }
+
+        /**
+         * Replaces the children of the node with at least as many, splitting
+         * the node evenly into as many nodes as they need
+         *
+         * @param keys keys between the children
+         * @param children new children
+         * @param buckets buffered messages of each new child
+         * @return new siblings of the node if it split, else null
+         */
+        Split rebuild(List<K> keys, List<Node> children, List<Bucket> buckets) {
+            int n = children.size();
+            int groups = (n + branchingFactor - 1) / branchingFactor;
+            Split split = groups > 1 ? new Split() : null;
+            for (int g = 0, from = 0; g < groups; g++) {
+                int take = (n - from) / (groups - g);
+                InternalNode node = g == 0 ? this : new InternalNode();
+                node.buffered = 0;
+                for (int i = 0; i < take; i++) {
+                    node.children[i] = children.get(from + i);
+                    node.buckets[i] = buckets.get(from + i);
+                    node.buffered += node.buckets[i].size;
+                    if (i > 0) node.keys[i - 1] = keys.get(from + i - 1);
+                }
+                if (g == 0) {
+                    Arrays.fill(this.children, take, this.children.length, null);
+                    Arrays.fill(this.buckets, take, this.buckets.length, null);
+                    Arrays.fill(this.keys, take - 1, this.keys.length, null);
+                } else {
+                    split.keys.add(keys.get(from - 1));
+                    split.nodes.add(node);
+                }
+                node.size = take - 1;
+                from += take;
+            }
+            return split;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void collect(K from, K to, K[] keys, V[] values, int mfrom, int mto, List<V> ret) {
+            int first = from == null ? 0 : lowerBound(from);
+            int last = to == null ? size : upperBound(to);
+            for (int c = first, i = mfrom; c <= last; c++) {
+                // the messages from above routed to child c, as append routes them
+                int j = i;
+                while (j < mto && (c == size || keys[j].compareTo(this.keys[c]) <= 0)) j++;
+                // messages of the bucket in range; they are older than those from above
+                Bucket bucket = buckets[c];
+                bucket.sort();
+                int b = from == null ? 0 : bucket.lowerBound(from);
+                int end = to == null ? bucket.size : bucket.upperBound(to);
+                if (b == end) {
+                    children[c].collect(from, to, keys, values, i, j, ret);
+                    i = j;
+                    continue;
+                }
+                int total = j - i + end - b;
+                K[] mk = (K[]) new Comparable[total];
+                V[] mv = (V[]) new Object[total];
+                for (int a = i, k = 0; k < total; k++) {
+                    if (b == end || (a < j && keys[a].compareTo(bucket.keys[b]) <= 0)) {
+                        mk[k] = keys[a];
+                        mv[k] = values[a++];
+                    } else {
+                        mk[k] = bucket.keys[b];
+                        mv[k] = bucket.values[b++];
+                    }
+                }
+                children[c].collect(from, to, mk, mv, 0, total, ret);
+                i = j;
+            }
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree.
+     */
+    private class LeafNode extends Node {
+
+        // Array of values, parallel to keys
+        V[] values;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings("unchecked")
+        LeafNode() {
+            super();
+            this.values = (V[]) new Object[branchingFactor];
+        }
+
+        Split push(K[] keys, V[] values, int from, int to) {
+            return merge(keys, values, from, to);
+        }
+
+        /**
+         * Merges a run of messages into the leaf, splitting it evenly into
+         * as many leaves as the entries need
+         *
+         * @param keys keys of the messages, sorted as in a bucket
+         * @param values values of the messages
+         * @param from index of the first message
+         * @param to index past the last message
+         * @return new siblings of the leaf if it split, else null
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Split merge(K[] keys, V[] values, int from, int to) {
+            int total = size + to - from;
+            K[] allKeys = (K[]) new Comparable[total];
+            V[] allValues = (V[]) new Object[total];
+            // messages go before the entries with equal keys: they are newer
+            for (int i = from, j = 0, k = 0; k < total; k++) {
+                if (j == size || (i < to && keys[i].compareTo(this.keys[j]) <= 0)) {
+                    allKeys[k] = keys[i];
+                    allValues[k] = values[i++];
+                } else {
+                    allKeys[k] = this.keys[j];
+                    allValues[k] = this.values[j++];
+                }
+            }
+            int pieces = (total + branchingFactor - 2) / (branchingFactor - 1);
+            Split split = pieces > 1 ? new Split() : null;
+            LeafNode leaf = this;
+            for (int p = 0, start = 0; p < pieces; p++) {
+                int take = (total - start) / (pieces - p);
+                if (p > 0) {
+                    leaf = new LeafNode();
+                    split.keys.add(allKeys[start - 1]);
+                    split.nodes.add(leaf);
+                }
+                System.arraycopy(allKeys, start, leaf.keys, 0, take);
+                System.arraycopy(allValues, start, leaf.values, 0, take);
+                Arrays.fill(leaf.keys, take, leaf.keys.length, null);
+                Arrays.fill(leaf.values, take, leaf.values.length, null);
+                leaf.size = take;
+                start += take;
+            }
+            return split;
+        }
+
+        void collect(K from, K to, K[] keys, V[] values, int mfrom, int mto, List<V> ret) {
+            int j = from == null ? 0 : lowerBound(from);
+            int end = to == null ? size : upperBound(to);
+            for (int i = mfrom; i < mto || j < end; ) {
+                if (j == end || (i < mto && keys[i].compareTo(this.keys[j]) <= 0))
+                    ret.add(values[i++]);
+                else
+                    ret.add(this.values[j++]);
+            }
+        }
+
+    } // End of class LeafNode
+
+}
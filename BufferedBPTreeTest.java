@@ -0,0 +1,107 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filename:   BufferedBPTreeTest.java
+ *
+ * JUnit tests of BufferedBPTree against a BPTree after the same inserts,
+ * with buffers small enough that flushes cascade through several levels.
+ */
+public class BufferedBPTreeTest {
+
+    /**
+     * Checks every comparator of rangeSearch for every key of the range
+     * and one key past each end
+     */
+    static void assertSameSearches(BufferedBPTree<Integer, Integer> tree, BPTree<Integer, Integer> reference,
+                                   int range) {
+        for (int q = -1; q <= range; q++) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void matchesBPTree() {
+        Random rnd = new Random(24);
+        for (int b : new int[]{3, 4, 7, 16}) {
+            for (int bufferSize : new int[]{1, 5, 16 * b}) {
+                for (int range : new int[]{3, 100, 5000}) {
+                    BufferedBPTree<Integer, Integer> tree = new BufferedBPTree<>(b, bufferSize);
+                    BPTree<Integer, Integer> reference = new BPTree<>(b);
+                    for (int i = 0; i < 3000; i++) {
+                        int key = rnd.nextInt(range);
+                        tree.insert(key, i);
+                        reference.insert(key, i);
+                    }
+                    assertEquals(3000, tree.size());
+                    assertSameSearches(tree, reference, Math.min(range, 300));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void searchesBetweenInsertsSeeBufferedEntries() {
+        Random rnd = new Random(25);
+        BufferedBPTree<Integer, Integer> tree = new BufferedBPTree<>(4, 8);
+        BPTree<Integer, Integer> reference = new BPTree<>(4);
+        for (int i = 0; i < 3000; i++) {
+            // mostly ascending keys, with some far behind
+            int key = rnd.nextInt(4) == 0 ? rnd.nextInt(i + 1) : i;
+            tree.insert(key, i);
+            reference.insert(key, i);
+            if (i % 97 == 0) {
+                int q = rnd.nextInt(i + 1);
+                for (String c : new String[]{"==", ">=", "<="})
+                    assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+            }
+        }
+        assertSameSearches(tree, reference, 3000);
+    }
+
+
+    @Test
+    public void equalKeysAreReturnedNewestFirst() {
+        BufferedBPTree<String, Integer> tree = new BufferedBPTree<>(3, 2);
+        for (int i = 0; i < 500; i++) tree.insert(i % 2 == 0 ? "a" : "b", i);
+        int previous = Integer.MAX_VALUE;
+        for (int v : tree.rangeSearch("a", "==")) {
+            assertTrue(v % 2 == 0 && v < previous);
+            previous = v;
+        }
+        assertEquals(500, tree.rangeSearch("b", "<=").size());
+    }
+
+
+    @Test
+    public void emptyTreeNullKeyOrBadComparatorGivesEmptyList() {
+        BufferedBPTree<Integer, Integer> tree = new BufferedBPTree<>(4);
+        assertTrue(tree.rangeSearch(1, "==").isEmpty());
+        tree.insert(1, 1);
+        assertTrue(tree.rangeSearch(null, "==").isEmpty());
+        assertTrue(tree.rangeSearch(1, null).isEmpty());
+        assertTrue(tree.rangeSearch(1, "<").isEmpty());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullKeyIsRejected() {
+        new BufferedBPTree<Integer, Integer>(4).insert(null, 1);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveBufferSizeIsRejected() {
+        new BufferedBPTree<Integer, Integer>(4, 0);
+    }
+
+}
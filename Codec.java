@@ -0,0 +1,106 @@
+package application;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-width binary encoding of keys or values, used by the tree
+ * variants that keep their entries outside of Java objects.
+ *
+ * Values are read and written at absolute offsets so that a codec
+ * never changes the position or limit of the buffer it is given.
+ *
+ * @param <T> type of the encoded values
+ */
+public interface Codec<T> {
+
+    /**
+     * Gets the number of bytes every encoded value takes
+     *
+     * @return encoded width in bytes
+     */
+    int size();
+
+    /**
+     * Writes a value at the given offset
+     *
+     * @param buf buffer to write to
+     * @param offset absolute position of the first byte
+     * @param value value to encode
+     */
+    void write(ByteBuffer buf, int offset, T value);
+
+    /**
+     * Reads a value from the given offset
+     *
+     * @param buf buffer to read from
+     * @param offset absolute position of the first byte
+     * @return decoded value
+     */
+    T read(ByteBuffer buf, int offset);
+
+    /**
+     * Compares an encoded value with a value, in the order of
+     * compareTo. The default decodes the encoded value first; codecs
+     * of keys compare in place so that searches allocate nothing.
+     *
+     * @param buf buffer to read from
+     * @param offset absolute position of the first byte
+     * @param value value to compare with, which must be Comparable
+     * @return negative, zero or positive as the encoded value is less
+     *         than, equal to or greater than value
+     */
+    @SuppressWarnings("unchecked")
+    default int compare(ByteBuffer buf, int offset, T value) {
+        return ((Comparable<T>) read(buf, offset)).compareTo(value);
+    }
+
+
+    // Codec for Long values, 8 bytes
+    Codec<Long> LONG = new Codec<Long>() {
+        public int size() {
+            return Long.BYTES;
+        }
+        public void write(ByteBuffer buf, int offset, Long value) {
+            buf.putLong(offset, value);
+        }
+        public Long read(ByteBuffer buf, int offset) {
+            return buf.getLong(offset);
+        }
+        public int compare(ByteBuffer buf, int offset, Long value) {
+            return Long.compare(buf.getLong(offset), value);
+        }
+    };
+
+    // Codec for Integer values, 4 bytes
+    Codec<Integer> INTEGER = new Codec<Integer>() {
+        public int size() {
+            return Integer.BYTES;
+        }
+        public void write(ByteBuffer buf, int offset, Integer value) {
+            buf.putInt(offset, value);
+        }
+        public Integer read(ByteBuffer buf, int offset) {
+            return buf.getInt(offset);
+        }
+        public int compare(ByteBuffer buf, int offset, Integer value) {
+            return Integer.compare(buf.getInt(offset), value);
+        }
+    };
+
+    // Codec for Double values, 8 bytes
+    Codec<Double> DOUBLE = new Codec<Double>() {
+        public int size() {
+            return Double.BYTES;
+        }
+        public void write(ByteBuffer buf, int offset, Double value) {
+            buf.putDouble(offset, value);
+        }
+        public Double read(ByteBuffer buf, int offset) {
+            return buf.getDouble(offset);
+        }
+        public int compare(ByteBuffer buf, int offset, Double value) {
+            return Double.compare(buf.getDouble(offset), value);
+        }
+    };
+
+}
@@ -0,0 +1,557 @@
+package application;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Thread-safe implementation of a B+ tree using optimistic lock coupling.
+ *
+ * Every node carries a versioned latch. Readers never write shared
+ * state: they remember the version of a node, read it, and check the
+ * version again afterwards, restarting if a writer got in between.
+ * Writers descend the same way and only take the latches of the node
+ * they modify and, when it has to be split, of its parent. Full nodes
+ * are split on the way down, so a split never propagates upwards and
+ * no writer holds more than two latches at once.
+ *
+ * Entries only ever move to the right sibling when a node splits,
+ * so range scans follow the leaf chain forwards and a leaf that
+ * changed under a scan is simply read again.
+ *
+ * @param <K> key - expect the value to compare for each item
+ * @param <V> value - expect a user-defined type that stores all data for an item
+ */
+public class ConcurrentBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
+
+    // Root of the tree, replaced only while rootLatch is held
+    private volatile Node root;
+
+    // Latch guarding the root reference, acting as the parent of the root
+    private final Latch rootLatch = new Latch();
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private final int branchingFactor;
+
+
+    /**
+     * Public constructor
+     *
+     * @param branchingFactor must be at least 4 so that a full
+     *        internal node can be split with a key on each side
+     */
+    public ConcurrentBPTree(int branchingFactor) {
+        if (branchingFactor <= 3) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        this.branchingFactor = branchingFactor;
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     * @throws IllegalArgumentException if key is null
+     */
+    @Override
+    public void insert(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        restart:
+        while (true) {
+            long rootVersion = rootLatch.readLock();
+            if (rootVersion < 0) continue;
+            Node node = root;
+            if (node == null) {
+                if (!rootLatch.upgrade(rootVersion)) continue;
+                LeafNode leaf = new LeafNode();
+                leaf.keys[0] = key;
+                leaf.values[0] = value;
+                leaf.size = 1;
+                root = leaf;
+                rootLatch.writeUnlock();
+                return;
+            }
+            long version = node.readLock();
+            if (version < 0 || !rootLatch.validate(rootVersion)) continue;
+
+            // parentLatch is rootLatch while node is the root
+            Latch parentLatch = rootLatch;
+            InternalNode parent = null;
+            long parentVersion = rootVersion;
+            int childIndex = 0;
+            while (true) {
+                if (node.isFull()) {
+                    if (!parentLatch.upgrade(parentVersion)) continue restart;
+                    if (!node.upgrade(version)) {
+                        parentLatch.writeUnlock();
+                        continue restart;
+                    }
+                    splitChild(parent, childIndex, node);
+                    node.writeUnlock();
+                    parentLatch.writeUnlock();
+                    continue restart;
+                }
+                if (node instanceof ConcurrentBPTree.LeafNode) {
+                    if (!node.upgrade(version)) continue restart;
+                    ((LeafNode) node).insert(key, value);
+                    node.writeUnlock();
+                    return;
+                }
+                InternalNode internal = (InternalNode) node;
+                int i = internal.lowerBound(key);
+                Node child = i < 0 ? null : internal.children[i];
+                if (child == null) continue restart;
+                long childVersion = child.readLock();
+                if (childVersion < 0 || !internal.validate(version)) continue restart;
+                parentLatch = internal;
+                parent = internal;
+                parentVersion = version;
+                childIndex = i;
+                node = child;
+                version = childVersion;
+            }
+        }
+    }
+
+
+    /**
+     * Splits a full node whose latch and whose parent's latch are held
+     *
+     * @param parent parent of node, or null if node is the root
+     * @param index position of node among the children of parent
+     * @param node full node to split
+     */
+    private void splitChild(InternalNode parent, int index, Node node) {
+        K sep = node.splitKey();
+        Node right = node.split();
+        if (parent == null) {
+            InternalNode top = new InternalNode();
+            top.keys[0] = sep;
+            top.children[0] = node;
+            top.children[1] = right;
+            top.size = 1;
+            root = top;
+        } else {
+            parent.insertChild(index, sep, right);
+        }
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Each leaf is read consistently, but the result is not a
+     * snapshot of the whole tree when writers are active.
+     * Values are returned in ascending key order, as BPTree does.
+     *
+     * If key is null or not found, return empty list.
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     */
+    @Override
+    public List<V> rangeSearch(K key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        if (key == null || comparator == null)
+            return ret;
+        switch (comparator) {
+            case "==":
+                scan(key, key, ret);
+                return ret;
+            case ">=":
+                scan(key, null, ret);
+                return ret;
+            case "<=":
+                scan(null, key, ret);
+                return ret;
+            default:
+                return ret;
+        }
+    }
+
+
+    /**
+     * Collects the values with from <= key <= to in ascending order
+     *
+     * @param from lower bound, or null to start at the first leaf
+     * @param to upper bound, or null to run to the end of the tree
+     * @param ret list the values are added to
+     */
+    private void scan(K from, K to, List<V> ret) {
+        LeafNode leaf = findLeaf(from);
+        while (leaf != null) {
+            long version = leaf.readLock();
+            if (version < 0) continue;
+            int mark = ret.size();
+            boolean torn = false, done = false;
+            int n = leaf.size;
+            int i = from == null ? 0 : leaf.lowerBound(from);
+            if (i < 0) torn = true;
+            for (; !torn && i < n; i++) {
+                K k = leaf.keys[i];
+                if (k == null) {
+                    torn = true;
+                } else if (to != null && k.compareTo(to) > 0) {
+                    done = true;
+                    break;
+                } else {
+                    ret.add(leaf.values[i]);
+                }
+            }
+            LeafNode next = leaf.next;
+            if (torn || !leaf.validate(version)) {
+                // read the leaf again; anything it lost went to its right sibling
+                ret.subList(mark, ret.size()).clear();
+                continue;
+            }
+            if (done) return;
+            leaf = next;
+        }
+    }
+
+
+    /**
+     * Descends from the root to the leaf holding the first key >= key
+     *
+     * @param key, or null for the first leaf of the tree
+     * @return leaf node, or null if the tree is empty
+     */
+    private LeafNode findLeaf(K key) {
+        restart:
+        while (true) {
+            long rootVersion = rootLatch.readLock();
+            if (rootVersion < 0) continue;
+            Node node = root;
+            if (node == null) {
+                if (!rootLatch.validate(rootVersion)) continue;
+                return null;
+            }
+            long version = node.readLock();
+            if (version < 0 || !rootLatch.validate(rootVersion)) continue;
+            while (node instanceof ConcurrentBPTree.InternalNode) {
+                InternalNode internal = (InternalNode) node;
+                int i = key == null ? 0 : internal.lowerBound(key);
+                Node child = i < 0 ? null : internal.children[i];
+                if (child == null) continue restart;
+                long childVersion = child.readLock();
+                if (childVersion < 0 || !internal.validate(version)) continue restart;
+                node = child;
+                version = childVersion;
+            }
+            return (LeafNode) node;
+        }
+    }
+
+
+    /**
+     * convert ConcurrentBPTree to string
+     *
+     * The tree is read without latches, so the result is only
+     * consistent when no writer is active.
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof ConcurrentBPTree.InternalNode)
+                        nextQueue.add(Arrays.asList(((InternalNode) node).children)
+                            .subList(0, node.size + 1));
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * A versioned latch. The version is even while the latch is free
+     * and odd while a writer holds it; every write bumps it twice.
+     *
+     * Readers take no lock at all: they remember the version, read
+     * the protected data and validate that the version is unchanged.
+     */
+    static class Latch {
+
+        private static final VarHandle VERSION;
+        static {
+            try {
+                VERSION = MethodHandles.lookup().findVarHandle(Latch.class, "version", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // Current version, odd while write locked
+        private volatile long version;
+
+        /**
+         * Starts an optimistic read
+         *
+         * @return the version to validate against, or -1 if a writer holds the latch
+         */
+        long readLock() {
+            long v = version;
+            if ((v & 1) != 0) {
+                Thread.onSpinWait();
+                return -1;
+            }
+            return v;
+        }
+
+        /**
+         * judge if nothing was written since readLock returned the version
+         *
+         * @param v version returned by readLock
+         * @return true if the reads made since then are consistent
+         */
+        boolean validate(long v) {
+            VarHandle.acquireFence();
+            return version == v;
+        }
+
+        /**
+         * Turns an optimistic read into a write lock
+         *
+         * @param v version returned by readLock
+         * @return true if the latch is now held, false if a writer got in first
+         */
+        boolean upgrade(long v) {
+            return VERSION.compareAndSet(this, v, v + 1);
+        }
+
+        /**
+         * Releases the write lock and publishes the new version
+         */
+        void writeUnlock() {
+            version = version + 1;
+        }
+
+    } // End of class Latch
+
+
+    /**
+     * This abstract class represents any type of node in the tree
+     * This class is a super class of the LeafNode and InternalNode types.
+     */
+    private abstract class Node extends Latch {
+
+        // Array of keys, only the first size entries are in use
+        final K[] keys;
+
+        // Number of keys stored in the node
+        int size;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node() {
+            keys = (K[]) new Comparable[branchingFactor - 1];
+        }
+
+        /**
+         * Finds the position of the first key that is not less than the given key
+         *
+         * @param key
+         * @return index of the first key >= key, size if there is none,
+         *         or -1 if a concurrent write left the node inconsistent
+         */
+        int lowerBound(K key) {
+            int lo = 0, hi = Math.min(size, keys.length);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                K k = keys[mid];
+                if (k == null) return -1;
+                if (k.compareTo(key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * judge if the node has no room for another key
+         *
+         * @return true if the node must be split before an insert below it
+         */
+        boolean isFull() {
+            return size == branchingFactor - 1;
+        }
+
+        /**
+         * Gets the key that split will push up to the parent
+         *
+         * @return separator key
+         */
+        abstract K splitKey();
+
+        /**
+         * Moves the upper half of a full node into a new right sibling.
+         * The caller holds the latch.
+         *
+         * @return the new right sibling
+         */
+        abstract Node split();
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(keys[i]);
+            }
+            return sb.append(']').toString();
+        }
+
+    } // End of abstract class Node
+
+
+    /**
+     * This class represents an internal node of the tree.
+     */
+    private class InternalNode extends Node {
+
+        // Array of children nodes, size + 1 entries are in use
+        final Node[] children;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        InternalNode() {
+            super();
+            children = (Node[]) new ConcurrentBPTree.Node[branchingFactor];
+        }
+
+        /**
+         * Adds a separator and the child to its right after a split.
+         * The caller holds the latch and the node is known not to be full.
+         *
+         * @param i position of the child that was split
+         * @param key separator
+         * @param child new right sibling of the split child
+         */
+        void insertChild(int i, K key, Node child) {
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(children, i + 1, children, i + 2, size - i);
+            keys[i] = key;
+            children[i + 1] = child;
+            size++;
+        }
+
+        K splitKey() {
+            return keys[size / 2];
+        }
+
+        Node split() {
+            InternalNode right = new InternalNode();
+            int mid = size / 2;
+            right.size = size - mid - 1;
+            System.arraycopy(keys, mid + 1, right.keys, 0, right.size);
+            System.arraycopy(children, mid + 1, right.children, 0, right.size + 1);
+            // shrink before clearing so a racing reader never sees a null below size
+            int oldSize = size;
+            size = mid;
+            Arrays.fill(keys, mid, oldSize, null);
+            Arrays.fill(children, mid + 1, oldSize + 1, null);
+            return right;
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree.
+     */
+    private class LeafNode extends Node {
+
+        // Array of values, parallel to keys
+        final V[] values;
+
+        // Reference to the next leaf node
+        LeafNode next;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings("unchecked")
+        LeafNode() {
+            super();
+            values = (V[]) new Object[branchingFactor - 1];
+        }
+
+        /**
+         * Adds an entry in front of any equal keys.
+         * The caller holds the latch and the leaf is known not to be full.
+         *
+         * @param key
+         * @param value
+         */
+        void insert(K key, V value) {
+            int i = lowerBound(key);
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        K splitKey() {
+            return keys[size / 2 - 1];
+        }
+
+        Node split() {
+            LeafNode right = new LeafNode();
+            int mid = size / 2;
+            right.size = size - mid;
+            System.arraycopy(keys, mid, right.keys, 0, right.size);
+            System.arraycopy(values, mid, right.values, 0, right.size);
+            right.next = next;
+            int oldSize = size;
+            size = mid;
+            Arrays.fill(keys, mid, oldSize, null);
+            Arrays.fill(values, mid, oldSize, null);
+            next = right;
+            return right;
+        }
+
+    } // End of class LeafNode
+
+} // End of class ConcurrentBPTree
@@ -0,0 +1,106 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Filename:   ConcurrentBPTreeTest.java
+ *
+ * JUnit tests of ConcurrentBPTree, alone and under concurrent writers
+ * and readers. Every value v is stored under key v % KEYS, so a reader
+ * can check each value it gets against the key it asked for.
+ */
+public class ConcurrentBPTreeTest {
+
+    // Number of distinct keys
+    private static final int KEYS = 500;
+
+
+    @Test
+    public void singleThreadMatchesBPTree() {
+        Random rnd = new Random(7);
+        for (int b = 4; b <= 9; b++) {
+            ConcurrentBPTree<Integer, Integer> tree = new ConcurrentBPTree<>(b);
+            BPTree<Integer, Integer> reference = new BPTree<>(b);
+            for (int i = 0; i < 2000; i++) {
+                int key = rnd.nextInt(200);
+                tree.insert(key, i);
+                reference.insert(key, i);
+            }
+            for (int q = -1; q <= 200; q++) {
+                for (String c : new String[]{"==", ">=", "<="})
+                    assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+            }
+        }
+    }
+
+
+    @Test
+    public void readersSeeConsistentResultsWhileWritersInsert() throws InterruptedException {
+        ConcurrentBPTree<Integer, Long> tree = new ConcurrentBPTree<>(5);
+        int writers = 4, perWriter = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            long base = (long) w * perWriter;
+            threads.add(new Thread(() -> {
+                for (long v = base; v < base + perWriter; v++)
+                    tree.insert((int) (v % KEYS), v);
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            int seed = r;
+            threads.add(new Thread(() -> {
+                Random rnd = new Random(seed);
+                int[] seen = new int[KEYS];
+                try {
+                    while (!done.get()) {
+                        int key = rnd.nextInt(KEYS);
+                        List<Long> equal = tree.rangeSearch(key, "==");
+                        for (long v : equal) assertEquals(key, v % KEYS);
+                        assertEquals("duplicates", equal.size(), new HashSet<>(equal).size());
+                        // inserts only, so a key never loses values
+                        assertTrue(equal.size() >= seen[key]);
+                        seen[key] = equal.size();
+                        long previous = -1;
+                        for (long v : tree.rangeSearch(KEYS - 3, ">=")) {
+                            assertTrue(v % KEYS >= previous);
+                            previous = v % KEYS;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (int w = 0; w < writers; w++) threads.get(w).join();
+        done.set(true);
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        List<Long> all = tree.rangeSearch(0, ">=");
+        assertEquals(writers * perWriter, all.size());
+        Collections.sort(all);
+        for (int i = 0; i < all.size(); i++) assertEquals(i, (long) all.get(i));
+        for (int key = 0; key < KEYS; key++)
+            assertEquals(writers * perWriter / KEYS, tree.rangeSearch(key, "==").size());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullKeyIsRejected() {
+        new ConcurrentBPTree<Integer, Integer>(4).insert(null, 1);
+    }
+
+}
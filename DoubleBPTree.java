@@ -0,0 +1,102 @@
+package application;
+
+import java.util.List;
+
+/**
+ * Implementation of a B+ tree keyed by primitive doubles.
+ * It has the same insert and rangeSearch semantics as a
+ * BPTree&lt;Double, V&gt;: keys are ordered like Double.compareTo,
+ * so -0.0 sorts before 0.0 and NaN sorts after positive infinity.
+ *
+ * Each double is stored as a long whose signed order matches that
+ * ordering, so the nodes hold primitive long arrays and every key
+ * comparison is a single primitive compare.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for an item
+ */
+public class DoubleBPTree<V> {
+
+    // Tree over the order-preserving encodings of the keys
+    private final LongBPTree<V> tree;
+
+
+    /**
+     * Public constructor with the branching factor derived from the key
+     * width, as for {@link LongBPTree#LongBPTree()}
+     */
+    public DoubleBPTree() {
+        tree = new LongBPTree<>();
+    }
+
+
+    /**
+     * Public constructor
+     *
+     * @param branchingFactor
+     */
+    public DoubleBPTree(int branchingFactor) {
+        tree = new LongBPTree<>(branchingFactor);
+    }
+
+
+    /**
+     * Maps a double to a long with the same order as Double.compare
+     *
+     * @param key
+     * @return encoded key
+     */
+    static long encode(double key) {
+        long bits = Double.doubleToLongBits(key);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Maps an encoded key back to its double
+     *
+     * @param key encoded key
+     * @return double value
+     */
+    static double decode(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(double key, V value) {
+        tree.insert(encode(key), value);
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * @param key to be searched
+     * @param comparator is a string, one of "<=", "==", ">="
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     * @see LongBPTree#rangeSearch(long, String)
+     */
+    public List<V> rangeSearch(double key, String comparator) {
+        return tree.rangeSearch(encode(key), comparator);
+    }
+
+
+    /**
+     * convert DoubleBPTree to string
+     *
+     */
+    @Override
+    public String toString() {
+        return tree.toString(key -> Double.toString(decode(key)));
+    }
+
+} // End of class DoubleBPTree
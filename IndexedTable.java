@@ -0,0 +1,381 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A store of records with BPTree indexes over some of their fields,
+ * answering conjunctive range queries such as
+ * "calories <= X and protein >= Y".
+ *
+ * Every record gets a row id, its position in the store, and each index
+ * maps a key of the record to its row id. A query first counts the rows
+ * matching each predicate from the per-child counts of the index trees,
+ * which costs two descents per predicate, then starts from the most
+ * selective predicate. Its row ids are collected into a compressed
+ * bitmap and intersected with the bitmaps of the next predicates.
+ * Once the candidates are few compared to the rows a predicate matches,
+ * the remaining predicates are checked on the candidate records instead
+ * of being read from their indexes.
+ *
+ * @param <R> record type
+ */
+public class IndexedTable<R> {
+
+    // Rows matched by a predicate, per candidate row, above which the
+    // predicate is checked on the candidates rather than read from its index
+    private static final int PROBE_RATIO = 4;
+
+    // Records, indexed by row id
+    private final List<R> rows = new ArrayList<>();
+
+    // Indexes, by name
+    private final Map<String, Index<?>> indexes = new LinkedHashMap<>();
+
+    // Branching factor of the index trees
+    private final int branchingFactor;
+
+
+    /**
+     * Public constructor
+     *
+     * @param branchingFactor of the index trees
+     */
+    public IndexedTable(int branchingFactor) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        this.branchingFactor = branchingFactor;
+    }
+
+
+    /**
+     * Adds an index over a key of the records; records already in the
+     * table are indexed in one batch
+     *
+     * @param name of the index, used by queries
+     * @param keyOf gets the key of a record
+     * @throws IllegalArgumentException if name is null or in use, or
+     *         a record already in the table has a null key
+     */
+    public <K extends Comparable<K>> void addIndex(String name, Function<? super R, ? extends K> keyOf) {
+        if (name == null || indexes.containsKey(name))
+            throw new IllegalArgumentException("Illegal index name: " + name);
+        Index<K> index = new Index<K>(keyOf);
+        List<Map.Entry<K, Integer>> entries = new ArrayList<>(rows.size());
+        for (int row = 0; row < rows.size(); row++)
+            entries.add(Map.entry(index.keyOf(rows.get(row)), row));
+        index.tree.insertAll(entries);
+        indexes.put(name, index);
+    }
+
+
+    /**
+     * Adds a record and indexes it
+     *
+     * @param record
+     * @return row id of the record
+     * @throws IllegalArgumentException if an index key of the record is null
+     */
+    public int insert(R record) {
+        Object[] keys = new Object[indexes.size()];
+        int i = 0;
+        for (Index<?> index : indexes.values())
+            keys[i++] = index.keyOf(record);
+        int row = rows.size();
+        rows.add(record);
+        i = 0;
+        for (Index<?> index : indexes.values())
+            index.insert(keys[i++], row);
+        return row;
+    }
+
+
+    /**
+     * Gets a record by row id
+     *
+     * @param row
+     * @return record
+     * @throws IndexOutOfBoundsException if there is no such row
+     */
+    public R get(int row) {
+        return rows.get(row);
+    }
+
+
+    /**
+     * Gets the number of records
+     *
+     * @return size
+     */
+    public int size() {
+        return rows.size();
+    }
+
+
+    /**
+     * Starts a query; predicates are added with where
+     *
+     * @return query matching every record
+     */
+    public Query query() {
+        return new Query();
+    }
+
+
+    /**
+     * Gets an index by name
+     *
+     * @throws IllegalArgumentException if there is no such index
+     */
+    @SuppressWarnings("unchecked")
+    private <K extends Comparable<K>> Index<K> index(String name) {
+        Index<?> index = indexes.get(name);
+        if (index == null)
+            throw new IllegalArgumentException("No index named " + name);
+        return (Index<K>) index;
+    }
+
+
+    /**
+     * This class is one index: a tree from keys to row ids
+     */
+    private class Index<K extends Comparable<K>> {
+
+        // Tree from keys to row ids
+        final BPTree<K, Integer> tree = new BPTree<>(branchingFactor);
+
+        // Gets the key of a record
+        final Function<? super R, ? extends K> keyOf;
+
+        Index(Function<? super R, ? extends K> keyOf) {
+            this.keyOf = keyOf;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the key is null
+         */
+        K keyOf(R record) {
+            K key = keyOf.apply(record);
+            if (key == null)
+                throw new IllegalArgumentException("Key is null");
+            return key;
+        }
+
+        @SuppressWarnings("unchecked")
+        void insert(Object key, int row) {
+            tree.insert((K) key, row);
+        }
+
+    } // End of class Index
+
+
+    /**
+     * This class is a predicate on one index: its key lies between two bounds
+     */
+    private class Condition<K extends Comparable<K>> {
+
+        // Index the predicate reads
+        final Index<K> index;
+
+        // Bounds, null for no bound
+        final K fromKey;
+        final boolean fromInclusive;
+        final K toKey;
+        final boolean toInclusive;
+
+        // Number of rows matching the predicate, set when the query runs
+        int estimate;
+
+        Condition(Index<K> index, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            this.index = index;
+            this.fromKey = fromKey;
+            this.fromInclusive = fromInclusive;
+            this.toKey = toKey;
+            this.toInclusive = toInclusive;
+        }
+
+        /**
+         * Counts the rows matching the predicate from the index
+         */
+        void estimate() {
+            estimate = index.tree.countRange(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        /**
+         * Reads the rows matching the predicate from the index
+         *
+         * @return row ids
+         */
+        RowBitmap rows() {
+            int[] rows = new int[estimate];
+            int n = 0;
+            BPTree<K, Integer>.Cursor cursor =
+                index.tree.cursor(fromKey, fromInclusive, toKey, toInclusive, false);
+            while (cursor.hasNext())
+                rows[n++] = cursor.next();
+            return RowBitmap.ofUnsorted(rows, n);
+        }
+
+        /**
+         * Checks the predicate on a record
+         *
+         * @return true if the key of the record lies between the bounds
+         */
+        boolean test(R record) {
+            K key = index.keyOf.apply(record);
+            if (fromKey != null) {
+                int cmp = key.compareTo(fromKey);
+                if (cmp < 0 || (cmp == 0 && !fromInclusive)) return false;
+            }
+            if (toKey != null) {
+                int cmp = key.compareTo(toKey);
+                if (cmp > 0 || (cmp == 0 && !toInclusive)) return false;
+            }
+            return true;
+        }
+
+    } // End of class Condition
+
+
+    /**
+     * This class is a conjunction of predicates on the indexes of the table.
+     * Results are in row id order.
+     */
+    public class Query {
+
+        // Predicates, all of which must hold
+        private final List<Condition<?>> conditions = new ArrayList<>();
+
+        // True if a predicate can match nothing
+        private boolean empty;
+
+        /**
+         * Package constructor
+         */
+        Query() {
+        }
+
+        /**
+         * Adds a predicate with the same meaning as the arguments of
+         * {@link BPTree#rangeSearch(Comparable, String)}; if key is null
+         * or comparator is not "<=", "==" or ">=", the query matches nothing
+         *
+         * @param index name of the index
+         * @param key to compare with
+         * @param comparator is a string
+         * @return this query
+         * @throws IllegalArgumentException if there is no such index
+         */
+        public <K extends Comparable<K>> Query where(String index, K key, String comparator) {
+            Index<K> idx = index(index);
+            if (key == null || comparator == null) {
+                empty = true;
+                return this;
+            }
+            switch (comparator) {
+                case "==":
+                    return where(idx, key, true, key, true);
+                case ">=":
+                    return where(idx, key, true, null, false);
+                case "<=":
+                    return where(idx, null, false, key, true);
+                default:
+                    empty = true;
+                    return this;
+            }
+        }
+
+        /**
+         * Adds a predicate: the key of the index lies between two bounds
+         *
+         * @param index name of the index
+         * @param fromKey lower bound, or null for no lower bound
+         * @param fromInclusive true if keys equal to fromKey match
+         * @param toKey upper bound, or null for no upper bound
+         * @param toInclusive true if keys equal to toKey match
+         * @return this query
+         * @throws IllegalArgumentException if there is no such index
+         */
+        public <K extends Comparable<K>> Query where(String index, K fromKey, boolean fromInclusive,
+                                                     K toKey, boolean toInclusive) {
+            Index<K> idx = index(index);
+            return where(idx, fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        private <K extends Comparable<K>> Query where(Index<K> index, K fromKey, boolean fromInclusive,
+                                                      K toKey, boolean toInclusive) {
+            conditions.add(new Condition<K>(index, fromKey, fromInclusive, toKey, toInclusive));
+            return this;
+        }
+
+        /**
+         * Runs the query
+         *
+         * @return row ids of the matching records
+         */
+        public RowBitmap rowIds() {
+            if (empty)
+                return RowBitmap.of(new int[0], 0);
+            if (conditions.isEmpty()) {
+                int[] all = new int[rows.size()];
+                for (int i = 0; i < all.length; i++) all[i] = i;
+                return RowBitmap.of(all, all.length);
+            }
+            List<Condition<?>> plan = new ArrayList<>(conditions);
+            for (Condition<?> condition : plan)
+                condition.estimate();
+            plan.sort(Comparator.comparingInt(c -> c.estimate));
+            RowBitmap result = plan.get(0).rows();
+            for (int i = 1; i < plan.size() && !result.isEmpty(); i++) {
+                if ((long) result.cardinality() * PROBE_RATIO <= plan.get(i).estimate)
+                    return probe(result, plan.subList(i, plan.size()));
+                result = result.and(plan.get(i).rows());
+            }
+            return result;
+        }
+
+        /**
+         * Runs the query
+         *
+         * @return matching records, in row id order
+         */
+        public List<R> list() {
+            RowBitmap ids = rowIds();
+            List<R> ret = new ArrayList<R>(ids.cardinality());
+            ids.forEach(row -> ret.add(rows.get(row)));
+            return ret;
+        }
+
+        /**
+         * Counts the matching records
+         *
+         * @return number of records
+         */
+        public int count() {
+            return rowIds().cardinality();
+        }
+
+        /**
+         * Keeps the candidate rows whose records satisfy every given predicate
+         */
+        private RowBitmap probe(RowBitmap candidates, List<Condition<?>> remaining) {
+            int[] kept = new int[candidates.cardinality()];
+            int[] n = {0};
+            candidates.forEach(row -> {
+                R record = rows.get(row);
+                for (Condition<?> condition : remaining)
+                    if (!condition.test(record)) return;
+                kept[n[0]++] = row;
+            });
+            return RowBitmap.of(kept, n[0]);
+        }
+
+    } // End of class Query
+
+}
@@ -0,0 +1,152 @@
+package application;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filename:   IndexedTableTest.java
+ *
+ * JUnit tests of IndexedTable and RowBitmap against a filter over
+ * every record.
+ */
+public class IndexedTableTest {
+
+    /**
+     * Builds a set of random ids below limit, dense in some groups of
+     * 65536 ids and sparse in others
+     */
+    static BitSet randomIds(Random rnd, int limit) {
+        BitSet ids = new BitSet(limit);
+        for (int high = 0; high << 16 < limit; high++) {
+            int density = new int[]{0, 1, 50, 5000, 60000}[rnd.nextInt(5)];
+            for (int i = 0; i < density; i++) {
+                int id = (high << 16) + rnd.nextInt(1 << 16);
+                if (id < limit) ids.set(id);
+            }
+        }
+        return ids;
+    }
+
+
+    @Test
+    public void bitmapsMatchBitSets() {
+        Random rnd = new Random(18);
+        for (int round = 0; round < 20; round++) {
+            BitSet a = randomIds(rnd, 5 << 16), b = randomIds(rnd, 5 << 16);
+            int[] rowsA = a.stream().toArray();
+            int[] rowsB = b.stream().toArray();
+            // shuffled, with repeats
+            int[] unsorted = Arrays.copyOf(rowsB, rowsB.length + 10);
+            for (int i = rowsB.length; i < unsorted.length && rowsB.length > 0; i++)
+                unsorted[i] = rowsB[rnd.nextInt(rowsB.length)];
+            for (int i = unsorted.length - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1), t = unsorted[i];
+                unsorted[i] = unsorted[j];
+                unsorted[j] = t;
+            }
+            RowBitmap bitmapA = RowBitmap.of(rowsA, rowsA.length);
+            RowBitmap bitmapB = RowBitmap.ofUnsorted(unsorted, rowsB.length == 0 ? 0 : unsorted.length);
+            assertArrayEquals(rowsA, bitmapA.toArray());
+            assertArrayEquals(rowsB, bitmapB.toArray());
+            assertEquals(rowsB.length, bitmapB.cardinality());
+            BitSet both = (BitSet) a.clone();
+            both.and(b);
+            assertArrayEquals(both.stream().toArray(), bitmapA.and(bitmapB).toArray());
+            assertArrayEquals(both.stream().toArray(), bitmapB.and(bitmapA).toArray());
+            for (int i = 0; i < 100; i++) {
+                int id = rnd.nextInt(5 << 16);
+                assertEquals(a.get(id), bitmapA.contains(id));
+            }
+        }
+    }
+
+
+    @Test
+    public void repeatedIdsAreKeptOnce() {
+        RowBitmap bitmap = RowBitmap.of(new int[]{1, 1, 2, 70000, 70000}, 5);
+        assertArrayEquals(new int[]{1, 2, 70000}, bitmap.toArray());
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(3));
+        assertTrue(RowBitmap.of(new int[]{5}, 0).isEmpty());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rowIdsOutOfOrderAreRejected() {
+        RowBitmap.of(new int[]{3, 2}, 2);
+    }
+
+
+    @Test
+    public void queriesMatchAFilter() {
+        Random rnd = new Random(19);
+        IndexedTable<int[]> table = new IndexedTable<>(16);
+        table.addIndex("a", r -> r[0]);
+        List<int[]> records = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            int[] record = {rnd.nextInt(1000), rnd.nextInt(10), rnd.nextInt(20000)};
+            records.add(record);
+            assertEquals(i, table.insert(record));
+            // one index is added once the table has records
+            if (i == 5000) {
+                table.addIndex("b", r -> r[1]);
+                table.addIndex("c", r -> r[2]);
+            }
+        }
+        assertEquals(records.size(), table.size());
+        for (int q = 0; q < 300; q++) {
+            int a = rnd.nextInt(1000), b = rnd.nextInt(10), c = rnd.nextInt(20000);
+            int width = new int[]{1, 50, 20000}[rnd.nextInt(3)];
+            boolean fromInclusive = rnd.nextBoolean(), toInclusive = rnd.nextBoolean();
+            List<Integer> expected = new ArrayList<>();
+            List<int[]> expectedRecords = new ArrayList<>();
+            for (int row = 0; row < records.size(); row++) {
+                int[] r = records.get(row);
+                if (r[0] >= a && r[1] == b
+                        && (fromInclusive ? r[2] >= c : r[2] > c)
+                        && (toInclusive ? r[2] <= c + width : r[2] < c + width)) {
+                    expected.add(row);
+                    expectedRecords.add(r);
+                }
+            }
+            IndexedTable<int[]>.Query query = table.query()
+                .where("a", a, ">=")
+                .where("b", b, "==")
+                .where("c", c, fromInclusive, c + width, toInclusive);
+            List<Integer> actual = new ArrayList<>();
+            query.rowIds().forEach(actual::add);
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), query.count());
+            assertEquals(expectedRecords, query.list());
+        }
+    }
+
+
+    @Test
+    public void nullKeyOrUnknownComparatorMatchesNothing() {
+        IndexedTable<String> table = new IndexedTable<>(4);
+        table.addIndex("length", String::length);
+        for (String s : new String[]{"a", "bb", "ccc"}) table.insert(s);
+        assertEquals(3, table.query().count());
+        assertEquals(0, table.query().where("length", null, "==").count());
+        assertEquals(0, table.query().where("length", 2, "<").count());
+        assertEquals(List.of("a", "bb"), table.query().where("length", 2, "<=").list());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownIndexIsRejected() {
+        new IndexedTable<String>(4).query().where("length", 1, "==");
+    }
+
+}
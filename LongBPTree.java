@@ -0,0 +1,541 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Implementation of a B+ tree keyed by primitive longs.
+ * It has the same insert and rangeSearch semantics as a
+ * BPTree&lt;Long, V&gt;, but node keys are stored in long arrays
+ * and compared as primitives, so keys are never boxed and
+ * in-node searches do not chase pointers.
+ *
+ * Nodes are laid out as in a CSB+ tree: the children of one internal
+ * node are not separate objects but one node group, whose key array
+ * holds the keys of every child back to back, one fixed-width slot per
+ * node. An internal node keeps a single reference to the group of its
+ * children and a child is addressed by its offset in that group, so a
+ * descent touches one group and one run of keys per level. Leaves are
+ * grouped the same way and the leaf order runs through each group and
+ * then on to the next group.
+ *
+ * A node slot holds branchingFactor keys, one more than a node may keep
+ * so that an overflowing node can be split. The default branching factor
+ * makes that slot a whole number of cache lines. Groups start with room
+ * for the nodes they hold and grow as nodes are added, so wide nodes of
+ * a few hundred keys do not reserve a full group of slots per node.
+ * Keys within a node are found with LongSearch, which compares many
+ * keys per instruction when the Vector API is available.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for an item
+ */
+public class LongBPTree<V> {
+
+    // Bytes of a cache line, and cache lines per node slot
+    private static final int CACHE_LINE = 64;
+    private static final int NODE_LINES = 4;
+
+    // Group holding the root, the only node of its group
+    private Group root;
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private int branchingFactor;
+
+    // Separator pushed up by the last split
+    private long splitKey;
+
+
+    /**
+     * Public constructor with the branching factor derived from the key
+     * width, so that each node slot fills a few cache lines
+     */
+    public LongBPTree() {
+        this(branchingFactorFor(Long.BYTES));
+    }
+
+
+    /**
+     * Public constructor
+     *
+     * @param branchingFactor
+     */
+    public LongBPTree(int branchingFactor) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        this.branchingFactor = branchingFactor;
+    }
+
+
+    /**
+     * Gets the branching factor whose node slots of keys of the given
+     * width take a whole number of cache lines
+     *
+     * @param keyBytes width of a key in bytes
+     * @return branching factor, at least 3
+     */
+    static int branchingFactorFor(int keyBytes) {
+        return Math.max(3, NODE_LINES * CACHE_LINE / keyBytes);
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(long key, V value) {
+        if (root == null) {
+            LeafGroup leaf = new LeafGroup(1);
+            leaf.keys[0] = key;
+            leaf.values[0] = value;
+            leaf.sizes[0] = 1;
+            leaf.count = 1;
+            root = leaf;
+            return;
+        }
+        if (root.insert(0, key, value)) {
+            // the old root group now holds both halves of the root
+            InternalGroup top = new InternalGroup(1);
+            top.keys[0] = splitKey;
+            top.sizes[0] = 1;
+            top.children[0] = root;
+            top.count = 1;
+            root = top;
+        }
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Values are returned in ascending key order.
+     *
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     */
+    public List<V> rangeSearch(long key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        if (comparator == null || root == null)
+            return ret;
+        int[] node = new int[1];
+        switch (comparator) {
+            case "==":
+                LeafGroup leaf = findLeaf(key, node);
+                int n = node[0];
+                int i = leaf.lowerBound(n, key);
+                while (leaf != null) {
+                    int base = n * branchingFactor, size = leaf.sizes[n];
+                    while (i < size && leaf.keys[base + i] == key)
+                        ret.add(leaf.values[base + i++]);
+                    if (i < size) break;
+                    if (++n == leaf.count) {
+                        leaf = leaf.next;
+                        n = 0;
+                    }
+                    i = 0;
+                }
+                return ret;
+            case ">=":
+                leaf = findLeaf(key, node);
+                n = node[0];
+                i = leaf.lowerBound(n, key);
+                while (leaf != null) {
+                    int base = n * branchingFactor, size = leaf.sizes[n];
+                    for (; i < size; i++) ret.add(leaf.values[base + i]);
+                    if (++n == leaf.count) {
+                        leaf = leaf.next;
+                        n = 0;
+                    }
+                    i = 0;
+                }
+                return ret;
+            case "<=":
+                // scan from the first leaf up to the last key <= key
+                leaf = findLeaf(Long.MIN_VALUE, node);
+                n = node[0];
+                while (leaf != null) {
+                    int base = n * branchingFactor, end = leaf.upperBound(n, key);
+                    for (i = 0; i < end; i++) ret.add(leaf.values[base + i]);
+                    if (end < leaf.sizes[n]) return ret;
+                    if (++n == leaf.count) {
+                        leaf = leaf.next;
+                        n = 0;
+                    }
+                }
+                return ret;
+            default:
+                return ret;
+        }
+    }
+
+
+    /**
+     * Descends from the root to the leaf holding the first key >= key,
+     * where a scan for the key starts
+     *
+     * @param key
+     * @param node receives the offset of the leaf in its group
+     * @return group of the leaf
+     */
+    private LeafGroup findLeaf(long key, int[] node) {
+        Group group = root;
+        int n = 0;
+        while (group instanceof LongBPTree.InternalGroup) {
+            InternalGroup internal = (InternalGroup) group;
+            int child = internal.lowerBound(n, key);
+            group = internal.children[n];
+            n = child;
+        }
+        node[0] = n;
+        return (LeafGroup) group;
+    }
+
+
+    /**
+     * convert LongBPTree to string
+     *
+     */
+    @Override
+    public String toString() {
+        return toString(Long::toString);
+    }
+
+
+    /**
+     * convert the tree to string, printing each key with the given format
+     *
+     * @param format converts a stored key to text
+     * @return a string representation
+     */
+    String toString(LongFunction<String> format) {
+        // a level is a list of groups, each the children of one node above
+        List<Group> level = Arrays.asList(root);
+        StringBuilder sb = new StringBuilder();
+        while (!level.isEmpty()) {
+            List<Group> nextLevel = new ArrayList<Group>();
+            for (int g = 0; g < level.size(); g++) {
+                Group group = level.get(g);
+                sb.append('{');
+                for (int n = 0; n < group.count; n++) {
+                    if (n > 0)
+                        sb.append(", ");
+                    sb.append(group.toString(n, format));
+                    if (group instanceof LongBPTree.InternalGroup)
+                        nextLevel.add(((InternalGroup) group).children[n]);
+                }
+                sb.append('}');
+                if (g < level.size() - 1)
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            level = nextLevel;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * This abstract class represents a group of sibling nodes, the
+     * children of one internal node or the root alone.
+     * This class is a super class of the LeafGroup and InternalGroup types.
+     */
+    private abstract class Group {
+
+        // Keys of the nodes, branchingFactor slots per node; only the
+        // first sizes[n] keys of node n are in use
+        long[] keys;
+
+        // Number of keys stored in each node
+        int[] sizes;
+
+        // Number of nodes in the group
+        int count;
+
+        /**
+         * Package constructor
+         *
+         * @param capacity number of nodes the group has room for
+         */
+        Group(int capacity) {
+            keys = new long[capacity * branchingFactor];
+            sizes = new int[capacity];
+        }
+
+        /**
+         * Finds the position of the first key of a node that is not less
+         * than the given key
+         *
+         * @param node offset of the node in the group
+         * @param key
+         * @return index of the first key >= key, or size if there is none
+         */
+        int lowerBound(int node, long key) {
+            int base = node * branchingFactor;
+            return LongSearch.INSTANCE.lowerBound(keys, base, base + sizes[node], key) - base;
+        }
+
+        /**
+         * Finds the position of the first key of a node that is greater
+         * than the given key
+         *
+         * @param node offset of the node in the group
+         * @param key
+         * @return index of the first key > key, or size if there is none
+         */
+        int upperBound(int node, long key) {
+            int base = node * branchingFactor;
+            return LongSearch.INSTANCE.upperBound(keys, base, base + sizes[node], key) - base;
+        }
+
+        /**
+         * Inserts key and value under a node of the group and balances
+         * the tree if required by splitting. A split node keeps the lower
+         * half and its new sibling is placed right after it in the group.
+         *
+         * @param node offset of the node in the group
+         * @param key
+         * @param value
+         * @return true if the node was split, with the separator in splitKey
+         */
+        abstract boolean insert(int node, long key, V value);
+
+        /**
+         * Makes room for a node, moving the nodes from there on one
+         * slot to the right
+         *
+         * @param node offset of the new node
+         */
+        void open(int node) {
+            int b = branchingFactor;
+            if (count == sizes.length) {
+                // one node more than a parent may have so that the parent
+                // can overflow before it is split
+                int capacity = Math.min(b + 1, 2 * count);
+                keys = Arrays.copyOf(keys, capacity * b);
+                sizes = Arrays.copyOf(sizes, capacity);
+                grow(capacity);
+            }
+            System.arraycopy(keys, node * b, keys, (node + 1) * b, (count - node) * b);
+            System.arraycopy(sizes, node, sizes, node + 1, count - node);
+            moveNodes(this, node, node + 1, count - node);
+            count++;
+        }
+
+        /**
+         * Moves the nodes from an offset on into a new group, which
+         * follows this group in the tree
+         *
+         * @param node offset of the first node to move
+         * @return new group
+         */
+        Group splitOff(int node) {
+            int b = branchingFactor, n = count - node;
+            Group right = newGroup(n + 1);
+            System.arraycopy(keys, node * b, right.keys, 0, n * b);
+            System.arraycopy(sizes, node, right.sizes, 0, n);
+            moveNodes(right, node, 0, n);
+            right.count = n;
+            count = node;
+            return right;
+        }
+
+        /**
+         * Moves the references held by nodes, which may overlap
+         *
+         * @param to destination group
+         * @param from offset of the first source node in this group
+         * @param toNode offset of the first destination node
+         * @param n number of nodes
+         */
+        abstract void moveNodes(Group to, int from, int toNode, int n);
+
+        /**
+         * Makes room for more nodes in the references held by nodes
+         *
+         * @param capacity new number of nodes
+         */
+        abstract void grow(int capacity);
+
+        /**
+         * @param capacity number of nodes the group has room for
+         * @return empty group of the same kind
+         */
+        abstract Group newGroup(int capacity);
+
+        String toString(int node, LongFunction<String> format) {
+            StringBuilder sb = new StringBuilder("[");
+            int base = node * branchingFactor;
+            for (int i = 0; i < sizes[node]; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(format.apply(keys[base + i]));
+            }
+            return sb.append(']').toString();
+        }
+
+    } // End of abstract class Group
+
+    /**
+     * This class represents a group of internal nodes.
+     */
+    private class InternalGroup extends Group {
+
+        // Group of the children of each node
+        Group[] children;
+
+        /**
+         * Package constructor
+         *
+         * @param capacity number of nodes the group has room for
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        InternalGroup(int capacity) {
+            super(capacity);
+            children = (Group[]) new LongBPTree.Group[capacity];
+        }
+
+        /**
+         * insert a key-value pair under a node, split the node if needed
+         * @return true if the node was split
+         */
+        boolean insert(int node, long key, V value) {
+            int base = node * branchingFactor, size = sizes[node];
+            int cur = lowerBound(node, key);
+            Group child = children[node];
+            if (!child.insert(cur, key, value)) return false;
+            System.arraycopy(keys, base + cur, keys, base + cur + 1, size - cur);
+            keys[base + cur] = splitKey;
+            size++;
+            if (size < branchingFactor) {
+                sizes[node] = size;
+                return false;
+            }
+            // split: the node keeps mid keys and mid + 1 children
+            int mid = size / 2;
+            open(node + 1);
+            System.arraycopy(keys, base + mid + 1, keys, base + branchingFactor, size - mid - 1);
+            sizes[node] = mid;
+            sizes[node + 1] = size - mid - 1;
+            children[node + 1] = child.splitOff(mid + 1);
+            splitKey = keys[base + mid];
+            return true;
+        }
+
+        void moveNodes(Group to, int from, int toNode, int n) {
+            System.arraycopy(children, from, ((InternalGroup) to).children, toNode, n);
+            if (to != this)
+                Arrays.fill(children, from, from + n, null);
+        }
+
+        void grow(int capacity) {
+            children = Arrays.copyOf(children, capacity);
+        }
+
+        Group newGroup(int capacity) {
+            return new InternalGroup(capacity);
+        }
+
+    } // End of class InternalGroup
+
+
+    /**
+     * This class represents a group of leaf nodes.
+     */
+    private class LeafGroup extends Group {
+
+        // Values of the nodes, parallel to keys
+        V[] values;
+
+        // Reference to the next group of leaves
+        LeafGroup next;
+
+        // Reference to the previous group of leaves
+        LeafGroup previous;
+
+        /**
+         * Package constructor
+         *
+         * @param capacity number of nodes the group has room for
+         */
+        @SuppressWarnings("unchecked")
+        LeafGroup(int capacity) {
+            super(capacity);
+            this.values = (V[]) new Object[capacity * branchingFactor];
+        }
+
+        /**
+         * insert a key-value pair into a node, split the node if needed
+         *
+         * @return true if the node was split
+         */
+        boolean insert(int node, long key, V value) {
+            int base = node * branchingFactor, size = sizes[node];
+            int ind = lowerBound(node, key);
+            System.arraycopy(keys, base + ind, keys, base + ind + 1, size - ind);
+            System.arraycopy(values, base + ind, values, base + ind + 1, size - ind);
+            keys[base + ind] = key;
+            values[base + ind] = value;
+            size++;
+            if (size < branchingFactor) {
+                sizes[node] = size;
+                return false;
+            }
+            // split: the node keeps the lower half of the entries
+            int mid = size / 2;
+            open(node + 1);
+            int right = base + branchingFactor;
+            System.arraycopy(keys, base + mid, keys, right, size - mid);
+            System.arraycopy(values, base + mid, values, right, size - mid);
+            Arrays.fill(values, base + mid, base + size, null);
+            Arrays.fill(values, right + size - mid, right + branchingFactor, null);
+            sizes[node] = mid;
+            sizes[node + 1] = size - mid;
+            splitKey = keys[base + mid - 1];
+            return true;
+        }
+
+        void moveNodes(Group to, int from, int toNode, int n) {
+            int b = branchingFactor;
+            System.arraycopy(values, from * b, ((LeafGroup) to).values, toNode * b, n * b);
+            if (to != this)
+                Arrays.fill(values, from * b, (from + n) * b, null);
+        }
+
+        Group splitOff(int node) {
+            LeafGroup right = (LeafGroup) super.splitOff(node);
+            right.next = next;
+            right.previous = this;
+            if (next != null) next.previous = right;
+            next = right;
+            return right;
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity * branchingFactor);
+        }
+
+        Group newGroup(int capacity) {
+            return new LeafGroup(capacity);
+        }
+
+    } // End of class LeafGroup
+
+} // End of class LongBPTree
@@ -0,0 +1,156 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filename:   LongBPTreeTest.java
+ *
+ * JUnit tests of LongBPTree and DoubleBPTree. Both must give the
+ * results of a BPTree over the boxed keys.
+ */
+public class LongBPTreeTest {
+
+    /**
+     * Checks every comparator of rangeSearch for the given keys
+     */
+    static void assertSameSearches(LongBPTree<Integer> tree, BPTree<Long, Integer> reference, long... keys) {
+        for (long q : keys) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void longTreeMatchesBPTree() {
+        Random rnd = new Random(5);
+        for (int b : new int[]{3, 4, 5, 8, 17}) {
+            LongBPTree<Integer> tree = new LongBPTree<>(b);
+            BPTree<Long, Integer> reference = new BPTree<>(b);
+            for (int i = 0; i < 2000; i++) {
+                long key = rnd.nextInt(300) - 150;
+                tree.insert(key, i);
+                reference.insert(key, i);
+            }
+            for (long q = -152; q <= 152; q++)
+                assertSameSearches(tree, reference, q);
+        }
+    }
+
+
+    @Test
+    public void extremeLongKeys() {
+        LongBPTree<Integer> tree = new LongBPTree<>(4);
+        BPTree<Long, Integer> reference = new BPTree<>(4);
+        long[] keys = {Long.MAX_VALUE, Long.MIN_VALUE, 0, -1, 1, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (int i = 0; i < keys.length; i++) {
+            tree.insert(keys[i], i);
+            reference.insert(keys[i], i);
+        }
+        assertSameSearches(tree, reference, Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE);
+    }
+
+
+    @Test
+    public void emptyTreeOrBadComparatorGivesEmptyList() {
+        LongBPTree<Integer> tree = new LongBPTree<>(4);
+        assertTrue(tree.rangeSearch(1, "==").isEmpty());
+        tree.insert(1, 1);
+        assertTrue(tree.rangeSearch(1, null).isEmpty());
+        assertTrue(tree.rangeSearch(1, "<").isEmpty());
+    }
+
+
+    @Test
+    public void doubleTreeOrdersKeysLikeDoubleCompare() {
+        double[] keys = {1.5, -0.0, 0.0, Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+            -1.5, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        DoubleBPTree<Integer> tree = new DoubleBPTree<>(3);
+        BPTree<Double, Integer> reference = new BPTree<>(3);
+        for (int i = 0; i < keys.length; i++) {
+            tree.insert(keys[i], i);
+            reference.insert(keys[i], i);
+        }
+        for (double q : keys) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void nodeGroupsGrowAndSplitInAnyInsertOrder() {
+        Random rnd = new Random(22);
+        for (int b : new int[]{3, 32, 300}) {
+            for (int order = 0; order < 3; order++) {
+                LongBPTree<Integer> tree = new LongBPTree<>(b);
+                BPTree<Long, Integer> reference = new BPTree<>(b);
+                for (int i = 0; i < 8000; i++) {
+                    // ascending, descending, then random keys with many repeats
+                    long key = order == 0 ? i : order == 1 ? -i : rnd.nextInt(2000);
+                    tree.insert(key, i);
+                    reference.insert(key, i);
+                }
+                for (long q = -8001; q <= 8000; q += 1 + rnd.nextInt(150))
+                    assertSameSearches(tree, reference, q);
+                assertSameSearches(tree, reference, -7999, -1, 0, 1999, 7999);
+            }
+        }
+    }
+
+
+    @Test
+    public void defaultNodeSlotsFillWholeCacheLines() {
+        assertEquals(32, LongBPTree.branchingFactorFor(Long.BYTES));
+        assertEquals(64, LongBPTree.branchingFactorFor(Integer.BYTES));
+        assertEquals(3, LongBPTree.branchingFactorFor(1000));
+        LongBPTree<Integer> tree = new LongBPTree<>();
+        BPTree<Long, Integer> reference = new BPTree<>(32);
+        for (int i = 0; i < 5000; i++) {
+            tree.insert(i % 700, i);
+            reference.insert((long) (i % 700), i);
+        }
+        assertSameSearches(tree, reference, -1, 0, 350, 699, 700);
+    }
+
+
+    @Test
+    public void longSearchMatchesALinearScan() {
+        Random rnd = new Random(23);
+        LongSearch[] searches = {LongSearch.INSTANCE, new LongSearch.Binary()};
+        for (int round = 0; round < 2000; round++) {
+            long[] keys = new long[rnd.nextInt(600)];
+            int spread = 1 + rnd.nextInt(1000);
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = rnd.nextInt(20) == 0 ? (rnd.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE)
+                    : rnd.nextInt(spread) - spread / 2;
+            Arrays.sort(keys);
+            int from = keys.length == 0 ? 0 : rnd.nextInt(keys.length + 1);
+            int to = from + rnd.nextInt(keys.length - from + 1);
+            for (int q = 0; q < 10; q++) {
+                long key = q == 0 ? Long.MIN_VALUE : q == 1 ? Long.MAX_VALUE
+                    : rnd.nextInt(spread + 2) - spread / 2 - 1;
+                int lower = from, upper = from;
+                while (lower < to && keys[lower] < key) lower++;
+                while (upper < to && keys[upper] <= key) upper++;
+                for (LongSearch search : searches) {
+                    assertEquals(search + " >= " + key, lower, search.lowerBound(keys, from, to, key));
+                    assertEquals(search + " > " + key, upper, search.upperBound(keys, from, to, key));
+                }
+            }
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void branchingFactorBelowThreeIsRejected() {
+        new LongBPTree<Integer>(2);
+    }
+
+}
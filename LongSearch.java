@@ -0,0 +1,93 @@
+package application;
+
+/**
+ * A search of sorted runs of long keys, used by the nodes of LongBPTree
+ * and, through their order-preserving encoding, DoubleBPTree.
+ *
+ * Two implementations exist. The scalar one is a binary search. The
+ * vector one, in vector/LongVectorSearch.java, narrows the run with a
+ * binary search and then compares the probe against a whole vector of
+ * keys per instruction with jdk.incubator.vector, which pays off on
+ * wide nodes of a few hundred keys. It is only compiled and run with
+ * --add-modules jdk.incubator.vector; without that module, or with
+ * -Dapplication.vectorSearch=false, the scalar search is used.
+ */
+abstract class LongSearch {
+
+    // Search used by the trees, chosen once when the class is loaded
+    static final LongSearch INSTANCE = load();
+
+
+    /**
+     * Finds the first key of a sorted run that is not less than a key
+     *
+     * @param keys array holding the run
+     * @param from index of the first key of the run
+     * @param to index past the last key of the run
+     * @param key
+     * @return index of the first key >= key, or to if there is none
+     */
+    abstract int lowerBound(long[] keys, int from, int to, long key);
+
+
+    /**
+     * Finds the first key of a sorted run that is greater than a key
+     *
+     * @param keys array holding the run
+     * @param from index of the first key of the run
+     * @param to index past the last key of the run
+     * @param key
+     * @return index of the first key > key, or to if there is none
+     */
+    abstract int upperBound(long[] keys, int from, int to, long key);
+
+
+    /**
+     * Gets the vector search if it was compiled, its module is present
+     * and it is not turned off, else the binary search
+     *
+     * @return search
+     */
+    private static LongSearch load() {
+        String enabled = System.getProperty("application.vectorSearch", "true");
+        if (Boolean.parseBoolean(enabled)
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (LongSearch) Class.forName("application.LongVectorSearch")
+                    .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not compiled into this build, fall back to the binary search
+            }
+        }
+        return new Binary();
+    }
+
+
+    /**
+     * This class is the scalar search: a binary search of the run
+     */
+    static final class Binary extends LongSearch {
+
+        int lowerBound(long[] keys, int from, int to, long key) {
+            int lo = from, hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        int upperBound(long[] keys, int from, int to, long key) {
+            int lo = from, hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+    } // End of class Binary
+
+}
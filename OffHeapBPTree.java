@@ -0,0 +1,493 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Implementation of a B+ tree whose leaf entries live off the heap.
+ *
+ * Keys and values of the leaves are encoded with fixed-width codecs
+ * into blocks of a SlabArena, so only a small header per leaf and the
+ * internal nodes stay on the heap, and the garbage collector never
+ * traces the entries. Values are decoded only when a range search
+ * returns them. It has the same insert and rangeSearch semantics as
+ * a BPTree.
+ *
+ * @param <K> key - expect the value to compare for each item
+ * @param <V> value - expect a fixed-width value such as a row id
+ */
+public class OffHeapBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
+
+    // Root of the tree
+    private Node root;
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private int branchingFactor;
+
+    // Encodings of keys and values
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+
+    // Offset of the values in a leaf block
+    private final int valuesOffset;
+
+    // Memory holding the leaf entries
+    private final SlabArena arena;
+
+    // Buffer used to move bytes within a block
+    private final byte[] scratch;
+
+
+    /**
+     * Public constructor
+     *
+     * @param branchingFactor
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     */
+    public OffHeapBPTree(int branchingFactor, Codec<K> keyCodec, Codec<V> valueCodec) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        this.branchingFactor = branchingFactor;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        // one slot more than allowed so an overflowing leaf can be split
+        this.valuesOffset = branchingFactor * keyCodec.size();
+        this.arena = new SlabArena(branchingFactor * (keyCodec.size() + valueCodec.size()));
+        this.scratch = new byte[branchingFactor * Math.max(keyCodec.size(), valueCodec.size())];
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     * @throws IllegalArgumentException if key is null
+     */
+    @Override
+    public void insert(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        if (root == null) {
+            LeafNode leaf = new LeafNode();
+            leaf.insert(key, value);
+            root = leaf;
+            return;
+        }
+        Node tmp = root.insert(key, value);
+        if (tmp != null) root = tmp;
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Values are returned in ascending key order.
+     *
+     * If key is null or not found, return empty list.
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     */
+    @Override
+    public List<V> rangeSearch(K key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        if (key == null || comparator == null || root == null)
+            return ret;
+        switch (comparator) {
+            case "==":
+                LeafNode leaf = findLeaf(key);
+                int i = leaf.lowerBound(key);
+                while (leaf != null) {
+                    while (i < leaf.size && leaf.compare(i, key) == 0)
+                        ret.add(leaf.value(i++));
+                    if (i < leaf.size) break;
+                    leaf = leaf.next;
+                    i = 0;
+                }
+                return ret;
+            case ">=":
+                leaf = findLeaf(key);
+                i = leaf.lowerBound(key);
+                while (leaf != null) {
+                    for (; i < leaf.size; i++) ret.add(leaf.value(i));
+                    leaf = leaf.next;
+                    i = 0;
+                }
+                return ret;
+            case "<=":
+                // scan from the first leaf up to the last key <= key
+                leaf = findLeaf(null);
+                while (leaf != null) {
+                    int end = leaf.upperBound(key);
+                    for (i = 0; i < end; i++) ret.add(leaf.value(i));
+                    if (end < leaf.size) break;
+                    leaf = leaf.next;
+                }
+                return ret;
+            default:
+                return ret;
+        }
+    }
+
+
+    /**
+     * Removes every entry and releases the off-heap memory of the leaves,
+     * which is the only way that memory is given back
+     */
+    public void clear() {
+        root = null;
+        arena.release();
+    }
+
+
+    /**
+     * Gets the off-heap memory reserved for leaf entries
+     *
+     * @return size in bytes
+     */
+    public long offHeapBytes() {
+        return arena.reservedBytes();
+    }
+
+
+    /**
+     * Descends from the root to the leaf where a scan for the key starts
+     *
+     * @param key
+     * @return leaf holding the first key >= key, or the first leaf if
+     *         key is null
+     */
+    private LeafNode findLeaf(K key) {
+        Node node = root;
+        while (node instanceof OffHeapBPTree.InternalNode) {
+            InternalNode internal = (InternalNode) node;
+            node = internal.children[key == null ? 0 : internal.lowerBound(key)];
+        }
+        return (LeafNode) node;
+    }
+
+
+    /**
+     * convert OffHeapBPTree to string
+     *
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof OffHeapBPTree.InternalNode)
+                        nextQueue.add(Arrays.asList(((InternalNode) node).children)
+                            .subList(0, node.size + 1));
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * This abstract class represents any type of node in the tree
+     * This class is a super class of the LeafNode and InternalNode types.
+     */
+    private abstract class Node {
+
+        // Number of keys stored in the node
+        int size;
+
+        /**
+         * Gets a key of the node
+         *
+         * @param i index of the key
+         * @return key
+         */
+        abstract K key(int i);
+
+        /**
+         * Compares a key of the node with a key without decoding it
+         *
+         * @param i index of the key
+         * @param key
+         * @return negative, zero or positive as key(i) is less than,
+         *         equal to or greater than key
+         */
+        abstract int compare(int i, K key);
+
+        /**
+         * Finds the position of the first key that is not less than the given key
+         *
+         * @param key
+         * @return index of the first key >= key, or size if there is none
+         */
+        int lowerBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the position of the first key that is greater than the given key
+         *
+         * @param key
+         * @return index of the first key > key, or size if there is none
+         */
+        int upperBound(K key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Inserts key and value in the appropriate leaf node
+         * and balances the tree if required by splitting
+         *
+         * @param key
+         * @param value
+         * @return null if no split happened, else the node to be pushed up
+         */
+        abstract InternalNode insert(K key, V value);
+
+        /**
+         * Gets the new sibling created after splitting the node
+         *
+         * @return Node
+         */
+        abstract Node split();
+
+        /**
+         * judge if the node contains more keys than allowed
+         *
+         * @return true if node contains more keys than allowed
+         */
+        boolean isOverflow() {
+            return size == branchingFactor;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(key(i));
+            }
+            return sb.append(']').toString();
+        }
+
+    } // End of abstract class Node
+
+    /**
+     * This class represents an internal node of the tree.
+     * Its keys are few and stay on the heap.
+     */
+    private class InternalNode extends Node {
+
+        // Array of keys, only the first size entries are in use
+        K[] keys;
+
+        // Array of children nodes, size + 1 entries are in use
+        Node[] children;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        InternalNode() {
+            keys = (K[]) new Comparable[branchingFactor];
+            children = (Node[]) new OffHeapBPTree.Node[branchingFactor + 1];
+        }
+
+        K key(int i) {
+            return keys[i];
+        }
+
+        int compare(int i, K key) {
+            return keys[i].compareTo(key);
+        }
+
+        /**
+         * insert a key-value pair into the node and its subtree, split if needed
+         * @return null if the node doesn't need to be split, else the node to be pushed up
+         */
+        InternalNode insert(K key, V value) {
+            int cur = lowerBound(key);
+            InternalNode up = children[cur].insert(key, value);
+            if (up == null) return null;
+            System.arraycopy(keys, cur, keys, cur + 1, size - cur);
+            System.arraycopy(children, cur + 1, children, cur + 2, size - cur);
+            keys[cur] = up.keys[0];
+            children[cur + 1] = up.children[1];
+            size++;
+            return isOverflow() ? split() : null;
+        }
+
+        /**
+         * split the node; this node keeps the lower half of the keys
+         *
+         * @return an internal node that is the parent of two split children
+         */
+        InternalNode split() {
+            InternalNode right = new InternalNode();
+            InternalNode top = new InternalNode();
+            int mid = size / 2;
+            right.size = size - mid - 1;
+            System.arraycopy(keys, mid + 1, right.keys, 0, right.size);
+            System.arraycopy(children, mid + 1, right.children, 0, right.size + 1);
+            top.keys[0] = keys[mid];
+            top.children[0] = this;
+            top.children[1] = right;
+            top.size = 1;
+            Arrays.fill(keys, mid, size, null);
+            Arrays.fill(children, mid + 1, size + 1, null);
+            size = mid;
+            return top;
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree.
+     * Its entries are stored in an arena block: the keys first,
+     * then the values.
+     */
+    private class LeafNode extends Node {
+
+        // Buffer and offset of the block holding the entries
+        ByteBuffer buffer;
+        int base;
+
+        // Reference to the next leaf node
+        LeafNode next;
+
+        // Reference to the previous leaf node
+        LeafNode previous;
+
+        /**
+         * Package constructor
+         */
+        LeafNode() {
+            int block = arena.allocate();
+            buffer = arena.buffer(block);
+            base = arena.offset(block);
+        }
+
+        K key(int i) {
+            return keyCodec.read(buffer, base + i * keyCodec.size());
+        }
+
+        int compare(int i, K key) {
+            return keyCodec.compare(buffer, base + i * keyCodec.size(), key);
+        }
+
+        /**
+         * Decodes a value of the leaf
+         *
+         * @param i index of the entry
+         * @return value
+         */
+        V value(int i) {
+            return valueCodec.read(buffer, base + valuesOffset + i * valueCodec.size());
+        }
+
+        /**
+         * insert a key-value pair into the node, split if needed
+         *
+         * @return null if the node doesn't need to be split, else the
+         *                                                  node to be pushed up
+         */
+        InternalNode insert(K key, V value) {
+            int ind = lowerBound(key);
+            int keySize = keyCodec.size(), valueSize = valueCodec.size();
+            move(ind * keySize, (ind + 1) * keySize, (size - ind) * keySize);
+            move(valuesOffset + ind * valueSize, valuesOffset + (ind + 1) * valueSize,
+                (size - ind) * valueSize);
+            keyCodec.write(buffer, base + ind * keySize, key);
+            valueCodec.write(buffer, base + valuesOffset + ind * valueSize, value);
+            size++;
+            return isOverflow() ? split() : null;
+        }
+
+        /**
+         * split the node; this node keeps the lower half of the entries
+         *
+         * @return an internal node that is the parent of two split children
+         */
+        InternalNode split() {
+            LeafNode right = new LeafNode();
+            InternalNode top = new InternalNode();
+            int mid = size / 2;
+            int keySize = keyCodec.size(), valueSize = valueCodec.size();
+            right.size = size - mid;
+            right.buffer.put(right.base, buffer, base + mid * keySize, right.size * keySize);
+            right.buffer.put(right.base + valuesOffset, buffer,
+                base + valuesOffset + mid * valueSize, right.size * valueSize);
+            size = mid;
+            top.keys[0] = key(mid - 1);
+            top.children[0] = this;
+            top.children[1] = right;
+            top.size = 1;
+            right.next = next;
+            right.previous = this;
+            if (next != null) next.previous = right;
+            next = right;
+            return top;
+        }
+
+        /**
+         * Moves bytes within the block; the regions may overlap
+         */
+        private void move(int from, int to, int length) {
+            if (length <= 0) return;
+            buffer.get(base + from, scratch, 0, length);
+            buffer.put(base + to, scratch, 0, length);
+        }
+
+    } // End of class LeafNode
+
+} // End of class OffHeapBPTree
@@ -0,0 +1,93 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filename:   OffHeapBPTreeTest.java
+ *
+ * JUnit tests of OffHeapBPTree against a BPTree over the same entries.
+ */
+public class OffHeapBPTreeTest {
+
+    // Long codec that keeps the default compare, which decodes the key
+    private static final Codec<Long> DECODING_LONG = new Codec<Long>() {
+        public int size() {
+            return Codec.LONG.size();
+        }
+        public void write(ByteBuffer buf, int offset, Long value) {
+            Codec.LONG.write(buf, offset, value);
+        }
+        public Long read(ByteBuffer buf, int offset) {
+            return Codec.LONG.read(buf, offset);
+        }
+    };
+
+
+    /**
+     * Fills an off-heap tree and a BPTree alike and compares every search
+     */
+    static void assertMatchesBPTree(Codec<Long> keyCodec, int b, Random rnd) {
+        OffHeapBPTree<Long, Integer> tree = new OffHeapBPTree<>(b, keyCodec, Codec.INTEGER);
+        BPTree<Long, Integer> reference = new BPTree<>(b);
+        for (int i = 0; i < 2000; i++) {
+            long key = rnd.nextInt(300) - 150;
+            tree.insert(key, i);
+            reference.insert(key, i);
+        }
+        for (long q = -152; q <= 152; q++) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void matchesBPTree() {
+        Random rnd = new Random(10);
+        for (int b : new int[]{3, 4, 7, 16})
+            assertMatchesBPTree(Codec.LONG, b, rnd);
+    }
+
+
+    @Test
+    public void codecWithoutInPlaceCompareMatchesBPTree() {
+        assertMatchesBPTree(DECODING_LONG, 5, new Random(11));
+    }
+
+
+    @Test
+    public void doubleKeysCompareLikeDoubleCompareTo() {
+        double[] keys = {1.5, -0.0, 0.0, Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -1.5};
+        OffHeapBPTree<Double, Integer> tree = new OffHeapBPTree<>(3, Codec.DOUBLE, Codec.INTEGER);
+        BPTree<Double, Integer> reference = new BPTree<>(3);
+        for (int i = 0; i < keys.length; i++) {
+            tree.insert(keys[i], i);
+            reference.insert(keys[i], i);
+        }
+        for (double q : keys) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void clearReleasesTheOffHeapMemory() {
+        OffHeapBPTree<Long, Integer> tree = new OffHeapBPTree<>(8, Codec.LONG, Codec.INTEGER);
+        assertEquals(0, tree.offHeapBytes());
+        for (int i = 0; i < 10000; i++) tree.insert((long) i, i);
+        assertTrue(tree.offHeapBytes() > 10000L * (Long.BYTES + Integer.BYTES));
+        tree.clear();
+        assertEquals(0, tree.offHeapBytes());
+        assertTrue(tree.rangeSearch(0L, ">=").isEmpty());
+        tree.insert(3L, 3);
+        assertEquals(1, tree.rangeSearch(3L, "==").size());
+    }
+
+}
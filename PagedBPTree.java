@@ -0,0 +1,812 @@
+package application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of a disk-resident B+ tree.
+ *
+ * Every node is a fixed-size page of one file, and pages are accessed
+ * through a bounded BufferPool with clock eviction, so the index can
+ * be larger than memory while heap use stays constant. Keys and values
+ * are stored in place with fixed-width codecs, and the branching
+ * factor follows from the page size and the width of the entries.
+ *
+ * The file starts with a header page. Every other page is a node:
+ * a leaf holds its keys followed by its values and the page numbers
+ * of its neighbor leaves, an internal node holds its keys followed
+ * by the page numbers of its children. Page 0 is never a node, so a
+ * page number of 0 means "none".
+ *
+ * Without a log, changes reach the file when pages are evicted, on
+ * flush, and on close, and a crash can leave the file inconsistent.
+ * With a write-ahead log, every insert is appended to the log first and
+ * the log is forced once per batch of inserts, so durable ingestion
+ * costs one sequential write per batch. Modified pages then stay in
+ * the buffer pool until a checkpoint, which logs their images, writes
+ * them in place and empties the log. Checkpoints are taken when the log
+ * grows past a given size, when the pool runs short of clean pages, on
+ * flush, and on close. Opening the tree replays the log over the last
+ * checkpoint.
+ *
+ * @param <K> key - expect the value to compare for each item
+ * @param <V> value - expect a fixed-width value such as a row id
+ */
+public class PagedBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V>, Closeable {
+
+    // Header page layout
+    private static final int MAGIC = 0x42505452;
+    private static final int FORMAT_VERSION = 1;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_PAGE_SIZE = 8;
+    private static final int H_KEY_SIZE = 12;
+    private static final int H_VALUE_SIZE = 16;
+    private static final int H_ROOT = 24;
+    private static final int H_PAGE_COUNT = 32;
+    private static final int HEADER_SIZE = 40;
+
+    // Node page layout
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int N_TYPE = 0;
+    private static final int N_COUNT = 4;
+    private static final int N_NEXT = 8;
+    private static final int N_PREVIOUS = 16;
+    private static final int N_DATA = 24;
+
+    // File holding the pages
+    private final FileChannel channel;
+
+    // Cache of the pages in use
+    private final BufferPool pool;
+
+    // Encodings of keys and values
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+
+    // Sizes in bytes
+    private final int pageSize;
+    private final int keySize;
+    private final int valueSize;
+
+    // Most keys a leaf and an internal node can hold
+    private final int leafCapacity;
+    private final int internalCapacity;
+
+    // Page number of the root, 0 if the tree is empty
+    private long root;
+
+    // Number of pages in the file, including the header
+    private long pageCount;
+
+    // Buffer used to move bytes within a page
+    private final byte[] scratch;
+
+    // Separator pushed up by the last split
+    private K splitKey;
+
+    // Number of levels in the tree, 0 if the tree is empty
+    private int height;
+
+    // Write-ahead log, null if changes are not logged
+    private final WriteAheadLog log;
+
+    // Log size in bytes that triggers a checkpoint
+    private final long checkpointSize;
+
+    // Buffer used to build log records
+    private final ByteBuffer record;
+
+
+    /**
+     * Opens the tree stored in a file, creating the file if it does not exist
+     *
+     * @param file path of the index file
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @param pageSize size of a page in bytes
+     * @param cachedPages number of pages kept in memory, at least 16
+     * @throws IOException if the file cannot be opened or read
+     * @throws IllegalArgumentException if a page cannot hold three entries,
+     *         or the file was written with another page size or codecs
+     */
+    public PagedBPTree(Path file, Codec<K> keyCodec, Codec<V> valueCodec,
+                       int pageSize, int cachedPages) throws IOException {
+        this(file, null, keyCodec, valueCodec, pageSize, cachedPages, 1, 0);
+    }
+
+
+    /**
+     * Opens the tree stored in a file with a write-ahead log, creating
+     * the files if they do not exist, and recovers the changes logged
+     * since the last checkpoint
+     *
+     * Inserts are durable once the log is forced: after every syncBatch
+     * inserts, on sync, and on flush. The buffer pool must be able to hold
+     * the pages modified by one insert on top of the dirty pages, about
+     * twice the height of the tree.
+     *
+     * @param file path of the index file
+     * @param logFile path of the log file, or null to not log changes
+     * @param keyCodec fixed-width encoding of keys
+     * @param valueCodec fixed-width encoding of values
+     * @param pageSize size of a page in bytes
+     * @param cachedPages number of pages kept in memory, at least 16
+     * @param syncBatch number of inserts between two forces of the log
+     * @param checkpointSize log size in bytes that triggers a checkpoint
+     * @throws IOException if a file cannot be opened, read or recovered
+     * @throws IllegalArgumentException if a page cannot hold three entries,
+     *         or the file was written with another page size or codecs
+     */
+    public PagedBPTree(Path file, Path logFile, Codec<K> keyCodec, Codec<V> valueCodec,
+                       int pageSize, int cachedPages, int syncBatch,
+                       long checkpointSize) throws IOException {
+        if (logFile != null && checkpointSize <= 0)
+            throw new IllegalArgumentException("Illegal checkpoint size: " + checkpointSize);
+        if (cachedPages < 16)
+            throw new IllegalArgumentException("Illegal cache size: " + cachedPages);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.pageSize = pageSize;
+        this.keySize = keyCodec.size();
+        this.valueSize = valueCodec.size();
+        this.leafCapacity = (pageSize - N_DATA) / (keySize + valueSize);
+        this.internalCapacity = (pageSize - N_DATA - Long.BYTES) / (keySize + Long.BYTES);
+        if (pageSize < HEADER_SIZE || leafCapacity < 3 || internalCapacity < 3)
+            throw new IllegalArgumentException("Illegal page size: " + pageSize);
+        this.scratch = new byte[pageSize];
+        this.checkpointSize = checkpointSize;
+        // a page image or checkpoint record is the largest record
+        int maxRecord = Math.max(Long.BYTES + pageSize, Math.max(keySize + valueSize, 3 * Long.BYTES));
+        this.record = logFile == null ? null : ByteBuffer.allocate(maxRecord);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        WriteAheadLog log = null;
+        try {
+            if (channel.size() == 0) {
+                root = 0;
+                pageCount = 1;
+                writeHeader();
+            } else {
+                readHeader();
+            }
+            this.pool = new BufferPool(channel, pageSize, cachedPages);
+            if (logFile != null) {
+                pool.setSteal(false);
+                log = new WriteAheadLog(logFile, maxRecord, syncBatch);
+            }
+            this.log = log;
+            if (log != null) recover();
+            height = height();
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (log != null) log.close();
+            } finally {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param value
+     * @throws IllegalArgumentException if key is null
+     * @throws UncheckedIOException if a page cannot be read or written
+     */
+    @Override
+    public void insert(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        try {
+            if (log == null) {
+                apply(key, value);
+                return;
+            }
+            if (poolIsFull()) checkpoint();
+            record.clear();
+            keyCodec.write(record, 0, key);
+            valueCodec.write(record, keySize, value);
+            record.limit(keySize + valueSize);
+            log.append(WriteAheadLog.INSERT, record);
+            apply(key, value);
+            log.commit();
+            if (log.size() >= checkpointSize) checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Inserts the key and value without logging them
+     *
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    private void apply(K key, V value) throws IOException {
+        if (root == 0) {
+            long leafId = pageCount++;
+            ByteBuffer leaf = pool.pinNew(leafId);
+            leaf.put(N_TYPE, LEAF);
+            insertLeafEntry(leaf, 0, 0, key, value);
+            pool.unpin(leafId, true);
+            root = leafId;
+            height = 1;
+            return;
+        }
+        long right = insert(root, key, value);
+        if (right != 0) {
+            long topId = pageCount++;
+            ByteBuffer top = pool.pinNew(topId);
+            top.put(N_TYPE, INTERNAL);
+            top.putInt(N_COUNT, 1);
+            keyCodec.write(top, internalKey(0), splitKey);
+            top.putLong(child(0), root);
+            top.putLong(child(1), right);
+            pool.unpin(topId, true);
+            root = topId;
+            height++;
+        }
+    }
+
+
+    /**
+     * insert a key-value pair into the subtree rooted at a page, split if needed
+     *
+     * @param pageId
+     * @param key
+     * @param value
+     * @return page number of the new right sibling if the page was split,
+     *         with its separator in splitKey, else 0
+     * @throws IOException
+     */
+    private long insert(long pageId, K key, V value) throws IOException {
+        ByteBuffer page = pool.pin(pageId);
+        boolean modified = false;
+        try {
+            int count = page.getInt(N_COUNT);
+            if (page.get(N_TYPE) == LEAF) {
+                int i = lowerBound(page, count, key);
+                modified = true;
+                if (count < leafCapacity) {
+                    insertLeafEntry(page, count, i, key, value);
+                    return 0;
+                }
+                return splitLeaf(pageId, page, count, i, key, value);
+            }
+            int i = lowerBound(page, count, key);
+            long right = insert(page.getLong(child(i)), key, value);
+            if (right == 0) return 0;
+            modified = true;
+            K sep = splitKey;
+            if (count < internalCapacity) {
+                insertInternalEntry(page, count, i, sep, right);
+                return 0;
+            }
+            return splitInternal(page, count, i, sep, right);
+        } finally {
+            pool.unpin(pageId, modified);
+        }
+    }
+
+
+    /**
+     * Splits a full leaf and adds the new entry to the half it belongs in
+     *
+     * @return page number of the new right leaf
+     * @throws IOException
+     */
+    private long splitLeaf(long pageId, ByteBuffer page, int count, int i,
+                           K key, V value) throws IOException {
+        long rightId = pageCount++;
+        ByteBuffer right = pool.pinNew(rightId);
+        try {
+            int mid = count / 2;
+            int moved = count - mid;
+            right.put(N_TYPE, LEAF);
+            copy(page, leafKey(mid), right, leafKey(0), moved * keySize);
+            copy(page, leafValue(mid), right, leafValue(0), moved * valueSize);
+            right.putInt(N_COUNT, moved);
+            page.putInt(N_COUNT, mid);
+            if (i <= mid) insertLeafEntry(page, mid, i, key, value);
+            else insertLeafEntry(right, moved, i - mid, key, value);
+
+            long next = page.getLong(N_NEXT);
+            right.putLong(N_NEXT, next);
+            right.putLong(N_PREVIOUS, pageId);
+            page.putLong(N_NEXT, rightId);
+            if (next != 0) {
+                ByteBuffer nextPage = pool.pin(next);
+                nextPage.putLong(N_PREVIOUS, rightId);
+                pool.unpin(next, true);
+            }
+            splitKey = keyCodec.read(page, leafKey(page.getInt(N_COUNT) - 1));
+            return rightId;
+        } finally {
+            pool.unpin(rightId, true);
+        }
+    }
+
+
+    /**
+     * Splits a full internal node and adds the new separator and child
+     * to the half they belong in
+     *
+     * @return page number of the new right node
+     * @throws IOException
+     */
+    private long splitInternal(ByteBuffer page, int count, int i, K sep,
+                               long newChild) throws IOException {
+        long rightId = pageCount++;
+        ByteBuffer right = pool.pinNew(rightId);
+        try {
+            int mid = count / 2;
+            int moved = count - mid - 1;
+            K up = keyCodec.read(page, internalKey(mid));
+            right.put(N_TYPE, INTERNAL);
+            copy(page, internalKey(mid + 1), right, internalKey(0), moved * keySize);
+            copy(page, child(mid + 1), right, child(0), (moved + 1) * Long.BYTES);
+            right.putInt(N_COUNT, moved);
+            page.putInt(N_COUNT, mid);
+            if (i <= mid) insertInternalEntry(page, mid, i, sep, newChild);
+            else insertInternalEntry(right, moved, i - mid - 1, sep, newChild);
+            splitKey = up;
+            return rightId;
+        } finally {
+            pool.unpin(rightId, true);
+        }
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Values are returned in ascending key order.
+     *
+     * If key is null or not found, return empty list.
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     * @throws UncheckedIOException if a page cannot be read
+     */
+    @Override
+    public List<V> rangeSearch(K key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        if (key == null || comparator == null || root == 0)
+            return ret;
+        try {
+            switch (comparator) {
+                case "==":
+                case ">=":
+                    boolean equal = comparator.equals("==");
+                    long pageId = findLeaf(key);
+                    ByteBuffer page = pool.pin(pageId);
+                    int i = lowerBound(page, page.getInt(N_COUNT), key);
+                    while (true) {
+                        int count = page.getInt(N_COUNT);
+                        for (; i < count; i++) {
+                            if (equal && keyCodec.compare(page, leafKey(i), key) != 0) {
+                                pool.unpin(pageId, false);
+                                return ret;
+                            }
+                            ret.add(valueCodec.read(page, leafValue(i)));
+                        }
+                        long next = page.getLong(N_NEXT);
+                        pool.unpin(pageId, false);
+                        if (next == 0) return ret;
+                        pageId = next;
+                        page = pool.pin(pageId);
+                        i = 0;
+                    }
+                case "<=":
+                    // scan from the first leaf up to the last key <= key
+                    pageId = findLeaf(null);
+                    page = pool.pin(pageId);
+                    while (true) {
+                        int count = page.getInt(N_COUNT);
+                        int end = upperBound(page, count, key);
+                        for (i = 0; i < end; i++)
+                            ret.add(valueCodec.read(page, leafValue(i)));
+                        long next = page.getLong(N_NEXT);
+                        pool.unpin(pageId, false);
+                        if (end < count || next == 0) return ret;
+                        pageId = next;
+                        page = pool.pin(pageId);
+                    }
+                default:
+                    return ret;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Descends from the root to the leaf where a scan for the key starts
+     *
+     * @param key
+     * @return page number of the leaf holding the first key >= key,
+     *         or of the first leaf if key is null
+     * @throws IOException
+     */
+    private long findLeaf(K key) throws IOException {
+        long pageId = root;
+        while (true) {
+            ByteBuffer page = pool.pin(pageId);
+            if (page.get(N_TYPE) == LEAF) {
+                pool.unpin(pageId, false);
+                return pageId;
+            }
+            int count = page.getInt(N_COUNT);
+            int i = key == null ? 0 : lowerBound(page, count, key);
+            long child = page.getLong(child(i));
+            pool.unpin(pageId, false);
+            pageId = child;
+        }
+    }
+
+
+    /**
+     * Writes all modified pages and the header to the file and forces
+     * them to the storage device; with a log, this is a checkpoint
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void flush() throws IOException {
+        if (log != null) {
+            checkpoint();
+            return;
+        }
+        pool.flush();
+        writeHeader();
+        channel.force(true);
+    }
+
+
+    /**
+     * Forces the logged inserts to the storage device, making every
+     * insert so far durable; does nothing without a log
+     *
+     * @throws IOException if the log cannot be written
+     */
+    public void sync() throws IOException {
+        if (log != null) log.sync();
+    }
+
+
+    /**
+     * Flushes the tree and closes the files
+     *
+     * @throws IOException if a file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            try {
+                if (log != null) log.close();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+
+    /**
+     * Takes a checkpoint and empties the log
+     *
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+        writeCheckpoint(-1);
+        log.reset();
+    }
+
+
+    /**
+     * Logs the images of all modified pages and the header, then writes
+     * the pages in place. Once the checkpoint record is forced the pages
+     * can be rewritten from the log, so a crash while they are written
+     * leaves nothing torn.
+     *
+     * @param redoFrom offset of the first logged insert the checkpoint
+     *        does not contain, or -1 if it contains every logged insert
+     * @throws IOException
+     */
+    private void writeCheckpoint(long redoFrom) throws IOException {
+        pool.forEachDirty((pageId, page) -> {
+            record.clear();
+            record.putLong(0, pageId);
+            record.put(Long.BYTES, page, 0, pageSize);
+            record.limit(Long.BYTES + pageSize);
+            log.append(WriteAheadLog.PAGE, record);
+        });
+        record.clear();
+        record.putLong(root).putLong(pageCount).putLong(redoFrom).flip();
+        log.append(WriteAheadLog.CHECKPOINT, record);
+        log.sync();
+        pool.flush();
+        writeHeader();
+        channel.force(true);
+    }
+
+
+    /**
+     * Checks whether the buffer pool may run out of clean frames during
+     * the next insert; dirty pages cannot be evicted while logging
+     *
+     * @return true if a checkpoint must be taken first
+     */
+    private boolean poolIsFull() {
+        return pool.capacity() - pool.dirtyCount() < 2 * height + 2;
+    }
+
+
+    /**
+     * Brings the index file up to date with the log: rewrites the pages
+     * of the last complete checkpoint, then replays the inserts logged
+     * after it. A checkpoint record tells where its replay starts, so
+     * checkpoints taken while replaying are recovered like any other.
+     *
+     * @throws IOException if the log cannot be read or the file written
+     */
+    private void recover() throws IOException {
+        // first pass: find the last complete checkpoint
+        long[] last = {-1, -1, 0, 0, 0};  // images, record, root, page count, redo
+        long[] images = {-1};
+        byte[] previous = {0};
+        long end = log.scan(0, (type, payload, position, next) -> {
+            if (type == WriteAheadLog.PAGE && previous[0] != WriteAheadLog.PAGE)
+                images[0] = position;
+            if (type == WriteAheadLog.CHECKPOINT) {
+                last[0] = previous[0] == WriteAheadLog.PAGE ? images[0] : position;
+                last[1] = position;
+                last[2] = payload.getLong();
+                last[3] = payload.getLong();
+                long redoFrom = payload.getLong();
+                last[4] = redoFrom < 0 ? next : redoFrom;
+            }
+            previous[0] = type;
+            return true;
+        });
+        // drop a torn record so that new records follow intact ones
+        log.truncate(end);
+        if (last[1] >= 0) {
+            ByteBuffer image = ByteBuffer.allocate(pageSize);
+            log.scan(last[0], (type, payload, position, next) -> {
+                if (position >= last[1]) return false;
+                long pageId = payload.getLong();
+                image.clear();
+                image.put(0, payload, payload.position(), pageSize);
+                while (image.hasRemaining())
+                    channel.write(image, pageId * pageSize + image.position());
+                return true;
+            });
+            root = last[2];
+            pageCount = last[3];
+            writeHeader();
+            channel.force(true);
+        }
+        // second pass: replay the inserts the checkpoint does not contain
+        height = height();
+        log.scan(last[4], (type, payload, position, next) -> {
+            if (position >= end) return false;
+            if (type != WriteAheadLog.INSERT) return true;
+            if (poolIsFull()) writeCheckpoint(position);
+            K key = keyCodec.read(payload, payload.position());
+            V value = valueCodec.read(payload, payload.position() + keySize);
+            apply(key, value);
+            return true;
+        });
+        checkpoint();
+    }
+
+
+    /**
+     * Counts the levels of the tree by descending its leftmost path
+     *
+     * @return height, 0 if the tree is empty
+     * @throws IOException
+     */
+    private int height() throws IOException {
+        int levels = 0;
+        long pageId = root;
+        while (pageId != 0) {
+            ByteBuffer page = pool.pin(pageId);
+            long child = page.get(N_TYPE) == LEAF ? 0 : page.getLong(child(0));
+            pool.unpin(pageId, false);
+            pageId = child;
+            levels++;
+        }
+        return levels;
+    }
+
+
+    /**
+     * convert PagedBPTree to string, one line per level
+     *
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (root == 0) return sb.toString();
+        try {
+            List<List<Long>> level = new ArrayList<>();
+            level.add(List.of(root));
+            while (!level.isEmpty()) {
+                List<List<Long>> nextLevel = new ArrayList<>();
+                for (int g = 0; g < level.size(); g++) {
+                    sb.append('{');
+                    List<Long> group = level.get(g);
+                    for (int n = 0; n < group.size(); n++) {
+                        long pageId = group.get(n);
+                        ByteBuffer page = pool.pin(pageId);
+                        int count = page.getInt(N_COUNT);
+                        boolean leaf = page.get(N_TYPE) == LEAF;
+                        sb.append('[');
+                        List<Long> children = new ArrayList<>();
+                        for (int i = 0; i < count; i++) {
+                            if (i > 0) sb.append(", ");
+                            sb.append(keyCodec.read(page, leaf ? leafKey(i) : internalKey(i)));
+                        }
+                        if (!leaf) {
+                            for (int i = 0; i <= count; i++)
+                                children.add(page.getLong(child(i)));
+                            nextLevel.add(children);
+                        }
+                        pool.unpin(pageId, false);
+                        sb.append(']');
+                        if (n < group.size() - 1) sb.append(", ");
+                    }
+                    sb.append('}');
+                    sb.append(g < level.size() - 1 ? ", " : "\n");
+                }
+                level = nextLevel;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+
+    /*
+     * Page layout helpers
+     */
+
+    private int leafKey(int i) {
+        return N_DATA + i * keySize;
+    }
+
+    private int leafValue(int i) {
+        return N_DATA + leafCapacity * keySize + i * valueSize;
+    }
+
+    private int internalKey(int i) {
+        return N_DATA + i * keySize;
+    }
+
+    private int child(int i) {
+        return N_DATA + internalCapacity * keySize + i * Long.BYTES;
+    }
+
+    /**
+     * Leaf and internal keys share the same offsets, so one binary
+     * search serves both page types.
+     *
+     * @return index of the first key >= key, or count if there is none
+     */
+    private int lowerBound(ByteBuffer page, int count, K key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyCodec.compare(page, leafKey(mid), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first key > key, or count if there is none
+     */
+    private int upperBound(ByteBuffer page, int count, K key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyCodec.compare(page, leafKey(mid), key) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Adds an entry at position i of a leaf that has room for it
+     */
+    private void insertLeafEntry(ByteBuffer page, int count, int i, K key, V value) {
+        copy(page, leafKey(i), page, leafKey(i + 1), (count - i) * keySize);
+        copy(page, leafValue(i), page, leafValue(i + 1), (count - i) * valueSize);
+        keyCodec.write(page, leafKey(i), key);
+        valueCodec.write(page, leafValue(i), value);
+        page.putInt(N_COUNT, count + 1);
+    }
+
+    /**
+     * Adds separator i and child i + 1 to an internal node that has room
+     */
+    private void insertInternalEntry(ByteBuffer page, int count, int i, K key, long right) {
+        copy(page, internalKey(i), page, internalKey(i + 1), (count - i) * keySize);
+        copy(page, child(i + 1), page, child(i + 2), (count - i) * Long.BYTES);
+        keyCodec.write(page, internalKey(i), key);
+        page.putLong(child(i + 1), right);
+        page.putInt(N_COUNT, count + 1);
+    }
+
+    /**
+     * Copies bytes between or within pages; the regions may overlap
+     */
+    private void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int length) {
+        if (length <= 0) return;
+        from.get(fromOffset, scratch, 0, length);
+        to.put(toOffset, scratch, 0, length);
+    }
+
+    /**
+     * Writes the header page directly to the file
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, FORMAT_VERSION);
+        header.putInt(H_PAGE_SIZE, pageSize);
+        header.putInt(H_KEY_SIZE, keySize);
+        header.putInt(H_VALUE_SIZE, valueSize);
+        header.putLong(H_ROOT, root);
+        header.putLong(H_PAGE_COUNT, pageCount);
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    /**
+     * Reads and checks the header page
+     */
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("Truncated index header");
+        }
+        if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != FORMAT_VERSION)
+            throw new IOException("Not a BPTree index file");
+        if (header.getInt(H_PAGE_SIZE) != pageSize || header.getInt(H_KEY_SIZE) != keySize
+                || header.getInt(H_VALUE_SIZE) != valueSize)
+            throw new IllegalArgumentException("Index was written with another page layout");
+        root = header.getLong(H_ROOT);
+        pageCount = header.getLong(H_PAGE_COUNT);
+    }
+
+}
@@ -0,0 +1,157 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Filename:   PagedBPTreeTest.java
+ *
+ * JUnit tests of PagedBPTree. The pages are small and the buffer pool
+ * holds the minimum of 16 pages, so that pages are evicted and read
+ * back during the tests.
+ */
+public class PagedBPTreeTest {
+
+    // Size of a page in bytes: 7 long entries per leaf
+    private static final int PAGE = 128;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Checks every comparator of rangeSearch for every key of the range
+     */
+    static void assertSameSearches(PagedBPTree<Long, Long> tree, BPTree<Long, Long> reference, int range) {
+        for (long q = -1; q <= range; q++) {
+            for (String c : new String[]{"==", ">=", "<="})
+                assertEquals(c + q, reference.rangeSearch(q, c), tree.rangeSearch(q, c));
+        }
+    }
+
+
+    @Test
+    public void matchesBPTreeAndSurvivesReopening() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        BPTree<Long, Long> reference = new BPTree<>(8);
+        Random rnd = new Random(8);
+        try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, Codec.LONG, Codec.LONG, PAGE, 16)) {
+            for (long i = 0; i < 5000; i++) {
+                long key = rnd.nextInt(300);
+                tree.insert(key, i);
+                reference.insert(key, i);
+            }
+            assertSameSearches(tree, reference, 300);
+        }
+        try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, Codec.LONG, Codec.LONG, PAGE, 16)) {
+            assertSameSearches(tree, reference, 300);
+            tree.insert(7L, -1L);
+            reference.insert(7L, -1L);
+            assertEquals(reference.rangeSearch(7L, "=="), tree.rangeSearch(7L, "=="));
+        }
+    }
+
+
+    @Test
+    public void reopeningWithAnotherPageSizeIsRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        new PagedBPTree<>(file, Codec.LONG, Codec.LONG, PAGE, 16).close();
+        try {
+            new PagedBPTree<>(file, Codec.LONG, Codec.LONG, 2 * PAGE, 16);
+            fail("page size");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+
+    @Test
+    public void pagesTooSmallForThreeEntriesAreRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        try {
+            new PagedBPTree<>(file, Codec.LONG, Codec.LONG, 48, 16);
+            fail("page size");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullKeyIsRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, Codec.LONG, Codec.LONG, PAGE, 16)) {
+            tree.insert(null, 1L);
+        }
+    }
+
+
+    @Test
+    public void syncedInsertsSurviveACrash() throws IOException {
+        Random rnd = new Random(9);
+        for (int syncBatch : new int[]{1, 4, 64}) {
+            Path file = folder.newFile().toPath(), log = folder.newFile().toPath();
+            Files.delete(file);
+            Files.delete(log);
+            BPTree<Long, Long> reference = new BPTree<>(8);
+            for (int round = 0; round < 4; round++) {
+                // each round is left without close, as if the process died after sync
+                PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, log, Codec.LONG, Codec.LONG,
+                    PAGE, 16, syncBatch, 1 << 20);
+                assertSameSearches(tree, reference, 200);
+                for (int i = 0; i < 700; i++) {
+                    long key = rnd.nextInt(200), value = round * 1000 + i;
+                    tree.insert(key, value);
+                    reference.insert(key, value);
+                }
+                tree.sync();
+                if (round % 2 == 1) {
+                    // a torn record at the end of the log is ignored
+                    Files.write(log, new byte[]{1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND);
+                }
+            }
+            try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, log, Codec.LONG, Codec.LONG,
+                    PAGE, 16, syncBatch, 1 << 20)) {
+                assertSameSearches(tree, reference, 200);
+            }
+        }
+    }
+
+
+    @Test
+    public void checkpointsKeepTheLogSmall() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        Path log = folder.getRoot().toPath().resolve("tree.log");
+        BPTree<Long, Long> reference = new BPTree<>(8);
+        try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, log, Codec.LONG, Codec.LONG,
+                PAGE, 16, 8, 4096)) {
+            for (long i = 0; i < 6000; i++) {
+                tree.insert(i % 500, i);
+                reference.insert(i % 500, i);
+                if (i % 50 == 0) assertTrue(Files.size(log) < 4 * 4096);
+            }
+        }
+        try (PagedBPTree<Long, Long> tree = new PagedBPTree<>(file, log, Codec.LONG, Codec.LONG,
+                PAGE, 16, 8, 4096)) {
+            assertSameSearches(tree, reference, 500);
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveCheckpointSizeIsRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tree.idx");
+        Path log = folder.getRoot().toPath().resolve("tree.log");
+        new PagedBPTree<>(file, log, Codec.LONG, Codec.LONG, PAGE, 16, 1, 0);
+    }
+
+}
@@ -0,0 +1,253 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Implementation of a B+ tree for low-cardinality indexes.
+ *
+ * Each distinct key is stored once in a leaf of a BPTree and maps to
+ * a postings list holding all the values inserted with that key, so
+ * leaves never fill with repeated keys and an "==" search is one
+ * descent plus one list read. Values can be kept as plain objects or,
+ * for integer row ids, as a delta-encoded byte sequence.
+ *
+ * It has the same insert and rangeSearch semantics as a BPTree,
+ * including the order of values that share a key.
+ *
+ * @param <K> key - expect the value to compare for each item
+ * @param <V> value - expect a user-defined type that stores all data for an item
+ */
+public class PostingsBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
+
+    // Tree of distinct keys
+    private final BPTree<K, Postings<V>> tree;
+
+    // Creates the postings list of a new key
+    private final Supplier<Postings<V>> newPostings;
+
+
+    /**
+     * Public constructor; values are kept as objects
+     *
+     * @param branchingFactor
+     */
+    public PostingsBPTree(int branchingFactor) {
+        this(branchingFactor, ObjectPostings::new);
+    }
+
+
+    /**
+     * Private constructor
+     *
+     * @param branchingFactor
+     * @param newPostings creates the postings list of a new key
+     */
+    private PostingsBPTree(int branchingFactor, Supplier<Postings<V>> newPostings) {
+        this.tree = new BPTree<>(branchingFactor);
+        this.newPostings = newPostings;
+    }
+
+
+    /**
+     * Creates a tree whose values are row ids, stored as zigzag varint
+     * deltas from the previous id of the same key. Ids inserted in
+     * increasing order take one or two bytes each.
+     *
+     * @param branchingFactor
+     * @return empty tree
+     */
+    public static <K extends Comparable<K>> PostingsBPTree<K, Long> withRowIds(int branchingFactor) {
+        return new PostingsBPTree<K, Long>(branchingFactor, RowIdPostings::new);
+    }
+
+
+    /**
+     * Inserts the key and value in the appropriate nodes in the tree
+     *
+     * Note: key-value pairs with duplicate keys can be inserted into the tree.
+     * A key already in the tree only gets the value added to its list.
+     *
+     * @param key
+     * @param value
+     * @throws IllegalArgumentException if key is null, or value is null
+     *         in a tree of row ids
+     */
+    @Override
+    public void insert(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        BPTree<K, Postings<V>>.Cursor cursor = tree.cursor(key, "==");
+        if (cursor.hasNext()) {
+            cursor.next().add(value);
+            return;
+        }
+        Postings<V> postings = newPostings.get();
+        postings.add(value);
+        tree.insert(key, postings);
+    }
+
+
+    /**
+     * Gets the values that satisfy the given range
+     * search arguments.
+     *
+     * Value of comparator can be one of these:
+     * "<=", "==", ">="
+     *
+     * Values are returned in ascending key order.
+     *
+     * If key is null or not found, return empty list.
+     * If comparator is null, empty, or not according
+     * to required form, return empty list.
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @return list of values that are the result of the
+     * range search; if nothing found, return empty list
+     */
+    @Override
+    public List<V> rangeSearch(K key, String comparator) {
+        List<V> ret = new ArrayList<V>();
+        BPTree<K, Postings<V>>.Cursor cursor = tree.cursor(key, comparator);
+        while (cursor.hasNext())
+            cursor.next().addTo(ret);
+        return ret;
+    }
+
+
+    /**
+     * Counts the values inserted with a key without reading them
+     *
+     * @param key
+     * @return number of values, 0 if the key is null or not found
+     */
+    public int count(K key) {
+        BPTree<K, Postings<V>>.Cursor cursor = tree.cursor(key, "==");
+        return cursor.hasNext() ? cursor.next().size() : 0;
+    }
+
+
+    /**
+     * convert PostingsBPTree to string; each distinct key appears once
+     *
+     */
+    @Override
+    public String toString() {
+        return tree.toString();
+    }
+
+
+    /**
+     * The values of one key, in insertion order
+     */
+    private abstract static class Postings<V> {
+
+        // Number of values in the list
+        int size;
+
+        /**
+         * Appends a value
+         *
+         * @param value
+         */
+        abstract void add(V value);
+
+        /**
+         * Appends all values to a list, newest first as BPTree returns
+         * the values of equal keys
+         *
+         * @param ret list to append to
+         */
+        abstract void addTo(List<V> ret);
+
+        /**
+         * Gets the number of values in the list
+         *
+         * @return size
+         */
+        int size() {
+            return size;
+        }
+
+    } // End of class Postings
+
+
+    /**
+     * Postings list holding the values in a growable array
+     */
+    private static class ObjectPostings<V> extends Postings<V> {
+
+        // Array of values, only the first size entries are in use
+        Object[] values = new Object[2];
+
+        void add(V value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        void addTo(List<V> ret) {
+            for (int i = size - 1; i >= 0; i--) ret.add((V) values[i]);
+        }
+
+    } // End of class ObjectPostings
+
+
+    /**
+     * Postings list of row ids stored as zigzag varint deltas
+     */
+    private static class RowIdPostings extends Postings<Long> {
+
+        // Encoded deltas, only the first length bytes are in use
+        byte[] data = new byte[4];
+
+        // Number of bytes in use
+        int length;
+
+        // Last id added, the base of the next delta
+        long last;
+
+        void add(Long value) {
+            if (value == null)
+                throw new IllegalArgumentException("Row id is null");
+            long delta = value - last;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            if (length + 10 > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            while ((zigzag & ~0x7FL) != 0) {
+                data[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            data[length++] = (byte) zigzag;
+            last = value;
+            size++;
+        }
+
+        void addTo(List<Long> ret) {
+            int start = ret.size();
+            long id = 0;
+            int pos = 0;
+            while (pos < length) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += (zigzag >>> 1) ^ -(zigzag & 1);
+                ret.add(id);
+            }
+            // decoded oldest first, reverse in place
+            for (int i = start, j = ret.size() - 1; i < j; i++, j--)
+                ret.set(i, ret.set(j, ret.get(i)));
+        }
+
+    } // End of class RowIdPostings
+
+} // End of class PostingsBPTree
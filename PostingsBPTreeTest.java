@@ -0,0 +1,68 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Filename:   PostingsBPTreeTest.java
+ *
+ * JUnit tests of PostingsBPTree, with object and row id postings,
+ * against a BPTree over the same entries.
+ */
+public class PostingsBPTreeTest {
+
+    @Test
+    public void matchesBPTree() {
+        Random rnd = new Random(12);
+        for (int b : new int[]{3, 4, 9}) {
+            for (int range : new int[]{1, 5, 300}) {
+                BPTree<Integer, Long> reference = new BPTree<>(b);
+                PostingsBPTree<Integer, Long> objects = new PostingsBPTree<>(b);
+                PostingsBPTree<Integer, Long> rowIds = PostingsBPTree.withRowIds(b);
+                for (int i = 0; i < 3000; i++) {
+                    int key = rnd.nextInt(range);
+                    // mostly increasing ids, with some far jumps either way
+                    long id = rnd.nextInt(10) == 0 ? rnd.nextLong() : i;
+                    reference.insert(key, id);
+                    objects.insert(key, id);
+                    rowIds.insert(key, id);
+                }
+                for (int q = -1; q <= range; q++) {
+                    for (String c : new String[]{"==", ">=", "<="}) {
+                        assertEquals(c + q, reference.rangeSearch(q, c), objects.rangeSearch(q, c));
+                        assertEquals(c + q, reference.rangeSearch(q, c), rowIds.rangeSearch(q, c));
+                    }
+                    int count = reference.rangeSearch(q, "==").size();
+                    assertEquals(count, objects.count(q));
+                    assertEquals(count, rowIds.count(q));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void extremeRowIdsRoundTrip() {
+        PostingsBPTree<String, Long> tree = PostingsBPTree.withRowIds(4);
+        long[] ids = {0, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long id : ids) tree.insert("k", id);
+        for (int i = 0; i < ids.length; i++)
+            assertEquals((Long) ids[ids.length - 1 - i], tree.rangeSearch("k", "==").get(i));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullRowIdIsRejected() {
+        PostingsBPTree.<String>withRowIds(4).insert("k", null);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullKeyIsRejected() {
+        new PostingsBPTree<String, String>(4).insert(null, "v");
+    }
+
+}
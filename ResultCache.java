@@ -0,0 +1,307 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A cache of the results of rangeSearch(key, comparator) on one tree,
+ * bounded by a number of entries and an estimate of their size, with
+ * least recently used eviction.
+ *
+ * Entries are kept in one sorted map per comparator, so a write to a
+ * key drops exactly the results whose range covers it: the "==" result
+ * of that key, the ">=" results of keys up to it and the "<=" results
+ * of keys from it. Other results stay valid.
+ *
+ * Like the tree, the cache is not thread-safe.
+ *
+ * @param <K> key type of the tree
+ * @param <V> value type of the tree
+ */
+public class ResultCache<K extends Comparable<K>, V> {
+
+    // Estimated bytes of an entry, and of each value reference in a result
+    private static final long ENTRY_BYTES = 96;
+    private static final long VALUE_BYTES = 8;
+
+    // Comparators, as indexes into maps
+    private static final int EQUAL = 0;
+    private static final int AT_LEAST = 1;
+    private static final int AT_MOST = 2;
+
+    // Cached results of each comparator, by key
+    private final List<TreeMap<K, Entry<K, V>>> maps = new ArrayList<>(3);
+
+    // Largest number of entries and estimated bytes held
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // Sentinel of the list of entries, most recently used first
+    private final Entry<K, V> lru = new Entry<>(null, 0, null, 0);
+
+    // Number of entries and their estimated bytes
+    private int entries;
+    private long bytes;
+
+    // Counters
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+
+    /**
+     * Package constructor
+     *
+     * @param maxEntries largest number of results held
+     * @param maxBytes largest estimated size of the results held
+     * @throws IllegalArgumentException if a bound is not positive
+     */
+    ResultCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Illegal cache bounds: " + maxEntries + ", " + maxBytes);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < 3; i++) maps.add(new TreeMap<>());
+        lru.next = lru.previous = lru;
+    }
+
+
+    /**
+     * Looks up a result
+     *
+     * @param key
+     * @param comparator
+     * @return cached result, or null if there is none or the arguments
+     *         are not cacheable
+     */
+    List<V> get(K key, String comparator) {
+        int c = index(comparator);
+        if (key == null || c < 0)
+            return null;
+        Entry<K, V> entry = maps.get(c).get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.unlink();
+        entry.linkAfter(lru);
+        return entry.result;
+    }
+
+
+    /**
+     * Caches a result, evicting the least recently used results until
+     * the bounds are met again
+     *
+     * @param key
+     * @param comparator
+     * @param result computed result
+     * @return read-only view of the result
+     */
+    List<V> put(K key, String comparator, List<V> result) {
+        List<V> view = Collections.unmodifiableList(result);
+        int c = index(comparator);
+        long size = ENTRY_BYTES + VALUE_BYTES * result.size();
+        if (key == null || c < 0 || size > maxBytes)
+            return view;
+        Entry<K, V> entry = new Entry<>(key, c, view, size);
+        Entry<K, V> old = maps.get(c).put(key, entry);
+        if (old != null)
+            remove(old, false);
+        entry.linkAfter(lru);
+        entries++;
+        bytes += size;
+        while (entries > maxEntries || bytes > maxBytes) {
+            Entry<K, V> eldest = lru.previous;
+            maps.get(eldest.comparator).remove(eldest.key);
+            remove(eldest, false);
+            evictions++;
+        }
+        return view;
+    }
+
+
+    /**
+     * Drops the results whose range covers a key that was written
+     *
+     * @param key inserted or deleted key
+     */
+    void invalidate(K key) {
+        if (entries == 0)
+            return;
+        drop(maps.get(EQUAL).subMap(key, true, key, true));
+        drop(maps.get(AT_LEAST).headMap(key, true));
+        drop(maps.get(AT_MOST).tailMap(key, true));
+    }
+
+
+    /**
+     * Drops every result
+     */
+    public void clear() {
+        for (TreeMap<K, Entry<K, V>> map : maps) map.clear();
+        lru.next = lru.previous = lru;
+        entries = 0;
+        bytes = 0;
+    }
+
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long hits() {
+        return hits;
+    }
+
+
+    /**
+     * @return number of lookups that had to search the tree
+     */
+    public long misses() {
+        return misses;
+    }
+
+
+    /**
+     * @return fraction of the lookups answered from the cache
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+
+    /**
+     * @return number of results dropped to meet the bounds
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+
+    /**
+     * @return number of results dropped because a write changed them
+     */
+    public long invalidations() {
+        return invalidations;
+    }
+
+
+    /**
+     * @return number of results held
+     */
+    public int size() {
+        return entries;
+    }
+
+
+    /**
+     * @return estimated bytes of the results held, not counting the
+     *         values, which are shared with the tree
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+
+    @Override
+    public String toString() {
+        return "ResultCache[entries=" + entries + ", bytes=" + bytes + ", hits=" + hits
+            + ", misses=" + misses + ", evictions=" + evictions
+            + ", invalidations=" + invalidations + "]";
+    }
+
+
+    /**
+     * Drops the entries of a view of one of the maps
+     */
+    private void drop(Map<K, Entry<K, V>> view) {
+        if (view.isEmpty())
+            return;
+        for (Iterator<Entry<K, V>> it = view.values().iterator(); it.hasNext(); ) {
+            remove(it.next(), true);
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Unlinks an entry that has left its map
+     */
+    private void remove(Entry<K, V> entry, boolean invalidated) {
+        entry.unlink();
+        entries--;
+        bytes -= entry.bytes;
+        if (invalidated) invalidations++;
+    }
+
+
+    /**
+     * Gets the index of a comparator
+     *
+     * @return index, or -1 if it is not one of "==", ">=" and "<="
+     */
+    private static int index(String comparator) {
+        if (comparator == null)
+            return -1;
+        switch (comparator) {
+            case "==":
+                return EQUAL;
+            case ">=":
+                return AT_LEAST;
+            case "<=":
+                return AT_MOST;
+            default:
+                return -1;
+        }
+    }
+
+
+    /**
+     * A cached result, linked in the order of use
+     */
+    private static class Entry<K, V> {
+
+        // Arguments of the search
+        final K key;
+        final int comparator;
+
+        // Read-only result
+        final List<V> result;
+
+        // Estimated size
+        final long bytes;
+
+        // Neighbours in the order of use
+        Entry<K, V> previous;
+        Entry<K, V> next;
+
+        Entry(K key, int comparator, List<V> result, long bytes) {
+            this.key = key;
+            this.comparator = comparator;
+            this.result = result;
+            this.bytes = bytes;
+        }
+
+        void linkAfter(Entry<K, V> node) {
+            previous = node;
+            next = node.next;
+            node.next.previous = this;
+            node.next = this;
+        }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = next = null;
+        }
+
+    } // End of class Entry
+
+}
@@ -0,0 +1,388 @@
+package application;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable, compressed set of row ids.
+ *
+ * Row ids are grouped by their upper 16 bits. Each group is held in a
+ * container that suits its density: a sorted array of the lower 16 bits
+ * while the group has at most 4096 ids, a 65536-bit bitmap above that,
+ * so no container takes more than 8 KB. Intersection works container by
+ * container: arrays are merged, arrays are probed against bitmaps, and
+ * bitmaps are ANDed a word at a time.
+ */
+public class RowBitmap {
+
+    // Largest number of ids kept in an array container
+    private static final int ARRAY_LIMIT = 4096;
+
+    // The empty set
+    private static final RowBitmap EMPTY = new RowBitmap(new int[0], new Container[0], 0);
+
+    // Upper 16 bits of the ids of each container, ascending
+    private final int[] highs;
+
+    // Containers, in the order of highs
+    private final Container[] containers;
+
+    // Number of ids in the set
+    private final int cardinality;
+
+
+    /**
+     * Private constructor
+     *
+     * @param highs upper bits of each container
+     * @param containers non-empty containers
+     * @param count number of containers in use
+     */
+    private RowBitmap(int[] highs, Container[] containers, int count) {
+        this.highs = count == highs.length ? highs : Arrays.copyOf(highs, count);
+        this.containers = count == containers.length ? containers : Arrays.copyOf(containers, count);
+        int cardinality = 0;
+        for (int i = 0; i < count; i++) cardinality += this.containers[i].cardinality;
+        this.cardinality = cardinality;
+    }
+
+
+    /**
+     * Builds a set from row ids in ascending order
+     *
+     * @param rows row ids, ascending; repeated ids are kept once
+     * @param length number of ids of rows to use
+     * @return set of the ids
+     * @throws IllegalArgumentException if an id is negative or out of order
+     */
+    public static RowBitmap of(int[] rows, int length) {
+        if (length == 0)
+            return EMPTY;
+        int groups = 1;
+        for (int i = 0; i < length; i++) {
+            if (rows[i] < 0 || (i > 0 && rows[i] < rows[i - 1]))
+                throw new IllegalArgumentException("Row ids out of order at " + i);
+            if (i > 0 && rows[i] >>> 16 != rows[i - 1] >>> 16) groups++;
+        }
+        int[] highs = new int[groups];
+        Container[] containers = new Container[groups];
+        int count = 0;
+        char[] lows = new char[ARRAY_LIMIT];
+        for (int start = 0, end; start < length; start = end) {
+            int high = rows[start] >>> 16;
+            int n = 0;
+            BitmapContainer bitmap = null;
+            for (end = start; end < length && rows[end] >>> 16 == high; end++) {
+                if (end > start && rows[end] == rows[end - 1])
+                    continue;
+                if (bitmap != null) {
+                    bitmap.add((char) rows[end]);
+                } else if (n == ARRAY_LIMIT) {
+                    bitmap = new BitmapContainer();
+                    for (int i = 0; i < n; i++) bitmap.add(lows[i]);
+                    bitmap.add((char) rows[end]);
+                } else {
+                    lows[n++] = (char) rows[end];
+                }
+            }
+            highs[count] = high;
+            containers[count++] = bitmap != null ? bitmap : new ArrayContainer(Arrays.copyOf(lows, n));
+        }
+        return new RowBitmap(highs, containers, count);
+    }
+
+
+    /**
+     * Builds a set from row ids in any order. Few ids are sorted; many
+     * ids are set in a plain bitmap spanning them, which is then cut
+     * into containers.
+     *
+     * @param rows row ids; the array is reordered
+     * @param length number of ids of rows to use
+     * @return set of the ids
+     * @throws IllegalArgumentException if an id is negative
+     */
+    public static RowBitmap ofUnsorted(int[] rows, int length) {
+        int max = -1;
+        for (int i = 0; i < length; i++) {
+            if (rows[i] < 0)
+                throw new IllegalArgumentException("Negative row id: " + rows[i]);
+            max = Math.max(max, rows[i]);
+        }
+        // sorting costs about log2(length) per id, the bitmap one pass over its words
+        if ((long) length * (32 - Integer.numberOfLeadingZeros(length)) < (max >>> 6) + length) {
+            Arrays.sort(rows, 0, length);
+            return of(rows, length);
+        }
+        long[] words = new long[(max >>> 6) + 1];
+        for (int i = 0; i < length; i++)
+            words[rows[i] >>> 6] |= 1L << rows[i];
+        int groups = (max >>> 16) + 1;
+        int[] highs = new int[groups];
+        Container[] containers = new Container[groups];
+        int count = 0;
+        for (int high = 0; high < groups; high++) {
+            int from = high << 10, to = Math.min(words.length, from + 1024);
+            int n = 0;
+            for (int i = from; i < to; i++) n += Long.bitCount(words[i]);
+            if (n == 0)
+                continue;
+            highs[count] = high;
+            containers[count++] = Container.of(words, from, to, n);
+        }
+        return new RowBitmap(highs, containers, count);
+    }
+
+
+    /**
+     * Gets the number of ids in the set
+     *
+     * @return cardinality
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+
+    /**
+     * judge if the set is empty
+     *
+     * @return true if it holds no id
+     */
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+
+    /**
+     * judge if the set holds a row id
+     *
+     * @param row
+     * @return true if row is in the set
+     */
+    public boolean contains(int row) {
+        int i = Arrays.binarySearch(highs, row >>> 16);
+        return row >= 0 && i >= 0 && containers[i].contains((char) row);
+    }
+
+
+    /**
+     * Intersects two sets
+     *
+     * @param other
+     * @return set of the ids in both sets
+     */
+    public RowBitmap and(RowBitmap other) {
+        int[] highs = new int[Math.min(this.highs.length, other.highs.length)];
+        Container[] containers = new Container[highs.length];
+        int count = 0;
+        for (int i = 0, j = 0; i < this.highs.length && j < other.highs.length; ) {
+            if (this.highs[i] < other.highs[j]) {
+                i++;
+            } else if (this.highs[i] > other.highs[j]) {
+                j++;
+            } else {
+                Container c = this.containers[i].and(other.containers[j]);
+                if (c.cardinality > 0) {
+                    highs[count] = this.highs[i];
+                    containers[count++] = c;
+                }
+                i++;
+                j++;
+            }
+        }
+        return count == 0 ? EMPTY : new RowBitmap(highs, containers, count);
+    }
+
+
+    /**
+     * Performs an action on every id, in ascending order
+     *
+     * @param action
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < highs.length; i++)
+            containers[i].forEach(highs[i] << 16, action);
+    }
+
+
+    /**
+     * Gets the ids in ascending order
+     *
+     * @return array of the ids
+     */
+    public int[] toArray() {
+        int[] rows = new int[cardinality];
+        int[] n = {0};
+        forEach(row -> rows[n[0]++] = row);
+        return rows;
+    }
+
+
+    /**
+     * Gets the number of bytes held by the containers
+     *
+     * @return size in bytes, not counting object headers
+     */
+    public long sizeInBytes() {
+        long bytes = 4L * highs.length;
+        for (Container c : containers)
+            bytes += c instanceof BitmapContainer ? 8 * 1024 : 2L * c.cardinality;
+        return bytes;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach(row -> sb.append(sb.length() > 1 ? ", " : "").append(row));
+        return sb.append('}').toString();
+    }
+
+
+    /**
+     * The lower 16 bits of the ids that share their upper 16 bits
+     */
+    private abstract static class Container {
+
+        // Number of ids in the container
+        int cardinality;
+
+        /**
+         * @param low lower 16 bits of an id
+         * @return true if the id is in the container
+         */
+        abstract boolean contains(char low);
+
+        /**
+         * @param other container of the same upper bits
+         * @return container of the ids in both
+         */
+        abstract Container and(Container other);
+
+        /**
+         * Performs an action on every id, in ascending order
+         *
+         * @param base upper bits of the ids, already shifted
+         * @param action
+         */
+        abstract void forEach(int base, IntConsumer action);
+
+        /**
+         * Builds the container of the bits set in up to 1024 words
+         *
+         * @param words bitmap
+         * @param from first word of the container
+         * @param to word past the last word of the container
+         * @param n number of bits set
+         * @return array container if n is at most 4096, else bitmap container
+         */
+        static Container of(long[] words, int from, int to, int n) {
+            if (n > ARRAY_LIMIT) {
+                BitmapContainer bitmap = new BitmapContainer();
+                System.arraycopy(words, from, bitmap.words, 0, to - from);
+                bitmap.cardinality = n;
+                return bitmap;
+            }
+            char[] lows = new char[n];
+            int k = 0;
+            for (int i = from; i < to; i++) {
+                for (long w = words[i]; w != 0; w &= w - 1)
+                    lows[k++] = (char) (((i - from) << 6) | Long.numberOfTrailingZeros(w));
+            }
+            return new ArrayContainer(lows);
+        }
+
+    } // End of class Container
+
+
+    /**
+     * Container of at most 4096 ids, as a sorted array
+     */
+    private static class ArrayContainer extends Container {
+
+        // Lower bits of the ids, ascending
+        final char[] lows;
+
+        ArrayContainer(char[] lows) {
+            this.lows = lows;
+            this.cardinality = lows.length;
+        }
+
+        boolean contains(char low) {
+            return Arrays.binarySearch(lows, low) >= 0;
+        }
+
+        Container and(Container other) {
+            char[] out = new char[Math.min(cardinality, other.cardinality)];
+            int n = 0;
+            if (other instanceof BitmapContainer) {
+                BitmapContainer bitmap = (BitmapContainer) other;
+                for (char low : lows)
+                    if (bitmap.contains(low)) out[n++] = low;
+            } else {
+                char[] theirs = ((ArrayContainer) other).lows;
+                for (int i = 0, j = 0; i < lows.length && j < theirs.length; ) {
+                    if (lows[i] < theirs[j]) i++;
+                    else if (lows[i] > theirs[j]) j++;
+                    else {
+                        out[n++] = lows[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new ArrayContainer(n == out.length ? out : Arrays.copyOf(out, n));
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (char low : lows) action.accept(base | low);
+        }
+
+    } // End of class ArrayContainer
+
+
+    /**
+     * Container of more than 4096 ids, as a 65536-bit bitmap
+     */
+    private static class BitmapContainer extends Container {
+
+        // One bit per possible id
+        final long[] words = new long[1024];
+
+        void add(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                words[low >>> 6] |= bit;
+                cardinality++;
+            }
+        }
+
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        Container and(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+            long[] theirs = ((BitmapContainer) other).words;
+            long[] and = new long[words.length];
+            int n = 0;
+            for (int i = 0; i < words.length; i++) {
+                and[i] = words[i] & theirs[i];
+                n += Long.bitCount(and[i]);
+            }
+            // a sparse result goes back to an array
+            return Container.of(and, 0, and.length, n);
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                for (long w = words[i]; w != 0; w &= w - 1)
+                    action.accept(base | (i << 6) | Long.numberOfTrailingZeros(w));
+            }
+        }
+
+    } // End of class BitmapContainer
+
+}
@@ -0,0 +1,115 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An allocator of fixed-size blocks of off-heap memory.
+ *
+ * Blocks are carved out of direct buffers of about one megabyte,
+ * so millions of blocks cost a handful of objects on the heap. A block
+ * is named by an int handle and blocks are handed out in order.
+ * Blocks are not freed one by one: a tree never discards a leaf short
+ * of being cleared, so the memory only comes back when the whole arena
+ * is released.
+ */
+class SlabArena {
+
+    // Size of the direct buffers blocks are carved from
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // Size of a block in bytes
+    private final int blockSize;
+
+    // Number of blocks in one chunk
+    private final int blocksPerChunk;
+
+    // Direct buffers holding the blocks
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+
+    // Number of chunks in use
+    private int chunkCount;
+
+    // Number of blocks handed out, which is the handle of the next one
+    private int allocated;
+
+
+    /**
+     * Package constructor
+     *
+     * @param blockSize size of a block in bytes
+     */
+    SlabArena(int blockSize) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Illegal block size: " + blockSize);
+        this.blockSize = blockSize;
+        this.blocksPerChunk = Math.max(1, CHUNK_SIZE / blockSize);
+    }
+
+
+    /**
+     * Allocates a block; its contents are undefined
+     *
+     * @return handle of the block
+     */
+    int allocate() {
+        if (allocated == chunkCount * blocksPerChunk) grow();
+        return allocated++;
+    }
+
+
+    /**
+     * Gets the buffer holding a block
+     *
+     * @param block handle of the block
+     * @return direct buffer; the block starts at offset(block)
+     */
+    ByteBuffer buffer(int block) {
+        return chunks[block / blocksPerChunk];
+    }
+
+
+    /**
+     * Gets the offset of a block in its buffer
+     *
+     * @param block handle of the block
+     * @return offset in bytes
+     */
+    int offset(int block) {
+        return (block % blocksPerChunk) * blockSize;
+    }
+
+
+    /**
+     * Drops every block at once; the memory is returned when the
+     * buffers are collected
+     */
+    void release() {
+        chunks = new ByteBuffer[4];
+        chunkCount = 0;
+        allocated = 0;
+    }
+
+
+    /**
+     * Gets the off-heap memory held by the arena
+     *
+     * @return size in bytes
+     */
+    long reservedBytes() {
+        return (long) chunkCount * blocksPerChunk * blockSize;
+    }
+
+
+    /**
+     * Adds a chunk for the next blocks
+     */
+    private void grow() {
+        if (chunkCount == chunks.length)
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        if ((long) (chunkCount + 1) * blocksPerChunk > Integer.MAX_VALUE)
+            throw new OutOfMemoryError("Arena is full");
+        chunks[chunkCount++] = ByteBuffer.allocateDirect(blocksPerChunk * blockSize);
+    }
+
+}
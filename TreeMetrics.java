@@ -0,0 +1,429 @@
+package application;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/**
+ * Counters of the work done by one tree: node visits, key comparisons,
+ * splits, rotations and the size of range search results, with the
+ * height and fill factor of the tree read on demand.
+ *
+ * Metrics are off unless the JVM is started with
+ * -Dapplication.treeMetrics=true. The switch is a static final field,
+ * so when it is off the JIT removes every guarded call and trees do
+ * not allocate a TreeMetrics at all.
+ *
+ * A tree whose metrics are registered under a name is published as
+ * the MXBean application:type=[type],name=[name] and, while a flight
+ * recording is running, reported once a second by a TreeStatistics
+ * event. Range searches and splits of every tree are also recorded as
+ * RangeSearch and Split events when those are enabled in the recording.
+ */
+public class TreeMetrics implements TreeMetricsMXBean {
+
+    // True if trees keep metrics
+    public static final boolean ENABLED = Boolean.getBoolean("application.treeMetrics");
+
+    // Registered metrics, by name
+    private static final Map<String, TreeMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED)
+            FlightRecorder.addPeriodicEvent(StatisticsEvent.class, TreeMetrics::emitStatistics);
+    }
+
+    // Kind of tree
+    private final String type;
+
+    // Gauges read from the tree
+    private final IntSupplier height;
+    private final DoubleSupplier fillFactor;
+
+    // Counters
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder nodeVisits = new LongAdder();
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder leavesScanned = new LongAdder();
+    private final LongAdder resultValues = new LongAdder();
+
+    // Name given by register, null if not registered
+    private volatile String name;
+
+    // Name under which the MXBean is registered, null if not registered
+    private ObjectName objectName;
+
+
+    /**
+     * Public constructor
+     *
+     * @param type kind of tree
+     * @param height reads the height of the tree
+     * @param fillFactor reads the fill factor of the tree
+     */
+    public TreeMetrics(String type, IntSupplier height, DoubleSupplier fillFactor) {
+        this.type = type;
+        this.height = height;
+        this.fillFactor = fillFactor;
+    }
+
+
+    /**
+     * Publishes the metrics as an MXBean and in the periodic
+     * TreeStatistics event
+     *
+     * @param name name of the tree, unique among registered trees
+     * @throws IllegalArgumentException if name is null or already in use
+     * @throws IllegalStateException if the metrics are already registered
+     *         or the MXBean cannot be registered
+     */
+    public synchronized void register(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Name is null");
+        if (this.name != null)
+            throw new IllegalStateException("Metrics already registered as " + this.name);
+        if (REGISTERED.putIfAbsent(name, this) != null)
+            throw new IllegalArgumentException("Metrics name in use: " + name);
+        try {
+            ObjectName objectName = new ObjectName("application:type=" + type
+                + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+            this.name = name;
+        } catch (JMException e) {
+            REGISTERED.remove(name);
+            throw new IllegalStateException("Cannot register metrics " + name, e);
+        }
+    }
+
+
+    /**
+     * Withdraws the MXBean and the periodic event of a registered tree;
+     * does nothing if the metrics are not registered
+     */
+    public synchronized void unregister() {
+        if (name == null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister metrics " + name, e);
+        } finally {
+            REGISTERED.remove(name);
+            name = null;
+            objectName = null;
+        }
+    }
+
+
+    /**
+     * Records an insert call
+     *
+     * @param entries number of entries inserted
+     */
+    public void insert(int entries) {
+        inserts.add(entries);
+    }
+
+
+    /**
+     * Records a delete call
+     */
+    public void delete() {
+        deletes.increment();
+    }
+
+
+    /**
+     * Records a point search
+     */
+    public void search() {
+        searches.increment();
+    }
+
+
+    /**
+     * Records a search within one node
+     *
+     * @param keyComparisons number of keys compared
+     */
+    public void visit(int keyComparisons) {
+        nodeVisits.increment();
+        comparisons.add(keyComparisons);
+    }
+
+
+    /**
+     * Records the split of a full node
+     *
+     * @param leaf true if the node is a leaf
+     * @param nodes number of nodes the node was split into
+     * @param entries number of keys in the node before the split
+     */
+    public void split(boolean leaf, int nodes, int entries) {
+        splits.add(nodes - 1);
+        SplitEvent event = new SplitEvent();
+        if (event.shouldCommit()) {
+            event.tree = name;
+            event.leaf = leaf;
+            event.nodes = nodes;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+
+    /**
+     * Records a single rotation
+     */
+    public void rotation() {
+        rotations.increment();
+    }
+
+
+    /**
+     * Starts timing a range search
+     *
+     * @return event to pass to endRangeSearch
+     */
+    public RangeSearchEvent beginRangeSearch() {
+        RangeSearchEvent event = new RangeSearchEvent();
+        event.begin();
+        return event;
+    }
+
+
+    /**
+     * Records a finished range search
+     *
+     * @param event returned by beginRangeSearch
+     * @param leaves number of leaves read
+     * @param results number of values returned
+     */
+    public void endRangeSearch(RangeSearchEvent event, int leaves, int results) {
+        searches.increment();
+        leavesScanned.add(leaves);
+        resultValues.add(results);
+        event.end();
+        if (event.shouldCommit()) {
+            event.tree = name;
+            event.leaves = leaves;
+            event.results = results;
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public int getHeight() {
+        return height.getAsInt();
+    }
+
+    @Override
+    public double getFillFactor() {
+        return fillFactor.getAsDouble();
+    }
+
+    @Override
+    public long getInserts() {
+        return inserts.sum();
+    }
+
+    @Override
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public long getNodeVisits() {
+        return nodeVisits.sum();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    @Override
+    public double getComparisonsPerOperation() {
+        long operations = inserts.sum() + deletes.sum() + searches.sum();
+        return operations == 0 ? 0 : (double) comparisons.sum() / operations;
+    }
+
+    @Override
+    public long getSplits() {
+        return splits.sum();
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    @Override
+    public long getLeavesScanned() {
+        return leavesScanned.sum();
+    }
+
+    @Override
+    public long getResultValues() {
+        return resultValues.sum();
+    }
+
+    @Override
+    public void reset() {
+        inserts.reset();
+        deletes.reset();
+        searches.reset();
+        nodeVisits.reset();
+        comparisons.reset();
+        splits.reset();
+        rotations.reset();
+        leavesScanned.reset();
+        resultValues.reset();
+    }
+
+
+    /**
+     * Emits one TreeStatistics event per registered tree
+     */
+    private static void emitStatistics() {
+        for (TreeMetrics metrics : REGISTERED.values()) {
+            StatisticsEvent event = new StatisticsEvent();
+            event.tree = metrics.name;
+            event.type = metrics.type;
+            event.height = metrics.getHeight();
+            event.fillFactor = metrics.getFillFactor();
+            event.inserts = metrics.getInserts();
+            event.deletes = metrics.getDeletes();
+            event.searches = metrics.getSearches();
+            event.comparisons = metrics.getComparisons();
+            event.splits = metrics.getSplits();
+            event.rotations = metrics.getRotations();
+            event.leavesScanned = metrics.getLeavesScanned();
+            event.commit();
+        }
+    }
+
+
+    /**
+     * Flight recorder event of one range search
+     */
+    @Name("application.RangeSearch")
+    @Label("Tree Range Search")
+    @Category({"Application", "Trees"})
+    @Description("A range search and the leaves it read")
+    public static class RangeSearchEvent extends Event {
+
+        @Label("Tree")
+        String tree;
+
+        @Label("Leaves Scanned")
+        int leaves;
+
+        @Label("Results")
+        int results;
+
+    } // End of class RangeSearchEvent
+
+
+    /**
+     * Flight recorder event of the split of a full node
+     */
+    @Name("application.Split")
+    @Label("Tree Node Split")
+    @Category({"Application", "Trees"})
+    @Description("A full node split into several nodes")
+    static class SplitEvent extends Event {
+
+        @Label("Tree")
+        String tree;
+
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Entries")
+        int entries;
+
+    } // End of class SplitEvent
+
+
+    /**
+     * Flight recorder event with the counters of a registered tree
+     */
+    @Name("application.TreeStatistics")
+    @Label("Tree Statistics")
+    @Category({"Application", "Trees"})
+    @Period("1 s")
+    static class StatisticsEvent extends Event {
+
+        @Label("Tree")
+        String tree;
+
+        @Label("Type")
+        String type;
+
+        @Label("Height")
+        int height;
+
+        @Label("Fill Factor")
+        double fillFactor;
+
+        @Label("Inserts")
+        long inserts;
+
+        @Label("Deletes")
+        long deletes;
+
+        @Label("Searches")
+        long searches;
+
+        @Label("Comparisons")
+        long comparisons;
+
+        @Label("Splits")
+        long splits;
+
+        @Label("Rotations")
+        long rotations;
+
+        @Label("Leaves Scanned")
+        long leavesScanned;
+
+    } // End of class StatisticsEvent
+
+}
@@ -0,0 +1,82 @@
+package application;
+
+/**
+ * Management interface of the counters kept by TreeMetrics, as shown
+ * by JMX clients such as JConsole.
+ *
+ * Counters only grow; rates are obtained by sampling them twice.
+ */
+public interface TreeMetricsMXBean {
+
+    /**
+     * @return kind of tree, "BPTree" or "AVLTree"
+     */
+    String getType();
+
+    /**
+     * @return number of levels of the tree, 0 if it is empty
+     */
+    int getHeight();
+
+    /**
+     * @return entries per leaf slot, between 0 and 1; NaN for trees
+     *         without leaves
+     */
+    double getFillFactor();
+
+    /**
+     * @return number of entries inserted
+     */
+    long getInserts();
+
+    /**
+     * @return number of delete calls
+     */
+    long getDeletes();
+
+    /**
+     * @return number of point and range searches
+     */
+    long getSearches();
+
+    /**
+     * @return number of nodes searched by all operations
+     */
+    long getNodeVisits();
+
+    /**
+     * @return number of key comparisons made by all operations
+     */
+    long getComparisons();
+
+    /**
+     * @return average number of key comparisons per operation
+     */
+    double getComparisonsPerOperation();
+
+    /**
+     * @return number of nodes created by splitting a full node
+     */
+    long getSplits();
+
+    /**
+     * @return number of single rotations
+     */
+    long getRotations();
+
+    /**
+     * @return number of leaves read by range searches
+     */
+    long getLeavesScanned();
+
+    /**
+     * @return number of values returned by range searches
+     */
+    long getResultValues();
+
+    /**
+     * Sets every counter back to 0
+     */
+    void reset();
+
+}
@@ -0,0 +1,100 @@
+package application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Filename:   TreeMetricsTest.java
+ *
+ * JUnit tests of TreeMetrics: the counters, the MXBean registration
+ * and the trees without metrics when the switch is off.
+ */
+public class TreeMetricsTest {
+
+    @Test
+    public void treesHaveNoMetricsUnlessEnabled() {
+        if (TreeMetrics.ENABLED)
+            return;
+        assertNull(new BPTree<Integer, Integer>(4).metrics());
+    }
+
+
+    @Test
+    public void countersAddUpAndReset() {
+        TreeMetrics metrics = new TreeMetrics("BPTree", () -> 3, () -> 0.5);
+        metrics.insert(4);
+        metrics.delete();
+        metrics.search();
+        metrics.visit(5);
+        metrics.visit(2);
+        metrics.split(true, 3, 10);
+        metrics.rotation();
+        metrics.endRangeSearch(metrics.beginRangeSearch(), 2, 7);
+        assertEquals("BPTree", metrics.getType());
+        assertEquals(3, metrics.getHeight());
+        assertEquals(0.5, metrics.getFillFactor(), 0);
+        assertEquals(4, metrics.getInserts());
+        assertEquals(1, metrics.getDeletes());
+        assertEquals(2, metrics.getSearches());
+        assertEquals(2, metrics.getNodeVisits());
+        assertEquals(7, metrics.getComparisons());
+        assertEquals(7.0 / 7, metrics.getComparisonsPerOperation(), 1e-9);
+        assertEquals(2, metrics.getSplits());
+        assertEquals(1, metrics.getRotations());
+        assertEquals(2, metrics.getLeavesScanned());
+        assertEquals(7, metrics.getResultValues());
+        metrics.reset();
+        assertEquals(0, metrics.getInserts());
+        assertEquals(0, metrics.getComparisons());
+        assertEquals(0, metrics.getComparisonsPerOperation(), 0);
+    }
+
+
+    @Test
+    public void registeredMetricsArePublishedAsAnMXBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("application:type=BPTree,name=" + ObjectName.quote("orders"));
+        TreeMetrics metrics = new TreeMetrics("BPTree", () -> 2, () -> 1.0);
+        metrics.register("orders");
+        try {
+            assertTrue(server.isRegistered(objectName));
+            metrics.insert(3);
+            assertEquals(3L, server.getAttribute(objectName, "Inserts"));
+            assertEquals(2, server.getAttribute(objectName, "Height"));
+            try {
+                metrics.register("other");
+                fail("registered twice");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                new TreeMetrics("BPTree", () -> 0, () -> 0).register("orders");
+                fail("name in use");
+            } catch (IllegalArgumentException e) {
+            }
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(objectName));
+        // the name is free again, and unregistering twice does nothing
+        metrics.register("orders");
+        metrics.unregister();
+        metrics.unregister();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullNameIsRejected() {
+        new TreeMetrics("BPTree", () -> 0, () -> 0).register(null);
+    }
+
+}
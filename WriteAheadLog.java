@@ -0,0 +1,273 @@
+package application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of changes to a paged tree, written ahead of
+ * the pages they change.
+ *
+ * Records are collected in a buffer and reach the file in one
+ * sequential write. The file is forced to the storage device once
+ * every syncBatch committed operations (group commit), on sync, and
+ * before a checkpoint lets modified pages reach the index file.
+ * Every record carries a checksum, so a record torn by a crash ends
+ * the log when it is scanned.
+ *
+ * Record layout: payload length (int), CRC32 of type and payload (int),
+ * type (byte), payload.
+ */
+class WriteAheadLog implements Closeable {
+
+    // Record types
+    static final byte INSERT = 1;
+    static final byte PAGE = 2;
+    static final byte CHECKPOINT = 3;
+
+    // File header: magic number and format version
+    private static final int MAGIC = 0x57414C31;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // Bytes before the payload of a record
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    // File holding the log
+    private final FileChannel channel;
+
+    // Records not yet written to the file
+    private final ByteBuffer buffer;
+
+    // Largest payload a record can have
+    private final int maxPayload;
+
+    // Number of committed operations between two forces
+    private final int syncBatch;
+
+    // Checksum of the record being written or read
+    private final CRC32 crc = new CRC32();
+
+    // Offset in the file where the buffer will be written
+    private long end;
+
+    // Operations committed since the file was last forced
+    private int unsynced;
+
+
+    /**
+     * Visitor of the records found by scan
+     */
+    interface RecordVisitor {
+
+        /**
+         * @param type record type
+         * @param payload buffer positioned at the payload, valid
+         *        only during the call
+         * @param position offset of the record in the log
+         * @param next offset of the record that follows it
+         * @return false to stop the scan
+         * @throws IOException
+         */
+        boolean visit(byte type, ByteBuffer payload, long position, long next) throws IOException;
+
+    }
+
+
+    /**
+     * Package constructor; opens the log, creating the file if it does not exist
+     *
+     * @param file path of the log file
+     * @param maxPayload largest payload a record can have
+     * @param syncBatch number of committed operations between two forces
+     * @throws IOException if the file cannot be opened or is not a log
+     */
+    WriteAheadLog(Path file, int maxPayload, int syncBatch) throws IOException {
+        if (syncBatch < 1)
+            throw new IllegalArgumentException("Illegal sync batch: " + syncBatch);
+        this.maxPayload = maxPayload;
+        this.syncBatch = syncBatch;
+        this.buffer = ByteBuffer.allocateDirect(
+            Math.max(1 << 16, 2 * (RECORD_HEADER_SIZE + maxPayload)));
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < FILE_HEADER_SIZE) {
+                reset();
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                readFully(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION)
+                    throw new IOException("Not a BPTree log file");
+                end = channel.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Adds a record to the log buffer
+     *
+     * @param type record type
+     * @param payload bytes between its position and limit are logged
+     * @throws IOException if the buffer had to be written and could not be
+     */
+    void append(byte type, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (length > maxPayload)
+            throw new IllegalArgumentException("Log record too large: " + length);
+        if (buffer.remaining() < RECORD_HEADER_SIZE + length)
+            write();
+        crc.reset();
+        crc.update(type);
+        crc.update(payload.duplicate());
+        buffer.putInt(length).putInt((int) crc.getValue()).put(type).put(payload);
+    }
+
+
+    /**
+     * Marks the end of one operation; the log is forced once every
+     * syncBatch operations
+     *
+     * @throws IOException if the log cannot be written
+     */
+    void commit() throws IOException {
+        if (++unsynced >= syncBatch)
+            sync();
+    }
+
+
+    /**
+     * Writes the buffered records and forces the log to the storage device
+     *
+     * @throws IOException if the log cannot be written
+     */
+    void sync() throws IOException {
+        write();
+        channel.force(false);
+        unsynced = 0;
+    }
+
+
+    /**
+     * Gets the size of the log, including records not yet written
+     *
+     * @return size in bytes
+     */
+    long size() {
+        return end + buffer.position();
+    }
+
+
+    /**
+     * Discards every record; called once a checkpoint has reached the index file
+     *
+     * @throws IOException if the log cannot be truncated
+     */
+    void reset() throws IOException {
+        buffer.clear();
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+        channel.force(false);
+        end = FILE_HEADER_SIZE;
+        unsynced = 0;
+    }
+
+
+    /**
+     * Cuts the log at the given offset, dropping a torn record at its end
+     *
+     * @param size new size of the log in bytes
+     * @throws IOException if the log cannot be truncated
+     */
+    void truncate(long size) throws IOException {
+        write();
+        channel.truncate(size);
+        end = Math.min(end, size);
+    }
+
+
+    /**
+     * Reads the records in order, starting at the given offset, until
+     * the end of the log, the first damaged record, or until the
+     * visitor stops it
+     *
+     * @param from offset of the first record, 0 for the start of the log
+     * @param visitor called for every intact record
+     * @return offset just past the last record read
+     * @throws IOException if the log cannot be read
+     */
+    long scan(long from, RecordVisitor visitor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(maxPayload);
+        long position = Math.max(from, FILE_HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (!readFully(header, position)) return position;
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            byte type = header.get(8);
+            if (length < 0 || length > maxPayload) return position;
+            payload.clear().limit(length);
+            if (!readFully(payload, position + RECORD_HEADER_SIZE)) return position;
+            payload.flip();
+            crc.reset();
+            crc.update(type);
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) return position;
+            long next = position + RECORD_HEADER_SIZE + length;
+            if (!visitor.visit(type, payload, position, next)) return next;
+            position = next;
+        }
+    }
+
+
+    /**
+     * Writes the buffered records and closes the log without forcing it
+     *
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            write();
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Writes the buffered records at the end of the file
+     */
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            end += channel.write(buffer, end);
+        buffer.clear();
+    }
+
+    /**
+     * Fills the buffer from the given offset
+     *
+     * @return false if the file ends first
+     */
+    private boolean readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+}
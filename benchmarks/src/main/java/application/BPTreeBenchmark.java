@@ -0,0 +1,98 @@
+package application;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * BPTree insert, point search and bounded range search for each
+ * branching factor and key distribution.
+ *
+ * Scores are per key inserted or per query. Run with -prof gc to get
+ * the allocation per operation next to the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BPTreeBenchmark {
+
+    // Number of keys inserted per insert invocation and held by the searched tree
+    static final int KEYS = 100000;
+
+    // Number of lookups per search invocation
+    static final int QUERIES = 10000;
+
+    // Width of the bounded range queries, in keys of the uniform distribution
+    static final int RANGE_WIDTH = 100;
+
+    @Param({"3", "8", "16", "64", "128"})
+    int branchingFactor;
+
+    @Param({"UNIFORM", "SEQUENTIAL", "ZIPFIAN", "DUPLICATES"})
+    KeyDistribution distribution;
+
+    // Keys inserted, in insertion order
+    private Double[] keys;
+
+    // Keys looked up, drawn among the inserted keys
+    private Double[] queries;
+
+    // Tree holding every key, searched by the search benchmarks
+    private BPTree<Double, Double> tree;
+
+
+    /**
+     * Generates the keys and builds the searched tree, untimed
+     */
+    @Setup
+    public void setup() {
+        keys = distribution.boxedKeys(KEYS, new Random(42));
+        queries = KeyDistribution.queries(keys, QUERIES, new Random(7));
+        tree = new BPTree<>(branchingFactor);
+        for (Double key : keys) tree.insert(key, key);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void insert(Blackhole bh) {
+        BPTree<Double, Double> t = new BPTree<>(branchingFactor);
+        for (Double key : keys) t.insert(key, key);
+        bh.consume(t);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void search(Blackhole bh) {
+        for (Double q : queries) bh.consume(tree.rangeSearch(q, "=="));
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void range(Blackhole bh) {
+        for (Double q : queries) {
+            List<Double> found = tree.rangeSearch(q, true, q + RANGE_WIDTH, false, false, 0, -1);
+            bh.consume(found);
+        }
+    }
+
+}
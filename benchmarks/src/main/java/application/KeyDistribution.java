@@ -0,0 +1,117 @@
+package application;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shape of the keys generated for the benchmarks
+ */
+public enum KeyDistribution {
+
+    // keys drawn uniformly at random
+    UNIFORM,
+    // keys in increasing order
+    SEQUENTIAL,
+    // keys drawn from 10000 values with a Zipfian distribution, exponent 0.99
+    ZIPFIAN,
+    // keys drawn uniformly from 16 values
+    DUPLICATES;
+
+
+    /**
+     * Generates keys of this shape
+     *
+     * @param n number of keys
+     * @param rnd source of randomness
+     * @return keys
+     */
+    long[] keys(int n, Random rnd) {
+        long[] keys = new long[n];
+        switch (this) {
+            case UNIFORM:
+                for (int i = 0; i < n; i++) keys[i] = rnd.nextInt(n);
+                break;
+            case SEQUENTIAL:
+                for (int i = 0; i < n; i++) keys[i] = i;
+                break;
+            case ZIPFIAN:
+                double[] cdf = zipfCdf(10000, 0.99);
+                for (int i = 0; i < n; i++) {
+                    int rank = Arrays.binarySearch(cdf, rnd.nextDouble());
+                    keys[i] = Math.min(rank < 0 ? -rank - 1 : rank, cdf.length - 1);
+                }
+                break;
+            case DUPLICATES:
+                for (int i = 0; i < n; i++) keys[i] = rnd.nextInt(16);
+                break;
+        }
+        return keys;
+    }
+
+
+    /**
+     * Generates keys of this shape as boxed doubles, the key type of
+     * the reference-keyed trees
+     *
+     * @param n number of keys
+     * @param rnd source of randomness
+     * @return keys
+     */
+    Double[] boxedKeys(int n, Random rnd) {
+        long[] keys = keys(n, rnd);
+        Double[] boxed = new Double[n];
+        for (int i = 0; i < n; i++) boxed[i] = (double) keys[i];
+        return boxed;
+    }
+
+
+    /**
+     * Draws lookups among generated keys, so that they follow the same
+     * distribution over the whole key range
+     *
+     * @param keys keys to draw from
+     * @param n number of lookups
+     * @param rnd source of randomness
+     * @return lookups
+     */
+    static long[] queries(long[] keys, int n, Random rnd) {
+        long[] queries = new long[n];
+        for (int i = 0; i < n; i++) queries[i] = keys[rnd.nextInt(keys.length)];
+        return queries;
+    }
+
+
+    /**
+     * Draws lookups among generated keys, boxed
+     *
+     * @param keys keys to draw from
+     * @param n number of lookups
+     * @param rnd source of randomness
+     * @return lookups
+     */
+    static Double[] queries(Double[] keys, int n, Random rnd) {
+        Double[] queries = new Double[n];
+        for (int i = 0; i < n; i++) queries[i] = keys[rnd.nextInt(keys.length)];
+        return queries;
+    }
+
+
+    /**
+     * Builds the cumulative distribution of a Zipfian law over ranks 0 to n - 1
+     *
+     * @param n number of ranks
+     * @param exponent skew of the law
+     * @return cumulative probability of each rank
+     */
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+}
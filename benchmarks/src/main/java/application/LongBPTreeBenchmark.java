@@ -0,0 +1,79 @@
+package application;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * LongBPTree point search with the vector search of LongSearch and
+ * with the binary search.
+ *
+ * The forks run with the incubator Vector API. Each set of parameters
+ * runs in its own fork, so the choice of search can be made through
+ * the application.vectorSearch property before LongSearch is loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class LongBPTreeBenchmark {
+
+    // Number of keys held by the searched tree
+    static final int KEYS = 2000000;
+
+    @Param({"32", "256", "512"})
+    int branchingFactor;
+
+    @Param({"UNIFORM", "SEQUENTIAL"})
+    KeyDistribution distribution;
+
+    @Param({"true", "false"})
+    boolean vectorSearch;
+
+    // Keys looked up, drawn among the inserted keys
+    private long[] queries;
+
+    // Tree holding every key
+    private LongBPTree<Long> tree;
+
+
+    /**
+     * Selects the search and builds the tree, untimed
+     *
+     * @throws IllegalStateException if the vector search was asked for
+     *         but could not be loaded
+     */
+    @Setup
+    public void setup() {
+        System.setProperty("application.vectorSearch", Boolean.toString(vectorSearch));
+        if (vectorSearch != LongSearch.INSTANCE instanceof LongVectorSearch)
+            throw new IllegalStateException("Search in use: " + LongSearch.INSTANCE.getClass().getName());
+        long[] keys = distribution.keys(KEYS, new Random(42));
+        tree = new LongBPTree<>(branchingFactor);
+        for (long key : keys) tree.insert(key, key);
+        queries = KeyDistribution.queries(keys, BPTreeBenchmark.QUERIES, new Random(7));
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BPTreeBenchmark.QUERIES)
+    public void search(Blackhole bh) {
+        for (long q : queries) bh.consume(tree.rangeSearch(q, "=="));
+    }
+
+}
@@ -0,0 +1,112 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The sorted maps of the JDK used as sorted multimaps, which is what
+ * BPTree is with duplicate keys: the baselines of BPTreeBenchmark,
+ * with the same operations, sizes and key distributions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortedMapBenchmark {
+
+    /**
+     * Map implementation measured
+     */
+    public enum Implementation {
+        TREE_MAP,
+        CONCURRENT_SKIP_LIST_MAP;
+
+        NavigableMap<Double, List<Double>> create() {
+            return this == TREE_MAP ? new TreeMap<>() : new ConcurrentSkipListMap<>();
+        }
+    }
+
+    @Param({"TREE_MAP", "CONCURRENT_SKIP_LIST_MAP"})
+    Implementation implementation;
+
+    @Param({"UNIFORM", "SEQUENTIAL", "ZIPFIAN", "DUPLICATES"})
+    KeyDistribution distribution;
+
+    // Keys inserted, in insertion order
+    private Double[] keys;
+
+    // Keys looked up, drawn among the inserted keys
+    private Double[] queries;
+
+    // Map holding every key, searched by the search benchmarks
+    private NavigableMap<Double, List<Double>> map;
+
+
+    /**
+     * Generates the keys and builds the searched map, untimed
+     */
+    @Setup
+    public void setup() {
+        keys = distribution.boxedKeys(BPTreeBenchmark.KEYS, new Random(42));
+        queries = KeyDistribution.queries(keys, BPTreeBenchmark.QUERIES, new Random(7));
+        map = implementation.create();
+        for (Double key : keys) map.computeIfAbsent(key, k -> new ArrayList<>(1)).add(key);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BPTreeBenchmark.KEYS)
+    public void insert(Blackhole bh) {
+        NavigableMap<Double, List<Double>> m = implementation.create();
+        for (Double key : keys) m.computeIfAbsent(key, k -> new ArrayList<>(1)).add(key);
+        bh.consume(m);
+    }
+
+
+    /**
+     * Copies the values found, as BPTree returns a new list per search
+     */
+    @Benchmark
+    @OperationsPerInvocation(BPTreeBenchmark.QUERIES)
+    public void search(Blackhole bh) {
+        for (Double q : queries) {
+            List<Double> values = map.get(q);
+            bh.consume(values == null ? new ArrayList<Double>() : new ArrayList<>(values));
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BPTreeBenchmark.QUERIES)
+    public void range(Blackhole bh) {
+        for (Double q : queries) {
+            List<Double> found = new ArrayList<>();
+            for (Map.Entry<Double, List<Double>> e : map.subMap(q, true, q + BPTreeBenchmark.RANGE_WIDTH, false).entrySet())
+                found.addAll(e.getValue());
+            bh.consume(found);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package application;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector search of LongSearch.
+ *
+ * A binary search first narrows the run to a few vectors of keys. Each
+ * vector is then compared with the probe in one instruction; since the
+ * run is sorted, the keys that compare below the probe are a prefix of
+ * the vector, so their count is the offset of the answer.
+ *
+ * This file needs the incubator module, so it is compiled apart from
+ * the rest of the tree:
+ * javac --add-modules jdk.incubator.vector -d out *.java vector/*.java
+ * and the trees use it when run with --add-modules jdk.incubator.vector.
+ */
+final class LongVectorSearch extends LongSearch {
+
+    // Widest vector of longs the hardware supports
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    // Keys left to the vector compares once the binary search stops
+    private static final int WINDOW = 4 * SPECIES.length();
+
+
+    /**
+     * Package constructor, called by LongSearch
+     */
+    LongVectorSearch() {
+    }
+
+
+    int lowerBound(long[] keys, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (hi - lo > WINDOW) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return scan(keys, lo, hi, key, VectorOperators.LT);
+    }
+
+
+    int upperBound(long[] keys, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (hi - lo > WINDOW) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return scan(keys, lo, hi, key, VectorOperators.LE);
+    }
+
+
+    /**
+     * Finds the first key of a sorted run for which a comparison with
+     * the probe fails, a vector of keys at a time
+     *
+     * @param test LT for lowerBound, LE for upperBound
+     * @return index of the first failing key, or to if there is none
+     */
+    private static int scan(long[] keys, int from, int to, long key, VectorOperators.Comparison test) {
+        int lanes = SPECIES.length();
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += lanes) {
+            int below = LongVector.fromArray(SPECIES, keys, i).compare(test, key).trueCount();
+            if (below < lanes)
+                return i + below;
+        }
+        if (test == VectorOperators.LT) {
+            while (i < to && keys[i] < key) i++;
+        } else {
+            while (i < to && keys[i] <= key) i++;
+        }
+        return i;
+    }
+
+}